@@ -1,6 +1,72 @@
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.io.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CyclicBarrier;
+import java.util.Arrays;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.management.*;
+import java.util.LinkedHashMap;
+import java.nio.file.Paths;
+import java.util.function.Predicate;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinTask;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 public class FlightReservationSystem {
     public static void main(String[] args) {
         try {
@@ -146,11 +212,11 @@ enum FlightStatus {
 }
 
 enum BookingStatus {
-    PENDING,CONFIRMED,CANCELLED,FAILED
+    PENDING,CONFIRMED,CANCELLED,FAILED,EXPIRED,NO_SHOW,DENIED_BOARDING
 }
 
 enum PaymentStatus {
-    PENDING, COMPLETED,FAILED,REFUNDED
+    PENDING, COMPLETED,FAILED,REFUNDED,AUTHORIZED
 }
 
 enum ClassType {
@@ -163,10 +229,16 @@ abstract class AbstractFlight {
     protected long departureTime;
     protected long arrivalTime;
     protected FlightStatus status;
-    protected Seat[] seats;
+    protected SeatMap seatMap;
+    protected volatile OverbookingManager overbooking; // null sells physical seats only
     protected double basePrice;
+    protected volatile long version; // bumped by every setter that can change a fare or the seat map
 
     AbstractFlight(String flightNumber, String origin, String destination, long departureTime, long arrivalTime, double basePrice) {
+        this(flightNumber, origin, destination, departureTime, arrivalTime, basePrice, null);
+    }
+    // layout null flies the subclass's default aircraft
+    AbstractFlight(String flightNumber, String origin, String destination, long departureTime, long arrivalTime, double basePrice, AircraftLayout layout) {
         this.flightNumber = flightNumber;
         this.origin = origin;
         this.destination = destination;
@@ -174,9 +246,9 @@ abstract class AbstractFlight {
         this.arrivalTime = arrivalTime;
         this.basePrice = basePrice;
         this.status = FlightStatus.SCHEDULED;
-        this.seats = initializeSeats();
+        this.seatMap = new SeatMap(layout != null ? layout : initializeLayout());
     }
-    protected abstract Seat[] initializeSeats();
+    protected abstract AircraftLayout initializeLayout();
 
     public String getFlightNumber() {
         return this.flightNumber;
@@ -208,6 +280,7 @@ abstract class AbstractFlight {
 
     public void setDepartureTime(long departureTime) {
         this.departureTime = departureTime;
+        version++;
     }
 
     public long getArrivalTime() {
@@ -216,6 +289,7 @@ abstract class AbstractFlight {
 
     public void setArrivalTime(long arrivalTime) {
         this.arrivalTime = arrivalTime;
+        version++;
     }
 
     public FlightStatus getStatus() {
@@ -223,15 +297,42 @@ abstract class AbstractFlight {
     }
 
     public void setStatus(FlightStatus status) {
+        StatusTransitions.check(StatusTransitions.allowed(this.status, status), this.status, status);
+        this.status = status;
+    }
+    // Sets a status read back from storage; no transition happens, so nothing is checked.
+    void restoreStatus(FlightStatus status) {
         this.status = status;
     }
 
     public Seat[] getSeats() {
-        return this.seats;
+        return this.seatMap.getSeats();
     }
 
     public void setSeats(Seat[] seats) {
-        this.seats = seats;
+        this.seatMap = new SeatMap(seats);
+        version++;
+    }
+    // installs a seat map already filled for another aircraft, see ScheduleChangeService
+    void replaceSeatMap(SeatMap seatMap) {
+        this.seatMap = seatMap;
+        version++;
+    }
+
+    public SeatMap getSeatMap() {
+        return this.seatMap;
+    }
+
+    public AircraftLayout getLayout() {
+        return this.seatMap.getLayout();
+    }
+
+    public OverbookingManager getOverbooking() {
+        return this.overbooking;
+    }
+
+    public void setOverbooking(OverbookingManager overbooking) {
+        this.overbooking = overbooking;
     }
 
     public double getBasePrice() {
@@ -240,30 +341,42 @@ abstract class AbstractFlight {
 
     public void setBasePrice(double basePrice) {
         this.basePrice = basePrice;
+        version++;
+    }
+    public long getVersion() {
+        return this.version;
     }
     public long calculateDuration(){
         long duration = getArrivalTime() - getDepartureTime();
         return duration / (1000 * 60);
     }
+    public int getAvailableSeatCount(){
+        return seatMap.availableCount();
+    }
+    public int getAvailableSeatCount(ClassType type){
+        return seatMap.availableCount(type);
+    }
+    // Index of the first free seat at or after from, or -1. Walking the free seats this way only
+    // reads the bitset, where getAvailableSeats makes a Seat for each of them.
+    public int nextAvailableSeat(int from){
+        return seatMap.nextFree(from);
+    }
+    public int nextAvailableSeat(ClassType type, int from){
+        return seatMap.nextFree(type, from);
+    }
+    // Seats sold between counting and filling leave the array shorter, never with null slots.
     public Seat[] getAvailableSeats(){
-        int count = 0;
-        for(int i = 0 ; i < seats.length ; i++){
-            if(seats[i].isAvailable()){
-                count++;
-            }
-        }
-        Seat[] availableSeats = new Seat[count];
-        int index = 0;
-        for(int i = 0 ; i < seats.length ; i++){
-            if(seats[i].isAvailable()){
-                availableSeats[index] = seats[i];
-                index++;
-            }
+        SeatMap seatMap = this.seatMap;
+        Seat[] availableSeats = new Seat[seatMap.availableCount()];
+        int filled = 0;
+        for(int index = seatMap.nextFree(0) ; index >= 0 && filled < availableSeats.length ; index = seatMap.nextFree(index + 1)){
+            availableSeats[filled++] = seatMap.getSeat(index);
         }
-        return availableSeats;
+        return filled == availableSeats.length ? availableSeats : Arrays.copyOf(availableSeats, filled);
     }
 }
 abstract class AbstractBooking {
+    protected long bookingNumber;
     protected String bookingId;
     protected AbstractFlight flight;
     protected Passenger[] passengers;
@@ -272,6 +385,9 @@ abstract class AbstractBooking {
     protected BookingStatus status;
     protected AbstractPricingStrategy pricingStrategy;
     protected double totalPrice;
+    protected IBookingEventListener listener;
+    protected ClassType classType = ClassType.ECONOMY;
+    protected boolean overbooked; // confirmed past the seats, seated at departure
 
     AbstractBooking(AbstractFlight flight, Passenger[] passengers, AbstractPricingStrategy pricingStrategy) {
         this.flight = flight;
@@ -279,53 +395,124 @@ abstract class AbstractBooking {
         this.pricingStrategy = pricingStrategy;
         this.bookingTime = System.currentTimeMillis();
         this.status = BookingStatus.PENDING;
-        this.bookingId = generateBookingId();
+        this.bookingNumber = generateBookingId();
         this.assignedSeats = new Seat[passengers.length]; // ?
         this.totalPrice = calculateTotalPrice();
     }
+    // For callers that already priced and numbered the booking, e.g. BulkBookingService.
+    AbstractBooking(AbstractFlight flight, Passenger[] passengers, AbstractPricingStrategy pricingStrategy,
+                    double totalPrice, long bookingNumber, long bookingTime) {
+        this.flight = flight;
+        this.passengers = passengers;
+        this.pricingStrategy = pricingStrategy;
+        this.bookingTime = bookingTime;
+        this.status = BookingStatus.PENDING;
+        this.bookingNumber = bookingNumber;
+        this.assignedSeats = new Seat[passengers.length];
+        this.totalPrice = totalPrice;
+    }
 
-    protected String generateBookingId (){
-        return "BK" + System.currentTimeMillis();
+    protected long generateBookingId (){
+        return IdGenerator.DEFAULT.nextId();
     }
     public boolean createBooking (){
+        return createBooking(true);
+    }
+    // reprice false keeps totalPrice as it is, e.g. the price a seat hold was charged at
+    boolean createBooking ( boolean reprice ){
+        long start = Metrics.DEFAULT.createBooking.start();
+        boolean created = confirm(reprice);
+        Metrics.DEFAULT.createBooking.recordSince(start);
+        return created;
+    }
+    private boolean confirm ( boolean reprice ){
+        if(!StatusTransitions.allowed(status, BookingStatus.CONFIRMED)){
+            return false;
+        }
         try{
-            totalPrice = pricingStrategy.calculateFinalPrice(flight,passengers.length);
+            if(reprice){
+                totalPrice = pricingStrategy.calculateFinalPrice(flight,classType,passengers.length);
+            }
             if(assignSeats()){
-                status = BookingStatus.CONFIRMED;
+                setStatus(BookingStatus.CONFIRMED);
+                if(listener != null){
+                    listener.bookingConfirmed(this);
+                }
                 return true;
             }
             else{
-                status = BookingStatus.FAILED;
+                setStatus(BookingStatus.FAILED);
+                Metrics.DEFAULT.bookingsFailed.increment();
                 return false;
             }
         }
         catch(Exception e){
             System.out.println(e.getMessage());
-            status = BookingStatus.FAILED;
+            Metrics.DEFAULT.bookingErrors.increment();
+            releaseSeats();
+            setStatus(BookingStatus.FAILED);
             return false;
         }
     }
     public double calculateTotalPrice (){
-        return pricingStrategy.calculateFinalPrice(flight,passengers.length);
+        return pricingStrategy.calculateFinalPrice(flight,classType,passengers.length);
     }
     public boolean assignSeats (){
-        Seat[] availableSeats = flight.getAvailableSeats();;
-        if(assignedSeats.length > availableSeats.length){
+        // seats held on an aircraft swapped out since (a seat hold the schedule change could not see)
+        // go back and the booking is seated again on the flight's current map
+        if(isSeatsAssigned() && assignedSeats[0].getSeatMapOrNull() != flight.getSeatMap()){
+            releaseSeats();
+        }
+        if(isSeatsAssigned() || overbooked){
+            return true;
+        }
+        if(assignedSeats.length < passengers.length){
             return false;
         }
-        for(int i = 0 ; i < passengers.length ; i++){
-            if(availableSeats[i].reserve()){
-                assignedSeats[i] = availableSeats[i];
-            }
-            else{
-                return false;
+        // all-or-nothing: either every passenger gets a seat in the booked class or nothing stays
+        // reserved; the party is seated together when any row has room for it
+        long start = Metrics.DEFAULT.assignSeats.start();
+        boolean reserved = flight.getSeatMap().reserve(classType, passengers.length, assignedSeats);
+        Metrics.DEFAULT.assignSeats.recordSince(start);
+        if(!reserved && flight.getOverbooking() != null){
+            overbooked = flight.getOverbooking().admit(classType, passengers.length);
+            reserved = overbooked;
+        }
+        return reserved;
+    }
+    // Gives back the seats, or for an overbooked booking its place in the overbooking allowance.
+    // Seats go back to the map they came from, which is not the flight's after an aircraft swap.
+    void releaseSeats (){
+        SeatMap seatMap = assignedSeats.length > 0 && assignedSeats[0] != null ? assignedSeats[0].getSeatMapOrNull() : null;
+        (seatMap != null ? seatMap : flight.getSeatMap()).release(assignedSeats);
+        Arrays.fill(assignedSeats, null);
+        if(overbooked){
+            overbooked = false;
+            OverbookingManager overbooking = flight.getOverbooking();
+            if(overbooking != null){
+                overbooking.withdraw(classType, passengers.length);
             }
         }
-        return true;
+    }
+    public boolean isSeatsAssigned (){
+        return passengers.length > 0 && assignedSeats.length > 0 && assignedSeats[0] != null;
     }
     public void setBookingId(String bookingId){
         this.bookingId = bookingId;
     }
+    public void setBookingNumber(long bookingNumber){
+        this.bookingNumber = bookingNumber;
+        this.bookingId = null;
+    }
+    public void setListener(IBookingEventListener listener){
+        this.listener = listener;
+    }
+    public void setClassType(ClassType classType){
+        this.classType = classType;
+    }
+    public void setOverbooked(boolean overbooked){
+        this.overbooked = overbooked;
+    }
     public void setFlight(AbstractFlight flight){
         this.flight = flight;
     }
@@ -339,6 +526,18 @@ abstract class AbstractBooking {
         this.bookingTime = bookingTime;
     }
     public void setStatus(BookingStatus status){
+        BookingStatus from = this.status;
+        if(from == status){
+            return;
+        }
+        StatusTransitions.check(StatusTransitions.allowed(from, status), from, status);
+        this.status = status;
+        if(listener != null){
+            listener.bookingStatusChanged(this, from, status);
+        }
+    }
+    // Sets a status read back from storage; no transition happens, so nothing is checked or published.
+    void restoreStatus(BookingStatus status){
         this.status = status;
     }
     public void setPricingStrategy(AbstractPricingStrategy pricingStrategy){
@@ -348,7 +547,15 @@ abstract class AbstractBooking {
         this.totalPrice = totalPrice;
     }
 
-    public String getBookingId() { return bookingId; }
+    public String getBookingId() {
+        if(bookingId == null){
+            bookingId = IdGenerator.format("BK", bookingNumber);
+        }
+        return bookingId;
+    }
+    public long getBookingNumber() { return bookingNumber; }
+    public ClassType getClassType() { return classType; }
+    public boolean isOverbooked() { return overbooked; }
     public AbstractFlight getFlight() { return flight; }
     public Passenger[] getPassengers() { return passengers; }
     public Seat[] getAssignedSeats() { return assignedSeats; }
@@ -356,6 +563,7 @@ abstract class AbstractBooking {
     public BookingStatus getStatus() { return status; }
     public AbstractPricingStrategy getPricingStrategy() { return pricingStrategy; }
     public double getTotalPrice() { return totalPrice; }
+    public IBookingEventListener getListener() { return listener; }
 }
 abstract class AbstractPricingStrategy {
     protected double basePrice;
@@ -404,29 +612,57 @@ abstract class AbstractPricingStrategy {
         double taxedPricePerPerson = applyTaxes(discountPerPerson);
         return passengerCount  * taxedPricePerPerson;
     }
+    // Price for passengers in the given class; strategies that do not price by class ignore it.
+    public double calculateFinalPrice ( AbstractFlight flight , ClassType type , int passengerCount ){
+        return calculateFinalPrice(flight, passengerCount);
+    }
 
 }
 abstract class AbstractPaymentProcessor {
+    protected long paymentNumber;
     protected String paymentId;
     protected AbstractBooking booking;
     protected double amount;
     protected long paymentTime;
     protected PaymentStatus status;
+    protected IBookingEventListener listener;
+    protected String authorizationCode;
     public AbstractPaymentProcessor(AbstractBooking booking){
-        this.paymentId = generatePaymentId();
+        this.paymentNumber = generatePaymentId();
         this.amount = booking.getTotalPrice();
         this.booking = booking;
         this.paymentTime = System.currentTimeMillis();
         this.status = PaymentStatus.PENDING;
+        this.listener = booking.getListener();
     }
     public String getPaymentId() {
+        if(paymentId == null){
+            paymentId = IdGenerator.format("PAY", paymentNumber);
+        }
         return paymentId;
     }
 
+    public long getPaymentNumber() {
+        return paymentNumber;
+    }
+
     public void setPaymentId(String paymentId) {
         this.paymentId = paymentId;
     }
 
+    public void setPaymentNumber(long paymentNumber) {
+        this.paymentNumber = paymentNumber;
+        this.paymentId = null;
+    }
+
+    public IBookingEventListener getListener() {
+        return listener;
+    }
+
+    public void setListener(IBookingEventListener listener) {
+        this.listener = listener;
+    }
+
     public AbstractBooking getBooking() {
         return booking;
     }
@@ -456,16 +692,49 @@ abstract class AbstractPaymentProcessor {
     }
 
     public void setStatus(PaymentStatus status) {
+        PaymentStatus from = this.status;
+        if(from == status){
+            return;
+        }
+        StatusTransitions.check(StatusTransitions.allowed(from, status), from, status);
         this.status = status;
+        if(listener != null){
+            listener.paymentStatusChanged(this, from, status);
+        }
     }
-    protected String generatePaymentId (){
-        return "PAY" + System.currentTimeMillis();
+
+    public String getAuthorizationCode() {
+        return authorizationCode;
+    }
+
+    public void setAuthorizationCode(String authorizationCode) {
+        this.authorizationCode = authorizationCode;
+    }
+    protected long generatePaymentId (){
+        return IdGenerator.DEFAULT.nextId();
     }
     public abstract boolean processPayment ();
     public abstract boolean validatePaymentDetails () ;
+    // Runs validate -> authorize -> capture through the pipeline's acquirer without blocking.
+    public CompletableFuture<Boolean> processPaymentAsync ( AsyncPaymentPipeline pipeline ){
+        return pipeline.process(this);
+    }
+    public CompletableFuture<Boolean> refundPaymentAsync ( AsyncPaymentPipeline pipeline ){
+        return pipeline.refund(this);
+    }
+    protected void complete (){
+        setPaymentTime(System.currentTimeMillis());
+        setStatus(PaymentStatus.COMPLETED);
+        if(listener != null){
+            listener.paymentCompleted(this);
+        }
+    }
     public boolean refundPayment (){
         if(status == PaymentStatus.COMPLETED){
             setStatus(PaymentStatus.REFUNDED);
+            if(listener != null){
+                listener.paymentRefunded(this);
+            }
             return true;
         }
         return false;
@@ -494,10 +763,31 @@ interface IRefundable {
     double calculateRefundAmount();
     boolean isRefundable();
 }
+
+interface IBookingEventListener {
+    default void flightAdded(AbstractFlight flight) {}
+    default void flightChanged(AbstractFlight flight, long previousDepartureDay) {}
+    // the flight now flies with another aircraft, on an empty seat map of flight.getLayout(); its
+    // bookings follow as bookingRescheduled or bookingCancelled
+    default void aircraftChanged(AbstractFlight flight) {}
+    default void bookingConfirmed(AbstractBooking booking) {}
+    default void bookingCancelled(AbstractBooking booking) {}
+    default void paymentCompleted(AbstractPaymentProcessor payment) {}
+    default void paymentRefunded(AbstractPaymentProcessor payment) {}
+    // after the booking's flight was retimed or moved to another aircraft; changeFee is what the
+    // booking was charged for a seat change it asked for
+    default void bookingRescheduled(AbstractBooking booking, double changeFee) {}
+    // every status transition, after it happened; the events above come on top for their cases
+    default void bookingStatusChanged(AbstractBooking booking, BookingStatus from, BookingStatus to) {}
+    default void paymentStatusChanged(AbstractPaymentProcessor payment, PaymentStatus from, PaymentStatus to) {}
+}
 class DomesticFlight extends AbstractFlight implements IChangeable {
     private double domesticTaxRate;
     public DomesticFlight(String flightNumber,String origin,String destination,long departureTime,long arrivalTime,double basePrice,double domesticTaxRate){
-        super(flightNumber,origin,destination,departureTime,arrivalTime,basePrice);
+        this(flightNumber,origin,destination,departureTime,arrivalTime,basePrice,domesticTaxRate,null);
+    }
+    public DomesticFlight(String flightNumber,String origin,String destination,long departureTime,long arrivalTime,double basePrice,double domesticTaxRate,AircraftLayout layout){
+        super(flightNumber,origin,destination,departureTime,arrivalTime,basePrice,layout);
         this.domesticTaxRate = domesticTaxRate;
     }
     public double getDomesticTaxRate() {
@@ -509,17 +799,8 @@ class DomesticFlight extends AbstractFlight implements IChangeable {
     }
 
     @Override
-    protected Seat [] initializeSeats (){
-        Seat[] seats = new Seat[50];
-        for(int i = 0 ; i < 10 ; i++){
-            Seat business = new Seat("D" + (i+1),ClassType.BUSINESS);
-            seats[i] = business;
-        }
-        for(int i = 10 ; i < 50 ; i++){
-            Seat economy = new Seat("D" + (i+1),ClassType.ECONOMY);
-            seats[i] = economy;
-        }
-        return seats;
+    protected AircraftLayout initializeLayout (){
+        return AircraftLayout.forName("DOMESTIC");
     }
     public double calculateDomesticTax (){
         return getBasePrice() * getDomesticTaxRate();
@@ -546,7 +827,10 @@ class DomesticFlight extends AbstractFlight implements IChangeable {
 class InternationalFlight extends AbstractFlight implements IChangeable {
     private final String[] requiredDocuments;
     public InternationalFlight( String flightNumber, String origin,String destination,long departureTime,long arrivalTime,double basePrice){
-        super(flightNumber,origin,destination,departureTime,arrivalTime,basePrice);
+        this(flightNumber,origin,destination,departureTime,arrivalTime,basePrice,null);
+    }
+    public InternationalFlight( String flightNumber, String origin,String destination,long departureTime,long arrivalTime,double basePrice,AircraftLayout layout){
+        super(flightNumber,origin,destination,departureTime,arrivalTime,basePrice,layout);
         this.requiredDocuments = new String[] {
                 "Passport", "Visa", "Vaccination Certificate"
         };
@@ -555,21 +839,8 @@ class InternationalFlight extends AbstractFlight implements IChangeable {
         return requiredDocuments;
     }
     @Override
-    protected Seat [] initializeSeats (){
-        Seat[] seats = new Seat[100];
-        for(int i = 0 ; i < 10 ; i++){
-            Seat first = new Seat("I" + (i+1),ClassType.FIRST);
-            seats[i] = first;
-        }
-        for(int i = 10 ; i < 30 ; i++){
-            Seat business = new Seat("I" + (i+1),ClassType.BUSINESS);
-            seats[i] = business;
-        }
-        for(int i = 30 ; i < 100 ; i++){
-            Seat economy = new Seat("I" + (i+1),ClassType.ECONOMY);
-            seats[i] = economy;
-        }
-        return seats;
+    protected AircraftLayout initializeLayout (){
+        return AircraftLayout.forName("INTERNATIONAL");
     }
     @Override
     public boolean change ( ChangeRequest request ){
@@ -596,6 +867,15 @@ class StandardBooking extends AbstractBooking implements ICancellable, IRefundab
         super(flight,passengers,pricingStrategy);
         this.insuranceIncluded = insuranceIncluded;
     }
+    public StandardBooking (AbstractFlight flight, Passenger [] passengers,AbstractPricingStrategy pricingStrategy,boolean insuranceIncluded,ClassType classType){
+        this(flight,passengers,pricingStrategy,insuranceIncluded);
+        this.classType = classType;
+    }
+    StandardBooking (AbstractFlight flight, Passenger [] passengers,AbstractPricingStrategy pricingStrategy,boolean insuranceIncluded,
+                     double totalPrice,long bookingNumber,long bookingTime){
+        super(flight,passengers,pricingStrategy,totalPrice,bookingNumber,bookingTime);
+        this.insuranceIncluded = insuranceIncluded;
+    }
     public boolean isInsuranceIncluded() {
         return insuranceIncluded;
     }
@@ -605,16 +885,22 @@ class StandardBooking extends AbstractBooking implements ICancellable, IRefundab
     }
     @Override
     public boolean cancel (){
-        if(isCancellationAllowed()){
-            setStatus(BookingStatus.CANCELLED);
-            for(int i = 0 ; i < assignedSeats.length ; i++){
-                if(assignedSeats[i] != null){
-                    assignedSeats[i].release();
+        long start = Metrics.DEFAULT.cancel.start();
+        try{
+            if(isCancellationAllowed() && StatusTransitions.allowed(status, BookingStatus.CANCELLED)){
+                setStatus(BookingStatus.CANCELLED);
+                releaseSeats();
+                if(listener != null){
+                    listener.bookingCancelled(this);
                 }
+                Metrics.DEFAULT.cancellations.increment();
+                return true;
             }
-            return true;
+            return false;
+        }
+        finally{
+            Metrics.DEFAULT.cancel.recordSince(start);
         }
-        return false;
     }
     @Override
     public double calculateCancellationFee (){
@@ -640,12 +926,19 @@ class StandardBooking extends AbstractBooking implements ICancellable, IRefundab
     }
     @Override
     public boolean processRefund (){
-        if(isRefundable()){
-            double refundAmount = calculateRefundAmount();
-            System.out.println("Refund process executed successfully.Refund amount: " + refundAmount);
-            return true;
+        long start = Metrics.DEFAULT.processRefund.start();
+        try{
+            if(isRefundable()){
+                double refundAmount = calculateRefundAmount();
+                System.out.println("Refund process executed successfully.Refund amount: " + refundAmount);
+                Metrics.DEFAULT.refunds.increment();
+                return true;
+            }
+            return false;
+        }
+        finally{
+            Metrics.DEFAULT.processRefund.recordSince(start);
         }
-        return false;
     }
     @Override
     public double calculateRefundAmount (){
@@ -661,6 +954,7 @@ class SeasonalPricingStrategy extends AbstractPricingStrategy implements IPricin
     private final double highSeasonRate;
     private long[] highSeasonStartDates;
     private long[] highSeasonEndDates;
+    private volatile FareTable fareTable;
     public SeasonalPricingStrategy ( double taxRate , double discountRate ){
         super(taxRate,discountRate);
         this.lowSeasonRate = 0.8;
@@ -699,6 +993,24 @@ class SeasonalPricingStrategy extends AbstractPricingStrategy implements IPricin
         }
         return false;
     }
+    // Built once per tax/discount configuration; applyPromoCode and the rate setters cause a rebuild
+    // on the next lookup.
+    public FareTable getFareTable() {
+        FareTable table = fareTable;
+        if(table == null || !table.matches(getTaxRate(), getDiscountRate())){
+            table = new FareTable(getTaxRate(), getDiscountRate(), lowSeasonRate, highSeasonRate,
+                    highSeasonStartDates, highSeasonEndDates);
+            fareTable = table;
+        }
+        return table;
+    }
+    @Override
+    public double calculateFinalPrice ( AbstractFlight flight , int passengerCount ){
+        long start = Metrics.DEFAULT.calculateFinalPrice.start();
+        double price = getFareTable().finalPrice(flight, passengerCount);
+        Metrics.DEFAULT.calculateFinalPrice.recordSince(start);
+        return price;
+    }
     @Override
     public double calculateBasePrice ( AbstractFlight flight ){
         double basePrice = super.calculateBasePrice(flight);
@@ -708,6 +1020,8 @@ class SeasonalPricingStrategy extends AbstractPricingStrategy implements IPricin
         }
         return basePrice * getLowSeasonRate();
     }
+    // Pricing a flight leaves nothing behind in the strategy; these start from setBasePrice's value,
+    // the overloads below from the flight's own seasonal fare.
     @Override
     public double getPriceForClass ( ClassType type ){
         if(type.equals(ClassType.FIRST)){
@@ -722,10 +1036,15 @@ class SeasonalPricingStrategy extends AbstractPricingStrategy implements IPricin
     }
     @Override
     public double getPriceForDate ( long date ){
-        if(isHighSeason(date)){
-            return getBasePrice() * getHighSeasonRate();
-        }
-        return getBasePrice() * getLowSeasonRate();
+        return getBasePrice() * getFareTable().seasonRate(date);
+    }
+    // seasonal fare of the class on the flight, before discount and tax
+    public double getPriceForClass ( AbstractFlight flight , ClassType type ){
+        return getFareTable().classPrice(flight, type);
+    }
+    // fare of the flight if it departed at date, before discount and tax
+    public double getPriceForDate ( AbstractFlight flight , long date ){
+        return flight.getBasePrice() * getFareTable().seasonRate(date);
     }
     @Override
     public boolean applyPromoCode ( String code ){
@@ -740,6 +1059,414 @@ class SeasonalPricingStrategy extends AbstractPricingStrategy implements IPricin
         return false;
     }
 }
+// Legal status transitions of bookings, payments and flights. Setters check against these tables
+// and throw IllegalStateException on anything else; setting the current status again is a no-op.
+final class StatusTransitions {
+    private static final boolean[][] BOOKING = new boolean[BookingStatus.values().length][BookingStatus.values().length];
+    private static final boolean[][] PAYMENT = new boolean[PaymentStatus.values().length][PaymentStatus.values().length];
+    private static final boolean[][] FLIGHT = new boolean[FlightStatus.values().length][FlightStatus.values().length];
+    static {
+        allow(BOOKING, BookingStatus.PENDING, BookingStatus.CONFIRMED, BookingStatus.FAILED, BookingStatus.CANCELLED, BookingStatus.EXPIRED);
+        // FAILED may be retried; a confirmation whose listener threw is rolled back to FAILED
+        allow(BOOKING, BookingStatus.FAILED, BookingStatus.CONFIRMED);
+        allow(BOOKING, BookingStatus.CONFIRMED, BookingStatus.CANCELLED, BookingStatus.NO_SHOW, BookingStatus.DENIED_BOARDING, BookingStatus.FAILED);
+        allow(PAYMENT, PaymentStatus.PENDING, PaymentStatus.AUTHORIZED, PaymentStatus.COMPLETED, PaymentStatus.FAILED);
+        allow(PAYMENT, PaymentStatus.AUTHORIZED, PaymentStatus.COMPLETED, PaymentStatus.FAILED);
+        allow(PAYMENT, PaymentStatus.FAILED, PaymentStatus.AUTHORIZED, PaymentStatus.COMPLETED);
+        allow(PAYMENT, PaymentStatus.COMPLETED, PaymentStatus.REFUNDED);
+        allow(FLIGHT, FlightStatus.SCHEDULED, FlightStatus.DELAYED, FlightStatus.BOARDING, FlightStatus.DEPARTED, FlightStatus.CANCELLED);
+        allow(FLIGHT, FlightStatus.DELAYED, FlightStatus.SCHEDULED, FlightStatus.BOARDING, FlightStatus.DEPARTED, FlightStatus.CANCELLED);
+        allow(FLIGHT, FlightStatus.BOARDING, FlightStatus.DELAYED, FlightStatus.DEPARTED, FlightStatus.CANCELLED);
+        allow(FLIGHT, FlightStatus.DEPARTED, FlightStatus.ARRIVED);
+    }
+    private StatusTransitions(){
+    }
+    @SafeVarargs
+    private static <E extends Enum<E>> void allow(boolean[][] table, E from, E... to){
+        for(E status : to){
+            table[from.ordinal()][status.ordinal()] = true;
+        }
+    }
+    public static boolean allowed(BookingStatus from, BookingStatus to){
+        return from == to || BOOKING[from.ordinal()][to.ordinal()];
+    }
+    public static boolean allowed(PaymentStatus from, PaymentStatus to){
+        return from == to || PAYMENT[from.ordinal()][to.ordinal()];
+    }
+    public static boolean allowed(FlightStatus from, FlightStatus to){
+        return from == to || FLIGHT[from.ordinal()][to.ordinal()];
+    }
+    static void check(boolean allowed, Enum<?> from, Enum<?> to){
+        if(!allowed){
+            throw new IllegalStateException("Illegal " + to.getDeclaringClass().getSimpleName() + " transition " + from + " -> " + to);
+        }
+    }
+}
+// Immutable, precomputed form of SeasonalPricingStrategy's formula. Season membership is looked up
+// per UTC day; only the few days a season boundary falls inside are checked against the exact
+// window. Prices are computed with the same operations in the same order as calculateFinalPrice,
+// so results are identical, and the table can be shared freely between threads.
+final class FareTable {
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final byte LOW = 0;
+    private static final byte HIGH = 1;
+    private static final byte MIXED = 2;
+    private static final double[] CLASS_MULTIPLIERS = new double[ClassType.values().length];
+    static {
+        CLASS_MULTIPLIERS[ClassType.ECONOMY.ordinal()] = 1.0;
+        CLASS_MULTIPLIERS[ClassType.BUSINESS.ordinal()] = 2.0;
+        CLASS_MULTIPLIERS[ClassType.FIRST.ordinal()] = 3.0;
+    }
+    private final double taxRate;
+    private final double discountRate;
+    private final double lowRate;
+    private final double highRate;
+    private final long[] starts;
+    private final long[] ends;
+    private final long firstDay;
+    private final byte[] days;
+
+    FareTable(double taxRate, double discountRate, double lowRate, double highRate, long[] starts, long[] ends){
+        this.taxRate = taxRate;
+        this.discountRate = discountRate;
+        this.lowRate = lowRate;
+        this.highRate = highRate;
+        this.starts = starts.clone();
+        this.ends = ends.clone();
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for(int i = 0 ; i < this.starts.length ; i++){
+            if(this.starts[i] <= this.ends[i]){
+                first = Math.min(first, Math.floorDiv(this.starts[i], MILLIS_PER_DAY));
+                last = Math.max(last, Math.floorDiv(this.ends[i], MILLIS_PER_DAY));
+            }
+        }
+        if(first > last){
+            this.firstDay = 0;
+            this.days = new byte[0];
+            return;
+        }
+        this.firstDay = first;
+        this.days = new byte[(int) (last - first + 1)];
+        for(int d = 0 ; d < days.length ; d++){
+            long dayStart = (first + d) * MILLIS_PER_DAY;
+            long dayEnd = dayStart + MILLIS_PER_DAY - 1;
+            byte kind = LOW;
+            for(int i = 0 ; i < this.starts.length && kind != HIGH ; i++){
+                if(this.starts[i] <= dayStart && dayEnd <= this.ends[i]){
+                    kind = HIGH;
+                }
+                else if(this.starts[i] <= dayEnd && dayStart <= this.ends[i]){
+                    kind = MIXED;
+                }
+            }
+            days[d] = kind;
+        }
+    }
+    boolean matches(double taxRate, double discountRate){
+        return this.taxRate == taxRate && this.discountRate == discountRate;
+    }
+    public double seasonRate(long time){
+        long day = Math.floorDiv(time, MILLIS_PER_DAY) - firstDay;
+        if(day < 0 || day >= days.length){
+            return lowRate;
+        }
+        byte kind = days[(int) day];
+        if(kind == MIXED){
+            return isHighSeason(time) ? highRate : lowRate;
+        }
+        return kind == HIGH ? highRate : lowRate;
+    }
+    private boolean isHighSeason(long time){
+        for(int i = 0 ; i < starts.length ; i++){
+            if(time >= starts[i] && time <= ends[i]){
+                return true;
+            }
+        }
+        return false;
+    }
+    public double basePrice(AbstractFlight flight){
+        return flight.getBasePrice() * seasonRate(flight.getDepartureTime());
+    }
+    public double pricePerPassenger(AbstractFlight flight){
+        double base = basePrice(flight);
+        double discounted = base - base * discountRate;
+        return discounted + discounted * taxRate;
+    }
+    public double finalPrice(AbstractFlight flight, int passengerCount){
+        return passengerCount * pricePerPassenger(flight);
+    }
+    public double classPrice(AbstractFlight flight, ClassType type){
+        double base = basePrice(flight);
+        return type == ClassType.ECONOMY ? base : base * CLASS_MULTIPLIERS[type.ordinal()];
+    }
+}
+// Revenue-management pricing: each ClassType is priced from its live sold-seat ratio and the days
+// left to departure, through fare buckets. The fare of every class is precomputed in an immutable
+// per-flight FareBuckets table read through an AtomicReference, so pricing is a lock-free read and
+// never blocks a seat sale. The table records the sold-seat range its load bucket covers; a lookup
+// that finds the class outside that range (or the flight, rates or day band changed) builds the
+// next table and swaps it in with one CAS.
+class LoadFactorPricingStrategy extends AbstractPricingStrategy implements IPricingStrategy {
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final ClassType[] CLASS_TYPES = ClassType.values();
+    private static final double[] CLASS_MULTIPLIERS = { 1.0, 2.0, 3.0 }; // by ClassType ordinal, as in FareTable
+    static final double[] DEFAULT_LOAD_THRESHOLDS = { 0.0, 0.5, 0.7, 0.85, 0.95 };
+    static final double[] DEFAULT_LOAD_MULTIPLIERS = { 0.8, 1.0, 1.25, 1.6, 2.0 };
+    static final int[] DEFAULT_DAY_THRESHOLDS = { 60, 21, 7, 0 }; // at least this many days out
+    static final double[] DEFAULT_DAY_MULTIPLIERS = { 0.9, 1.0, 1.2, 1.5 };
+    private final double[] loadThresholds;
+    private final double[] loadMultipliers;
+    private final int[] dayThresholds;
+    private final double[] dayMultipliers;
+    // flights are held weakly, so the table of a flight nothing else references any more goes too
+    private final ConcurrentHashMap<Object, AtomicReference<FareBuckets>> tables = new ConcurrentHashMap<>();
+    private final ReferenceQueue<AbstractFlight> collected = new ReferenceQueue<>();
+    private final LongAdder swaps = new LongAdder();
+
+    // Weak table key of a flight, hashed by identity like the flight itself.
+    private static final class FlightRef extends WeakReference<AbstractFlight> {
+        private final int hash;
+        FlightRef ( AbstractFlight flight , ReferenceQueue<AbstractFlight> queue ){
+            super(flight, queue);
+            this.hash = System.identityHashCode(flight);
+        }
+        @Override
+        public int hashCode (){
+            return hash;
+        }
+        @Override
+        public boolean equals ( Object other ){
+            if(other == this){
+                return true;
+            }
+            AbstractFlight flight = get();
+            return flight != null && other instanceof FlightRef && ((FlightRef) other).get() == flight;
+        }
+    }
+    // What a lookup passes instead of a FlightRef, so reading a table allocates no reference.
+    private static final class Lookup {
+        private final AbstractFlight flight;
+        Lookup ( AbstractFlight flight ){
+            this.flight = flight;
+        }
+        @Override
+        public int hashCode (){
+            return System.identityHashCode(flight);
+        }
+        @Override
+        public boolean equals ( Object other ){
+            return other instanceof FlightRef && ((FlightRef) other).get() == flight;
+        }
+    }
+
+    public LoadFactorPricingStrategy ( double taxRate , double discountRate ){
+        this(taxRate, discountRate, DEFAULT_LOAD_THRESHOLDS, DEFAULT_LOAD_MULTIPLIERS, DEFAULT_DAY_THRESHOLDS, DEFAULT_DAY_MULTIPLIERS);
+    }
+    // loadThresholds ascend from 0 (sold share at which each bucket opens), dayThresholds descend to 0
+    public LoadFactorPricingStrategy ( double taxRate , double discountRate , double[] loadThresholds , double[] loadMultipliers ,
+                                       int[] dayThresholds , double[] dayMultipliers ){
+        super(taxRate, discountRate);
+        if(loadThresholds.length == 0 || loadThresholds.length != loadMultipliers.length || loadThresholds[0] != 0
+                || dayThresholds.length == 0 || dayThresholds.length != dayMultipliers.length || dayThresholds[dayThresholds.length - 1] != 0){
+            throw new IllegalArgumentException("Bucket thresholds must match their multipliers and start the ladder at 0");
+        }
+        this.loadThresholds = loadThresholds.clone();
+        this.loadMultipliers = loadMultipliers.clone();
+        this.dayThresholds = dayThresholds.clone();
+        this.dayMultipliers = dayMultipliers.clone();
+    }
+    // how many times a flight's table was rebuilt because a bucket boundary was crossed
+    public long getSwaps (){
+        return swaps.sum();
+    }
+    // Drops the table of a flight that no longer sells, e.g. after departure.
+    public void forget ( AbstractFlight flight ){
+        tables.remove(new Lookup(flight));
+    }
+    // flights with a table that is still held
+    int getTableCount (){
+        expunge();
+        return tables.size();
+    }
+    private void expunge (){
+        Reference<? extends AbstractFlight> ref;
+        while((ref = collected.poll()) != null){
+            tables.remove(ref);
+        }
+    }
+    public FareBuckets getFareBuckets ( AbstractFlight flight ){
+        return getFareBuckets(flight, null);
+    }
+    // With a type only that class's load bucket has to hold, enough when just its price is read.
+    private FareBuckets getFareBuckets ( AbstractFlight flight , ClassType type ){
+        AtomicReference<FareBuckets> table = tables.get(new Lookup(flight));
+        if(table == null){
+            expunge();
+            table = tables.computeIfAbsent(new FlightRef(flight, collected), key -> new AtomicReference<>());
+        }
+        long now = System.currentTimeMillis();
+        FareBuckets current = table.get();
+        if(current != null && current.isValid(flight, type, now, getTaxRate(), getDiscountRate())){
+            return current;
+        }
+        FareBuckets next = build(flight, now);
+        expunge();
+        if(table.compareAndSet(current, next)){
+            swaps.increment();
+            return next;
+        }
+        // another thread swapped first; its table is as fresh as ours
+        FareBuckets winner = table.get();
+        return winner != null ? winner : next;
+    }
+    private FareBuckets build ( AbstractFlight flight , long now ){
+        long flightVersion = flight.getVersion();
+        double taxRate = getTaxRate();
+        double discountRate = getDiscountRate();
+        long departure = flight.getDepartureTime();
+        int band = dayBand(departure, now);
+        // the band holds while fewer whole days than the previous threshold and at least its own are left
+        long validFrom = band == 0 ? Long.MIN_VALUE : departure - (long) dayThresholds[band - 1] * MILLIS_PER_DAY + 1;
+        long validUntil = band == dayThresholds.length - 1 ? Long.MAX_VALUE : departure - (long) dayThresholds[band] * MILLIS_PER_DAY + 1;
+        SeatMap seatMap = flight.getSeatMap();
+        int[] minSold = new int[CLASS_TYPES.length];
+        int[] maxSold = new int[CLASS_TYPES.length];
+        double[] fares = new double[CLASS_TYPES.length];
+        double[] prices = new double[CLASS_TYPES.length];
+        for(int c = 0 ; c < CLASS_TYPES.length ; c++){
+            int seats = seatMap.getLayout().size(CLASS_TYPES[c]);
+            int sold = sold(flight, CLASS_TYPES[c]);
+            int bucket = loadBucket(seats, sold);
+            minSold[c] = bucket == 0 ? Integer.MIN_VALUE : threshold(seats, bucket);
+            maxSold[c] = bucket == loadThresholds.length - 1 ? Integer.MAX_VALUE : threshold(seats, bucket + 1) - 1;
+            fares[c] = flight.getBasePrice() * loadMultipliers[bucket] * CLASS_MULTIPLIERS[c] * dayMultipliers[band];
+            double discounted = fares[c] - fares[c] * discountRate;
+            prices[c] = discounted + discounted * taxRate;
+        }
+        return new FareBuckets(seatMap, flightVersion, taxRate, discountRate, validFrom, validUntil, minSold, maxSold,
+                dayMultipliers[band], fares, prices);
+    }
+    // seats sold in the class, counting passengers overbooked past the seats
+    static int sold ( AbstractFlight flight , ClassType type ){
+        SeatMap seatMap = flight.getSeatMap();
+        OverbookingManager overbooking = flight.getOverbooking();
+        return seatMap.getLayout().size(type) - seatMap.availableCount(type) + (overbooking == null ? 0 : overbooking.getOversold(type));
+    }
+    // the fewest sold seats at which bucket opens
+    private int threshold ( int seats , int bucket ){
+        return (int) Math.ceil(loadThresholds[bucket] * seats);
+    }
+    private int loadBucket ( int seats , int sold ){
+        int bucket = 0;
+        while(bucket + 1 < loadThresholds.length && sold >= threshold(seats, bucket + 1)){
+            bucket++;
+        }
+        return bucket;
+    }
+    private int dayBand ( long departure , long now ){
+        long daysLeft = Math.floorDiv(departure - now, MILLIS_PER_DAY);
+        int band = 0;
+        while(band + 1 < dayThresholds.length && daysLeft < dayThresholds[band]){
+            band++;
+        }
+        return band;
+    }
+    @Override
+    public double calculateFinalPrice ( AbstractFlight flight , int passengerCount ){
+        return calculateFinalPrice(flight, ClassType.ECONOMY, passengerCount);
+    }
+    @Override
+    public double calculateFinalPrice ( AbstractFlight flight , ClassType type , int passengerCount ){
+        long start = Metrics.DEFAULT.calculateFinalPrice.start();
+        double price = passengerCount * getFareBuckets(flight, type).getPrice(type);
+        Metrics.DEFAULT.calculateFinalPrice.recordSince(start);
+        return price;
+    }
+    @Override
+    public double calculateBasePrice ( AbstractFlight flight ){
+        return getFareBuckets(flight).getFare(ClassType.ECONOMY);
+    }
+    // The strategy is shared between flights and keeps no fare of the last one priced, so without a
+    // flight the class and date prices start from getBasePrice(), as set with setBasePrice.
+    @Override
+    public double getPriceForClass ( ClassType type ){
+        return getBasePrice() * CLASS_MULTIPLIERS[type.ordinal()];
+    }
+    @Override
+    public double getPriceForDate ( long date ){
+        return getBasePrice() * dayMultipliers[dayBand(date, System.currentTimeMillis())];
+    }
+    // fare of the class on the flight at its current load, before discount and tax
+    public double getPriceForClass ( AbstractFlight flight , ClassType type ){
+        return getFareBuckets(flight, type).getFare(type);
+    }
+    // economy fare of the flight at its current load if it departed at date, booked now
+    public double getPriceForDate ( AbstractFlight flight , long date ){
+        FareBuckets buckets = getFareBuckets(flight, ClassType.ECONOMY);
+        return buckets.getFare(ClassType.ECONOMY) / buckets.dayMultiplier * dayMultipliers[dayBand(date, System.currentTimeMillis())];
+    }
+    // fares follow demand; there are no promotion codes
+    @Override
+    public boolean applyPromoCode ( String code ){
+        return false;
+    }
+
+    // One flight's fares for the current load and day band, immutable once built.
+    static final class FareBuckets {
+        private final SeatMap seatMap;
+        private final long flightVersion;
+        private final double taxRate;
+        private final double discountRate;
+        private final long validFrom;
+        private final long validUntil;
+        private final int[] minSold;
+        private final int[] maxSold;
+        private final double dayMultiplier;
+        private final double[] fares;
+        private final double[] prices;
+        FareBuckets ( SeatMap seatMap , long flightVersion , double taxRate , double discountRate , long validFrom , long validUntil ,
+                      int[] minSold , int[] maxSold , double dayMultiplier , double[] fares , double[] prices ){
+            this.seatMap = seatMap;
+            this.flightVersion = flightVersion;
+            this.taxRate = taxRate;
+            this.discountRate = discountRate;
+            this.validFrom = validFrom;
+            this.validUntil = validUntil;
+            this.minSold = minSold;
+            this.maxSold = maxSold;
+            this.dayMultiplier = dayMultiplier;
+            this.fares = fares;
+            this.prices = prices;
+        }
+        // fare before discount and tax
+        public double getFare ( ClassType type ){
+            return fares[type.ordinal()];
+        }
+        // what one passenger pays in the class
+        public double getPrice ( ClassType type ){
+            return prices[type.ordinal()];
+        }
+        // type null checks every class
+        boolean isValid ( AbstractFlight flight , ClassType type , long now , double taxRate , double discountRate ){
+            if(flight.getSeatMap() != seatMap || flight.getVersion() != flightVersion || now < validFrom || now >= validUntil
+                    || this.taxRate != taxRate || this.discountRate != discountRate){
+                return false;
+            }
+            if(type != null){
+                int sold = sold(flight, type);
+                return sold >= minSold[type.ordinal()] && sold <= maxSold[type.ordinal()];
+            }
+            for(int c = 0 ; c < CLASS_TYPES.length ; c++){
+                int sold = sold(flight, CLASS_TYPES[c]);
+                if(sold < minSold[c] || sold > maxSold[c]){
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
 class CreditCardPayment extends AbstractPaymentProcessor {
     private String cardNumber;         // örn: "1234567812345678"
     private String cardHolderName;     // örn: "John Smith"
@@ -787,8 +1514,7 @@ class CreditCardPayment extends AbstractPaymentProcessor {
     @Override
     public boolean processPayment (){
         if(validatePaymentDetails()){
-            setPaymentTime(System.currentTimeMillis());
-            setStatus(PaymentStatus.COMPLETED);
+            complete();
             return true;
         }
         else{
@@ -798,6 +1524,15 @@ class CreditCardPayment extends AbstractPaymentProcessor {
     }
     @Override
     public boolean validatePaymentDetails (){
+        long start = Metrics.DEFAULT.validatePaymentDetails.start();
+        boolean valid = checkPaymentDetails();
+        if(!valid){
+            Metrics.DEFAULT.invalidPayments.increment();
+        }
+        Metrics.DEFAULT.validatePaymentDetails.recordSince(start);
+        return valid;
+    }
+    private boolean checkPaymentDetails (){
         if(getCardNumber() == null || getCardNumber().isEmpty() || getCardNumber().length() < 13 || getCardNumber().length() > 19){
             return false;
         }
@@ -838,143 +1573,1189 @@ class CreditCardPayment extends AbstractPaymentProcessor {
 
     }
 }
+// A passenger either keeps its own fields, like any object, or is a view of one row of a
+// PassengerStore, where names, documents and contacts live in the store's columns and byte arena and
+// the passenger on the heap is just the store and the row; setters write through to the row.
 class Passenger {
-    private final String id;
-    private String firstName;
-    private String lastName;
-    private long birthDate;
-    private String passportNumber;
-    private String nationality;
-    private String contactEmail;
-    private String contactPhone;
+    private final PassengerStore store; // null when the passenger keeps its own fields
+    private final int row;
+    private final Fields fields;
+
+    private static final class Fields {
+        final long idNumber;
+        String firstName;
+        String lastName;
+        long birthDate;
+        String passportNumber;
+        String nationality;
+        String contactEmail;
+        String contactPhone;
+        Fields(long idNumber){
+            this.idNumber = idNumber;
+        }
+    }
     public Passenger ( String firstName , String lastName , long birthDate ,String passportNumber , String nationality ,String contactEmail , String contactPhone ){
-        this.firstName = firstName;
-        this.lastName = lastName;
-        this.birthDate = birthDate;
-        this.passportNumber = passportNumber;
-        this.nationality = nationality;
-        this.contactEmail = contactEmail;
-        this.contactPhone = contactPhone;
-        int randomNumber = (int) (Math.random() * 1000);
-        this.id = "P" + System.currentTimeMillis() + "-" + randomNumber;
+        this.store = null;
+        this.row = -1;
+        this.fields = new Fields(IdGenerator.DEFAULT.nextId());
+        fields.firstName = firstName;
+        fields.lastName = lastName;
+        fields.birthDate = birthDate;
+        fields.passportNumber = passportNumber;
+        fields.nationality = nationality;
+        fields.contactEmail = contactEmail;
+        fields.contactPhone = contactPhone;
+    }
+    // a new row of the store, which keeps it as long as the store lives
+    public Passenger ( PassengerStore store , String firstName , String lastName , long birthDate ,String passportNumber , String nationality ,String contactEmail , String contactPhone ){
+        this.store = store;
+        this.row = store.add(IdGenerator.DEFAULT.nextId(), firstName, lastName, birthDate, passportNumber, nationality, contactEmail, contactPhone);
+        this.fields = null;
+    }
+    Passenger ( PassengerStore store , int row ){
+        this.store = store;
+        this.row = row;
+        this.fields = null;
     }
     public boolean validateDetails (){
+        String firstName = getFirstName();
+        String lastName = getLastName();
         if(firstName == null || firstName.isEmpty() || lastName == null || lastName.isEmpty()){
             return false;
         }
+        String passportNumber = getPassportNumber();
         if(passportNumber == null || passportNumber.isEmpty() || passportNumber.length() < 5){
             return false;
         }
+        String contactEmail = getContactEmail();
         if(contactEmail == null || contactEmail.isEmpty() || !contactEmail.contains("@")){
             return false;
         }
+        String contactPhone = getContactPhone();
         if(contactPhone == null || contactPhone.isEmpty()){
             return false;
         }
         return true;
     }
     public String getId() {
-        return id;
+        return IdGenerator.format("P", getIdNumber());
+    }
+
+    public long getIdNumber() {
+        return fields != null ? fields.idNumber : store.idNumber(row);
     }
 
     public String getFirstName() {
-        return firstName;
+        return fields != null ? fields.firstName : store.string(row, PassengerStore.FIRST_NAME);
     }
 
     public String getLastName() {
-        return lastName;
+        return fields != null ? fields.lastName : store.string(row, PassengerStore.LAST_NAME);
     }
 
     public long getBirthDate() {
-        return birthDate;
+        return fields != null ? fields.birthDate : store.birthDate(row);
     }
 
     public String getPassportNumber() {
-        return passportNumber;
+        return fields != null ? fields.passportNumber : store.string(row, PassengerStore.PASSPORT_NUMBER);
     }
 
     public String getNationality() {
-        return nationality;
+        return fields != null ? fields.nationality : store.nationality(row);
     }
 
     public String getContactEmail() {
-        return contactEmail;
+        return fields != null ? fields.contactEmail : store.string(row, PassengerStore.CONTACT_EMAIL);
     }
 
     public String getContactPhone() {
-        return contactPhone;
+        return fields != null ? fields.contactPhone : store.string(row, PassengerStore.CONTACT_PHONE);
+    }
+    // null for a passenger that keeps its own fields
+    public PassengerStore getStore() {
+        return store;
+    }
+    // -1 for a passenger that keeps its own fields
+    public int getRow() {
+        return row;
     }
     public void setFirstName(String firstName) {
-        this.firstName = firstName;
+        if(fields != null){
+            fields.firstName = firstName;
+        }
+        else{
+            store.setString(row, PassengerStore.FIRST_NAME, firstName);
+        }
     }
 
     public void setLastName(String lastName) {
-        this.lastName = lastName;
+        if(fields != null){
+            fields.lastName = lastName;
+        }
+        else{
+            store.setString(row, PassengerStore.LAST_NAME, lastName);
+        }
     }
 
     public void setBirthDate(long birthDate) {
-        this.birthDate = birthDate;
+        if(fields != null){
+            fields.birthDate = birthDate;
+        }
+        else{
+            store.setBirthDate(row, birthDate);
+        }
     }
 
     public void setPassportNumber(String passportNumber) {
-        this.passportNumber = passportNumber;
+        if(fields != null){
+            fields.passportNumber = passportNumber;
+        }
+        else{
+            store.setString(row, PassengerStore.PASSPORT_NUMBER, passportNumber);
+        }
     }
 
     public void setNationality(String nationality) {
-        this.nationality = nationality;
+        if(fields != null){
+            fields.nationality = nationality;
+        }
+        else{
+            store.setNationality(row, nationality);
+        }
     }
 
     public void setContactEmail(String contactEmail) {
-        this.contactEmail = contactEmail;
+        if(fields != null){
+            fields.contactEmail = contactEmail;
+        }
+        else{
+            store.setString(row, PassengerStore.CONTACT_EMAIL, contactEmail);
+        }
     }
 
     public void setContactPhone(String contactPhone) {
-        this.contactPhone = contactPhone;
+        if(fields != null){
+            fields.contactPhone = contactPhone;
+        }
+        else{
+            store.setString(row, PassengerStore.CONTACT_PHONE, contactPhone);
+        }
     }
 
     public int getAge (){
-        return (int) ((System.currentTimeMillis() - birthDate) / (1000L * 60 * 60 * 24 * 365));
+        return (int) ((System.currentTimeMillis() - getBirthDate()) / (1000L * 60 * 60 * 24 * 365));
     }
-}
-class Seat {
-    private final String seatNumber;
-    private final ClassType classType;
-    private boolean available;
-    public Seat ( String seatNumber , ClassType classType ){
-        this.seatNumber = seatNumber;
-        this.classType = classType;
-        this.available = true;
+    // two views of the same row are the same passenger; one with its own fields is only itself
+    @Override
+    public boolean equals(Object other){
+        if(this == other){
+            return true;
+        }
+        if(fields != null || !(other instanceof Passenger)){
+            return false;
+        }
+        Passenger passenger = (Passenger) other;
+        return store == passenger.store && row == passenger.row;
     }
-    public String getSeatNumber() {
-        return seatNumber;
+    @Override
+    public int hashCode(){
+        return fields != null ? System.identityHashCode(this) : row;
     }
+}
+// Columnar storage behind Passenger. Rows live in blocks of 16k: the passenger id, a reference to
+// the row's record in the byte arena, the birth date in minutes and the nationality as an index
+// into an interned code table. A record holds the five text fields back to back, UTF-8 with a one-
+// or two-byte length, in 1 MB arena pages, so a million passengers are a few dozen arrays instead
+// of millions of Strings. Appends and setters lock the store; reads do not. Setting a text field
+// writes a new record and leaves the old bytes unused (getWastedBytes). Rows are never removed: a
+// store keeps everyone added to it until the store itself is dropped, so it belongs to whatever
+// holds those passengers, e.g. the FlightInventory that journal and snapshot replay rebuild into.
+class PassengerStore {
+    static final int FIRST_NAME = 0;
+    static final int LAST_NAME = 1;
+    static final int PASSPORT_NUMBER = 2;
+    static final int CONTACT_EMAIL = 3;
+    static final int CONTACT_PHONE = 4;
+    private static final int FIELDS = 5;
+    private static final int BLOCK_BITS = 14;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    private static final int PAGE_BITS = 20;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int MAX_FIELD_BYTES = 0x7ffe;
+    private static final int EXACT_BIRTH = Integer.MIN_VALUE; // birth date not in whole minutes, kept in the block's exactBirths
 
-    public ClassType getClassType() {
-        return classType;
+    // Records and birth dates are written with a release store after what they point at, so a
+    // reader that sees a new value also sees the record bytes or the exact birth date behind it.
+    private static final class Block {
+        final long[] ids = new long[BLOCK_SIZE];
+        final AtomicIntegerArray records = new AtomicIntegerArray(BLOCK_SIZE); // arena position / 4
+        final AtomicIntegerArray births = new AtomicIntegerArray(BLOCK_SIZE); // minutes, or EXACT_BIRTH
+        final char[] nationalities = new char[BLOCK_SIZE]; // code index + 1, 0 for none
+        volatile AtomicLongArray exactBirths; // allocated with the block's first EXACT_BIRTH
+    }
+    private volatile Block[] blocks = new Block[0];
+    private volatile byte[][] pages = new byte[0][];
+    private volatile String[] codes = new String[0];
+    private final ConcurrentHashMap<String, Integer> codeIndexes = new ConcurrentHashMap<>();
+    private volatile int size;
+    private long position; // next free arena byte; guarded by this
+    private long wasted; // guarded by this
+    private final byte[][] encoded = new byte[FIELDS][]; // scratch for add and setString; guarded by this
+
+    public synchronized int add ( long idNumber , String firstName , String lastName , long birthDate , String passportNumber ,
+                                  String nationality , String contactEmail , String contactPhone ){
+        int row = size;
+        if((row & (BLOCK_SIZE - 1)) == 0){
+            Block[] grown = Arrays.copyOf(blocks, (row >>> BLOCK_BITS) + 1);
+            grown[row >>> BLOCK_BITS] = new Block();
+            blocks = grown;
+        }
+        Block block = blocks[row >>> BLOCK_BITS];
+        int i = row & (BLOCK_SIZE - 1);
+        block.ids[i] = idNumber;
+        encoded[FIRST_NAME] = encode(firstName);
+        encoded[LAST_NAME] = encode(lastName);
+        encoded[PASSPORT_NUMBER] = encode(passportNumber);
+        encoded[CONTACT_EMAIL] = encode(contactEmail);
+        encoded[CONTACT_PHONE] = encode(contactPhone);
+        block.records.lazySet(i, writeRecord());
+        block.births.lazySet(i, packBirth(block, i, birthDate));
+        block.nationalities[i] = (char) codeOf(nationality);
+        size = row + 1;
+        return row;
+    }
+    // a new view of an existing row
+    public Passenger get ( int row ){
+        checkRow(row);
+        return new Passenger(this, row);
+    }
+    public int size (){
+        return size;
+    }
+    // arena bytes in use, records replaced by setters included
+    public synchronized long getArenaBytes (){
+        return position;
+    }
+    public synchronized long getWastedBytes (){
+        return wasted;
+    }
+    public int getNationalityCount (){
+        return codes.length;
+    }
+    private void checkRow ( int row ){
+        if(row < 0 || row >= size){
+            throw new IndexOutOfBoundsException("No passenger row " + row);
+        }
     }
-    public void setAvailable(boolean available) {
-        this.available = available;
+    private Block block ( int row ){
+        return blocks[row >>> BLOCK_BITS];
+    }
+    long idNumber ( int row ){
+        return block(row).ids[row & (BLOCK_SIZE - 1)];
+    }
+    long birthDate ( int row ){
+        Block block = block(row);
+        int i = row & (BLOCK_SIZE - 1);
+        int minutes = block.births.get(i);
+        return minutes == EXACT_BIRTH ? block.exactBirths.get(i) : minutes * 60000L;
+    }
+    String nationality ( int row ){
+        int code = block(row).nationalities[row & (BLOCK_SIZE - 1)];
+        if(code == 0){
+            return null;
+        }
+        String[] codes = this.codes;
+        // a code set by setNationality may be newer than the table this thread has seen
+        return code <= codes.length ? codes[code - 1] : codeAt(code);
+    }
+    private synchronized String codeAt ( int code ){
+        return codes[code - 1];
+    }
+    String string ( int row , int field ){
+        long at = (long) block(row).records.get(row & (BLOCK_SIZE - 1)) << 2;
+        byte[] page = pages[(int) (at >>> PAGE_BITS)];
+        int offset = (int) (at & (PAGE_SIZE - 1));
+        for(int f = 0 ; ; f++){
+            int header = page[offset] & 0xff;
+            int length;
+            if(header < 0x80){
+                length = header;
+                offset++;
+            }
+            else{
+                length = (header & 0x7f) << 8 | (page[offset + 1] & 0xff);
+                offset += 2;
+            }
+            if(f == field){
+                return length == 0 ? null : decode(page, offset, length - 1);
+            }
+            offset += Math.max(0, length - 1);
+        }
+    }
+    synchronized void setString ( int row , int field , String value ){
+        checkRow(row);
+        for(int f = 0 ; f < FIELDS ; f++){
+            encoded[f] = f == field ? encode(value) : encode(string(row, f));
+        }
+        Block block = block(row);
+        int i = row & (BLOCK_SIZE - 1);
+        wasted += recordLength(block.records.get(i));
+        block.records.lazySet(i, writeRecord());
+    }
+    synchronized void setBirthDate ( int row , long birthDate ){
+        checkRow(row);
+        Block block = block(row);
+        int i = row & (BLOCK_SIZE - 1);
+        block.births.lazySet(i, packBirth(block, i, birthDate));
+    }
+    synchronized void setNationality ( int row , String nationality ){
+        checkRow(row);
+        block(row).nationalities[row & (BLOCK_SIZE - 1)] = (char) codeOf(nationality);
+    }
+    // Minutes when the date is whole minutes in int range; otherwise the exact date goes to the
+    // block's side table first and EXACT_BIRTH points there. Called under the store's lock.
+    private static int packBirth ( Block block , int i , long birthDate ){
+        long minutes = birthDate / 60000L;
+        if(birthDate % 60000L == 0 && minutes > EXACT_BIRTH && minutes <= Integer.MAX_VALUE){
+            return (int) minutes;
+        }
+        AtomicLongArray exact = block.exactBirths;
+        if(exact == null){
+            exact = new AtomicLongArray(BLOCK_SIZE);
+            block.exactBirths = exact;
+        }
+        exact.set(i, birthDate);
+        return EXACT_BIRTH;
+    }
+    private int codeOf ( String nationality ){
+        if(nationality == null){
+            return 0;
+        }
+        Integer index = codeIndexes.get(nationality);
+        if(index == null){
+            if(codes.length == Character.MAX_VALUE){
+                throw new IllegalStateException("Too many distinct nationalities");
+            }
+            String[] grown = Arrays.copyOf(codes, codes.length + 1);
+            grown[codes.length] = nationality;
+            codes = grown; // published before the index, so a reader never sees an index without its code
+            index = codes.length;
+            codeIndexes.put(nationality, index);
+        }
+        return index;
+    }
+    private static byte[] encode ( String value ){
+        if(value == null){
+            return null;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > MAX_FIELD_BYTES){
+            throw new IllegalArgumentException("Passenger field longer than " + MAX_FIELD_BYTES + " bytes");
+        }
+        return bytes;
+    }
+    private static String decode ( byte[] page , int offset , int length ){
+        for(int i = offset ; i < offset + length ; i++){
+            if(page[i] < 0){
+                return new String(page, offset, length, StandardCharsets.UTF_8);
+            }
+        }
+        return new String(page, offset, length, StandardCharsets.ISO_8859_1);
+    }
+    private static int headerLength ( byte[] bytes ){
+        return bytes == null || bytes.length + 1 < 0x80 ? 1 : 2;
+    }
+    private int recordLength ( int record ){
+        long at = (long) record << 2;
+        byte[] page = pages[(int) (at >>> PAGE_BITS)];
+        int start = (int) (at & (PAGE_SIZE - 1));
+        int offset = start;
+        for(int f = 0 ; f < FIELDS ; f++){
+            int header = page[offset] & 0xff;
+            int length = header < 0x80 ? header : (header & 0x7f) << 8 | (page[offset + 1] & 0xff);
+            offset += (header < 0x80 ? 1 : 2) + Math.max(0, length - 1);
+        }
+        return ((offset - start) + 3) & ~3;
+    }
+    // Appends the fields in encoded as one record, 4-byte aligned and never crossing a page.
+    private int writeRecord (){
+        int length = 0;
+        for(byte[] bytes : encoded){
+            length += headerLength(bytes) + (bytes == null ? 0 : bytes.length);
+        }
+        length = (length + 3) & ~3;
+        if((position & (PAGE_SIZE - 1)) + length > PAGE_SIZE){
+            position = (position | (PAGE_SIZE - 1)) + 1;
+        }
+        int pageIndex = (int) (position >>> PAGE_BITS);
+        if(pageIndex == pages.length){
+            byte[][] grown = Arrays.copyOf(pages, pageIndex + 1);
+            grown[pageIndex] = new byte[PAGE_SIZE];
+            pages = grown;
+        }
+        byte[] page = pages[pageIndex];
+        int offset = (int) (position & (PAGE_SIZE - 1));
+        for(byte[] bytes : encoded){
+            int header = bytes == null ? 0 : bytes.length + 1;
+            if(header < 0x80){
+                page[offset++] = (byte) header;
+            }
+            else{
+                page[offset++] = (byte) (0x80 | header >>> 8);
+                page[offset++] = (byte) header;
+            }
+            if(bytes != null){
+                System.arraycopy(bytes, 0, page, offset, bytes.length);
+                offset += bytes.length;
+            }
+        }
+        long record = position >>> 2;
+        if(record > Integer.MAX_VALUE){
+            throw new IllegalStateException("Passenger arena is full");
+        }
+        position += length;
+        return (int) record;
+    }
+}
+class Seat {
+    private final String seatNumber;
+    private final ClassType classType;
+    // availability lives in the owning flight's SeatMap, the seat is only a view of one bit
+    private volatile SeatMap seatMap;
+    private int index;
+    public Seat ( String seatNumber , ClassType classType ){
+        this.seatNumber = seatNumber;
+        this.classType = classType;
+    }
+    // a view of seat index of a layout-backed SeatMap
+    Seat(String seatNumber, ClassType classType, SeatMap seatMap, int index){
+        this.seatNumber = seatNumber;
+        this.classType = classType;
+        this.index = index;
+        this.seatMap = seatMap;
+    }
+    // index first: the volatile seatMap write publishes it, so a reader seeing the map sees its index
+    void attach(SeatMap seatMap, int index){
+        this.index = index;
+        this.seatMap = seatMap;
+    }
+    private SeatMap map(){
+        SeatMap map = seatMap;
+        return map != null ? map : standaloneMap();
+    }
+    private synchronized SeatMap standaloneMap(){
+        if(seatMap == null){
+            new SeatMap(new Seat[]{ this });
+        }
+        return seatMap;
+    }
+    public String getSeatNumber() {
+        return seatNumber;
+    }
+
+    public ClassType getClassType() {
+        return classType;
+    }
+    public int getIndex() {
+        return index;
+    }
+    SeatMap getSeatMapOrNull() {
+        return seatMap;
+    }
+    public void setAvailable(boolean available) {
+        if(available){
+            map().release(index);
+        }
+        else{
+            map().reserve(index);
+        }
     }
     public boolean isAvailable (){
-      return available;
+      return map().isFree(index);
     }
     public boolean reserve (){
-        if(!available){
+        return map().reserve(index);
+    }
+    public boolean release (){
+        return map().release(index);
+    }
+    // two views of the same seat of the same SeatMap are equal
+    @Override
+    public boolean equals(Object other){
+        if(this == other){
+            return true;
+        }
+        if(!(other instanceof Seat)){
             return false;
         }
-        else{
-            setAvailable(false);
-            return true;
+        Seat seat = (Seat) other;
+        return seatMap != null && seatMap == seat.seatMap && index == seat.index;
+    }
+    @Override
+    public int hashCode(){
+        return seatNumber.hashCode();
+    }
+}
+// Immutable seat layout of an aircraft type, shared by every flight that flies it: seat numbers,
+// cabin classes and rows live here once, a flight only keeps the availability bits in its SeatMap.
+// Layouts are read from lines of the form
+//     NAME = CLASS <rows>x<seats per row>, ...   seats numbered by row and letter, e.g. 12C
+//     NAME(PREFIX) = CLASS <seats>, ...          seats numbered PREFIX1, PREFIX2, ... in rows of rowWidth
+// in seat order; blank lines and text after # are ignored. The built-in layouts are registered
+// first, then the file named by -Dflight.layouts, if any, which may redefine them.
+final class AircraftLayout {
+    private static final ClassType[] CLASS_TYPES = ClassType.values();
+    static final String BUILT_IN =
+            "DOMESTIC(D) = BUSINESS 10, ECONOMY 40\n"
+            + "INTERNATIONAL(I) = FIRST 10, BUSINESS 20, ECONOMY 70\n"
+            + "A320 = BUSINESS 3x4, ECONOMY 24x6\n"
+            + "B777 = FIRST 2x4, BUSINESS 8x7, ECONOMY 34x10\n";
+    private static final Map<String, AircraftLayout> LAYOUTS = new ConcurrentHashMap<>();
+    static {
+        try{
+            load(new StringReader(BUILT_IN));
+            String file = System.getProperty("flight.layouts");
+            if(file != null){
+                load(Paths.get(file));
+            }
+        }
+        catch(IOException e){
+            throw new UncheckedIOException(e);
         }
     }
-    public boolean release (){
-        if(available){
+
+    private final String name;
+    private final String[] seatNumbers;
+    private final byte[] classes;
+    private final int[] seatCounts;
+    // Rows are runs of consecutive same-class seats, never crossing a 64-seat word so a row can be
+    // claimed with one CAS in the SeatMap.
+    private final int[] rowOf;
+    private final int[] rowStart;
+    private final int[] rowLength;
+    private volatile Map<String, Integer> seatIndexes; // built by the first indexOf
+
+    // rowLengths gives the seats per row in seat order; null uses rowWidth per class
+    AircraftLayout(String name, String[] seatNumbers, ClassType[] classTypes, int[] rowLengths){
+        this.name = name;
+        this.seatNumbers = seatNumbers.clone();
+        this.classes = new byte[classTypes.length];
+        this.seatCounts = new int[CLASS_TYPES.length];
+        for(int i = 0 ; i < classTypes.length ; i++){
+            classes[i] = (byte) classTypes[i].ordinal();
+            seatCounts[classes[i]]++;
+        }
+        int seatCount = classes.length;
+        this.rowOf = new int[seatCount];
+        int[] starts = new int[seatCount];
+        int[] lengths = new int[seatCount];
+        int rows = 0;
+        int layoutRow = 0;
+        int layoutLeft = rowLengths == null || rowLengths.length == 0 ? 0 : rowLengths[0];
+        for(int i = 0 ; i < seatCount ; ){
+            int width = rowLengths == null ? rowWidth(classTypes[i]) : Math.max(1, layoutLeft);
+            int length = 1;
+            while(i + length < seatCount && length < Math.min(width, SeatMap.MAX_ROW) && classes[i + length] == classes[i]
+                    && ((i + length) >>> 6) == (i >>> 6)){
+                length++;
+            }
+            starts[rows] = i;
+            lengths[rows] = length;
+            for(int k = 0 ; k < length ; k++){
+                rowOf[i + k] = rows;
+            }
+            rows++;
+            i += length;
+            if(rowLengths != null){
+                layoutLeft -= length;
+                if(layoutLeft <= 0 && ++layoutRow < rowLengths.length){
+                    layoutLeft = rowLengths[layoutRow];
+                }
+            }
+        }
+        this.rowStart = Arrays.copyOf(starts, rows);
+        this.rowLength = Arrays.copyOf(lengths, rows);
+    }
+    // One-off layout describing a flight's own Seat objects; it has no name and is not registered.
+    static AircraftLayout of(Seat[] seats, int[] rowLengths){
+        String[] numbers = new String[seats.length];
+        ClassType[] types = new ClassType[seats.length];
+        for(int i = 0 ; i < seats.length ; i++){
+            numbers[i] = seats[i].getSeatNumber();
+            types[i] = seats[i].getClassType();
+        }
+        return new AircraftLayout(null, numbers, types, rowLengths);
+    }
+    // default seats per row when no layout is given: 2-2 in first and business, 3-3 in economy
+    static int rowWidth(ClassType type){
+        return type == ClassType.ECONOMY ? 6 : 4;
+    }
+
+    public static AircraftLayout forName(String name){
+        AircraftLayout layout = LAYOUTS.get(name);
+        if(layout == null){
+            throw new IllegalArgumentException("Unknown aircraft layout " + name);
+        }
+        return layout;
+    }
+    public static void register(AircraftLayout layout){
+        if(layout.getName() == null){
+            throw new IllegalArgumentException("Only named layouts can be registered");
+        }
+        LAYOUTS.put(layout.getName(), layout);
+    }
+    public static Collection<AircraftLayout> registered(){
+        return Collections.unmodifiableCollection(LAYOUTS.values());
+    }
+    public static List<AircraftLayout> load(Path path) throws IOException {
+        try(Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)){
+            return load(reader);
+        }
+    }
+    // Parses and registers every layout in the reader, returning them in file order.
+    public static List<AircraftLayout> load(Reader reader) throws IOException {
+        List<AircraftLayout> layouts = new ArrayList<>();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while((line = lines.readLine()) != null){
+            lineNumber++;
+            int comment = line.indexOf('#');
+            line = (comment >= 0 ? line.substring(0, comment) : line).trim();
+            if(line.isEmpty()){
+                continue;
+            }
+            try{
+                layouts.add(parse(line));
+            }
+            catch(IllegalArgumentException e){
+                throw new IOException("Layout line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+        for(AircraftLayout layout : layouts){
+            register(layout);
+        }
+        return layouts;
+    }
+    public static AircraftLayout parse(String line){
+        int equals = line.indexOf('=');
+        if(equals < 0){
+            throw new IllegalArgumentException("expected NAME = CLASS <seats>, ... but got " + line);
+        }
+        String name = line.substring(0, equals).trim();
+        String prefix = null;
+        int open = name.indexOf('(');
+        if(open >= 0){
+            if(!name.endsWith(")")){
+                throw new IllegalArgumentException("unclosed seat prefix in " + name);
+            }
+            prefix = name.substring(open + 1, name.length() - 1).trim();
+            name = name.substring(0, open).trim();
+        }
+        if(name.isEmpty()){
+            throw new IllegalArgumentException("missing layout name");
+        }
+        List<String> numbers = new ArrayList<>();
+        List<ClassType> types = new ArrayList<>();
+        List<Integer> rows = new ArrayList<>();
+        int rowNumber = 0;
+        for(String cabin : line.substring(equals + 1).split(",")){
+            String[] parts = cabin.trim().split("\\s+");
+            if(parts.length != 2){
+                throw new IllegalArgumentException("expected CLASS <seats> but got " + cabin.trim());
+            }
+            ClassType type;
+            try{
+                type = ClassType.valueOf(parts[0].toUpperCase());
+            }
+            catch(IllegalArgumentException e){
+                throw new IllegalArgumentException("unknown class " + parts[0]);
+            }
+            int x = parts[1].indexOf('x');
+            int count;
+            int width;
+            try{
+                count = Integer.parseInt(x < 0 ? parts[1] : parts[1].substring(0, x));
+                width = x < 0 ? rowWidth(type) : Integer.parseInt(parts[1].substring(x + 1));
+            }
+            catch(NumberFormatException e){
+                throw new IllegalArgumentException("bad seat count " + parts[1]);
+            }
+            if(count <= 0 || width <= 0 || width > SeatMap.MAX_ROW){
+                throw new IllegalArgumentException("need at least one seat and rows 1 to " + SeatMap.MAX_ROW + " seats wide in " + cabin.trim());
+            }
+            if(x < 0){
+                if(prefix == null){
+                    throw new IllegalArgumentException("a seat count needs NAME(PREFIX), use <rows>x<seats per row> otherwise");
+                }
+                for(int s = 0 ; s < count ; s++){
+                    numbers.add(prefix + (numbers.size() + 1));
+                    types.add(type);
+                }
+                for(int s = 0 ; s < count ; s += width){
+                    rows.add(Math.min(width, count - s));
+                }
+            }
+            else{
+                for(int r = 0 ; r < count ; r++){
+                    rowNumber++;
+                    for(int s = 0 ; s < width ; s++){
+                        numbers.add(prefix != null ? prefix + (numbers.size() + 1) : rowNumber + String.valueOf((char) ('A' + s)));
+                        types.add(type);
+                    }
+                    rows.add(width);
+                }
+            }
+        }
+        int[] rowLengths = new int[rows.size()];
+        for(int r = 0 ; r < rowLengths.length ; r++){
+            rowLengths[r] = rows.get(r);
+        }
+        return new AircraftLayout(name, numbers.toArray(new String[0]), types.toArray(new ClassType[0]), rowLengths);
+    }
+
+    public String getName(){
+        return name;
+    }
+    public int size(){
+        return classes.length;
+    }
+    public int size(ClassType type){
+        return seatCounts[type.ordinal()];
+    }
+    public String getSeatNumber(int index){
+        return seatNumbers[index];
+    }
+    // index of the seat with that number, or -1
+    public int indexOf(String seatNumber){
+        Map<String, Integer> indexes = seatIndexes;
+        if(indexes == null){
+            indexes = new HashMap<>(seatNumbers.length * 2);
+            for(int i = 0 ; i < seatNumbers.length ; i++){
+                indexes.put(seatNumbers[i], i);
+            }
+            seatIndexes = indexes;
+        }
+        Integer index = indexes.get(seatNumber);
+        return index == null ? -1 : index;
+    }
+    public ClassType getClassType(int index){
+        return CLASS_TYPES[classes[index]];
+    }
+    int classOrdinal(int index){
+        return classes[index];
+    }
+    public int rowCount(){
+        return rowStart.length;
+    }
+    public int rowOf(int index){
+        return rowOf[index];
+    }
+    public int rowStart(int row){
+        return rowStart[row];
+    }
+    public int rowLength(int row){
+        return rowLength[row];
+    }
+    @Override
+    public String toString(){
+        return (name == null ? "custom" : name) + " (" + size() + " seats, " + rowCount() + " rows)";
+    }
+}
+class SeatMap {
+    private static final int CLASSES = ClassType.values().length;
+    static final int MAX_ROW = 10; // widest row the free-run index tracks
+    private final AircraftLayout layout;
+    // the flight's own Seat objects when it was built from them; null when seats are views of the layout
+    private final Seat[] seats;
+    private final int words;
+    private final int rowWords;
+    // one bitset per ClassType, flattened to [class * words + word]; a set bit is a free seat
+    private final AtomicLongArray free;
+    // per-ClassType change counters (a cache line apart), bumped on every reserve and release
+    private final AtomicLongArray versions = new AtomicLongArray(CLASSES << 3);
+    // Free-run index over the layout's rows, flattened to [(class * MAX_ROW + l - 1) * rowWords + word]:
+    // bit r is set when row r has at least l adjacent free seats. It is refreshed after every change
+    // and only ever used as a hint.
+    private final AtomicIntegerArray longest; // longest free run per row, as last indexed
+    private final AtomicLongArray runs;
+
+    public SeatMap(Seat[] seats){
+        this(seats, null);
+    }
+    // rowLengths gives the seats per row in seat order; null uses AircraftLayout.rowWidth per class
+    public SeatMap(Seat[] seats, int[] rowLengths){
+        this(AircraftLayout.of(seats, rowLengths), seats);
+    }
+    // Every seat of the layout starts free; Seat objects are only made when asked for.
+    public SeatMap(AircraftLayout layout){
+        this(layout, null);
+    }
+    private SeatMap(AircraftLayout layout, Seat[] seats){
+        this.layout = layout;
+        this.seats = seats;
+        int size = layout.size();
+        this.words = (size + 63) >>> 6;
+        long[] initial = new long[CLASSES * words];
+        for(int i = 0 ; i < size ; i++){
+            boolean available = seats == null || seats[i].getSeatMapOrNull() == null || seats[i].isAvailable();
+            if(available){
+                initial[slot(layout.classOrdinal(i), i >>> 6)] |= 1L << i;
+            }
+        }
+        this.free = new AtomicLongArray(initial);
+        if(seats != null){
+            for(int i = 0 ; i < size ; i++){
+                seats[i].attach(this, i);
+            }
+        }
+        int rows = layout.rowCount();
+        this.rowWords = (rows + 63) >>> 6;
+        this.longest = new AtomicIntegerArray(rows);
+        this.runs = new AtomicLongArray(CLASSES * MAX_ROW * rowWords);
+        for(int r = 0 ; r < rows ; r++){
+            refreshRow(r, layout.classOrdinal(layout.rowStart(r)));
+        }
+    }
+    private int slot(int c, int w){
+        return c * words + w;
+    }
+    public AircraftLayout getLayout(){
+        return layout;
+    }
+    public int rowCount(){
+        return layout.rowCount();
+    }
+    public int rowOf(int index){
+        return layout.rowOf(index);
+    }
+    public int size(){
+        return layout.size();
+    }
+    public long version(ClassType type){
+        return versions.get(type.ordinal() << 3);
+    }
+    // The seat at index. Layout-backed maps hand out a new view each time; views of the same seat
+    // are equal and share its availability.
+    public Seat getSeat(int index){
+        return seats != null ? seats[index] : new Seat(layout.getSeatNumber(index), layout.getClassType(index), this, index);
+    }
+    public Seat[] getSeats(){
+        if(seats != null){
+            return seats;
+        }
+        Seat[] all = new Seat[size()];
+        for(int i = 0 ; i < all.length ; i++){
+            all[i] = getSeat(i);
+        }
+        return all;
+    }
+    public ClassType getClassType(int index){
+        return layout.getClassType(index);
+    }
+    public boolean isFree(int index){
+        return (free.get(slot(layout.classOrdinal(index), index >>> 6)) & (1L << index)) != 0;
+    }
+    public int availableCount(){
+        int count = 0;
+        for(int c = 0 ; c < CLASSES ; c++){
+            count += popCount(c);
+        }
+        return count;
+    }
+    public int availableCount(ClassType type){
+        return popCount(type.ordinal());
+    }
+    private int popCount(int c){
+        int count = 0;
+        for(int w = 0 ; w < words ; w++){
+            count += Long.bitCount(free.get(slot(c, w)));
+        }
+        return count;
+    }
+    // index of the first free seat at or after from, or -1
+    public int nextFree(int from){
+        if(from >= size()){
+            return -1;
+        }
+        int w = from >>> 6;
+        long word = anyFree(w) & (-1L << from);
+        while(true){
+            if(word != 0){
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if(++w == words){
+                return -1;
+            }
+            word = anyFree(w);
+        }
+    }
+    public int nextFree(ClassType type, int from){
+        if(from >= size()){
+            return -1;
+        }
+        int c = type.ordinal();
+        int w = from >>> 6;
+        long word = free.get(slot(c, w)) & (-1L << from);
+        while(true){
+            if(word != 0){
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if(++w == words){
+                return -1;
+            }
+            word = free.get(slot(c, w));
+        }
+    }
+    public int wordCount(){
+        return words;
+    }
+    // all free seats of word w regardless of class
+    public long freeWord(int w){
+        return anyFree(w);
+    }
+    private long anyFree(int w){
+        long word = 0;
+        for(int c = 0 ; c < CLASSES ; c++){
+            word |= free.get(slot(c, w));
+        }
+        return word;
+    }
+    public boolean reserve(int index){
+        int c = layout.classOrdinal(index);
+        int s = slot(c, index >>> 6);
+        long mask = 1L << index;
+        while(true){
+            long word = free.get(s);
+            if((word & mask) == 0){
+                return false;
+            }
+            if(free.compareAndSet(s, word, word & ~mask)){
+                versions.incrementAndGet(c << 3);
+                refreshRow(layout.rowOf(index), c);
+                return true;
+            }
+        }
+    }
+    public boolean release(int index){
+        if(!releaseSeat(index)){
             return false;
         }
-        else{
-            setAvailable(true);
-            return true;
+        refreshRow(layout.rowOf(index), layout.classOrdinal(index));
+        return true;
+    }
+    // frees the seat without touching the run index
+    private boolean releaseSeat(int index){
+        int c = layout.classOrdinal(index);
+        int s = slot(c, index >>> 6);
+        long mask = 1L << index;
+        while(true){
+            long word = free.get(s);
+            if((word & mask) != 0){
+                return false;
+            }
+            if(free.compareAndSet(s, word, word | mask)){
+                versions.incrementAndGet(c << 3);
+                return true;
+            }
+        }
+    }
+    // Reserves count seats into out[0..count) or none at all. Free seats are claimed a word at
+    // a time with one CAS, and anything already claimed is handed back if the flight runs out.
+    public boolean reserve(int count, Seat[] out){
+        int taken = reserveUpTo(count, out, 0);
+        if(taken < count){
+            for(int i = 0 ; i < taken ; i++){
+                release(out[i].getIndex());
+                out[i] = null;
+            }
+            return false;
+        }
+        return true;
+    }
+    // Reserves as many of count seats as are free, writing them to out[offset..]. Returns how many
+    // were taken; unlike reserve(count, out) a shortfall is kept, not rolled back.
+    public int reserveUpTo(int count, Seat[] out, int offset){
+        int taken = 0;
+        for(int w = 0 ; w < words && taken < count ; w++){
+            for(int c = 0 ; c < CLASSES && taken < count ; c++){
+                taken += claimLowest(c, w, count - taken, out, offset + taken);
+            }
+        }
+        return taken;
+    }
+    // Same, restricted to one class.
+    public int reserveUpTo(ClassType type, int count, Seat[] out, int offset){
+        int taken = 0;
+        for(int w = 0 ; w < words && taken < count ; w++){
+            taken += claimLowest(type.ordinal(), w, count - taken, out, offset + taken);
+        }
+        return taken;
+    }
+    private int claimLowest(int c, int w, int count, Seat[] out, int offset){
+        int s = slot(c, w);
+        int taken = 0;
+        while(taken < count){
+            long word = free.get(s);
+            if(word == 0){
+                break;
+            }
+            long claim = lowestBits(word, count - taken);
+            if(free.compareAndSet(s, word, word & ~claim)){
+                versions.incrementAndGet(c << 3);
+                int lastRow = -1;
+                while(claim != 0){
+                    int index = (w << 6) + Long.numberOfTrailingZeros(claim);
+                    out[offset + taken++] = getSeat(index);
+                    if(layout.rowOf(index) != lastRow){
+                        lastRow = layout.rowOf(index);
+                        refreshRow(lastRow, c);
+                    }
+                    claim &= claim - 1;
+                }
+            }
+        }
+        return taken;
+    }
+    // Reserves count seats of one class into out[0..count), or none. A party that fits in a row
+    // gets adjacent seats in the first row with a long enough free run; otherwise it is spread
+    // over the longest runs left, so it is split as little as possible. Rows are found through
+    // the free-run index rather than by scanning seats.
+    public boolean reserve(ClassType type, int count, Seat[] out){
+        int c = type.ordinal();
+        int taken = 0;
+        while(taken < count){
+            int got = 0;
+            for(int length = Math.min(count - taken, MAX_ROW) ; length > 0 && got == 0 ; length--){
+                got = claimRun(c, length, out, taken);
+            }
+            if(got == 0){
+                break;
+            }
+            taken += got;
+        }
+        if(taken < count){
+            // the index can lag a concurrent release; a scan of the class's bitset settles it
+            taken += reserveUpTo(type, count - taken, out, taken);
+        }
+        if(taken < count){
+            for(int i = 0 ; i < taken ; i++){
+                release(out[i].getIndex());
+                out[i] = null;
+            }
+            return false;
         }
+        return true;
+    }
+    private int claimRun(int c, int length, Seat[] out, int offset){
+        int base = (c * MAX_ROW + length - 1) * rowWords;
+        for(int iw = 0 ; iw < rowWords ; iw++){
+            long candidates = runs.get(base + iw);
+            while(candidates != 0){
+                int row = (iw << 6) + Long.numberOfTrailingZeros(candidates);
+                if(claimInRow(c, row, length, out, offset)){
+                    return length;
+                }
+                candidates &= candidates - 1;
+            }
+        }
+        return 0;
+    }
+    private boolean claimInRow(int c, int row, int length, Seat[] out, int offset){
+        int start = layout.rowStart(row);
+        int w = start >>> 6;
+        int s = slot(c, w);
+        long rowMask = ((1L << layout.rowLength(row)) - 1) << (start & 63);
+        while(true){
+            long word = free.get(s);
+            long fits = word & rowMask;
+            for(int k = 1 ; k < length ; k++){
+                fits &= fits >>> 1;
+            }
+            if(fits == 0){
+                refreshRow(row, c);
+                return false;
+            }
+            int first = Long.numberOfTrailingZeros(fits);
+            long claim = ((1L << length) - 1) << first;
+            if(free.compareAndSet(s, word, word & ~claim)){
+                versions.incrementAndGet(c << 3);
+                for(int k = 0 ; k < length ; k++){
+                    out[offset + k] = getSeat((w << 6) + first + k);
+                }
+                refreshRow(row, c);
+                return true;
+            }
+        }
+    }
+    // Recomputes row's longest free run and updates the index for the run lengths that changed.
+    // If the row changed meanwhile, another refresh may have interleaved with this one, so it is
+    // redone over every length; the last refresh to see a stable row leaves the index matching it.
+    private void refreshRow(int row, int c){
+        int start = layout.rowStart(row);
+        int length = layout.rowLength(row);
+        int s = slot(c, start >>> 6);
+        int base = c * MAX_ROW * rowWords + (row >>> 6);
+        long rowBit = 1L << row;
+        boolean resync = false;
+        while(true){
+            long word = free.get(s);
+            long run = (word >>> (start & 63)) & ((1L << length) - 1);
+            int now = 0;
+            while(run != 0){
+                run &= run >>> 1;
+                now++;
+            }
+            int before = longest.getAndSet(row, now);
+            int from = resync ? 1 : Math.min(before, now) + 1;
+            int to = resync ? length : Math.max(before, now);
+            for(int l = from ; l <= to ; l++){
+                int rowsWithRun = base + (l - 1) * rowWords;
+                while(true){
+                    long current = runs.get(rowsWithRun);
+                    long next = l <= now ? current | rowBit : current & ~rowBit;
+                    if(current == next || runs.compareAndSet(rowsWithRun, current, next)){
+                        break;
+                    }
+                }
+            }
+            if(free.get(s) == word){
+                return;
+            }
+            resync = true;
+        }
+    }
+    // Frees a party's seats, refreshing the run index once per row rather than once per seat.
+    public void release(Seat[] reserved){
+        int lastRow = -1;
+        for(int i = 0 ; i < reserved.length ; i++){
+            if(reserved[i] != null){
+                int index = reserved[i].getIndex();
+                releaseSeat(index);
+                if(layout.rowOf(index) != lastRow){
+                    if(lastRow >= 0){
+                        refreshRow(lastRow, layout.classOrdinal(layout.rowStart(lastRow)));
+                    }
+                    lastRow = layout.rowOf(index);
+                }
+            }
+        }
+        if(lastRow >= 0){
+            refreshRow(lastRow, layout.classOrdinal(layout.rowStart(lastRow)));
+        }
+    }
+    private static long lowestBits(long word, int count){
+        if(Long.bitCount(word) <= count){
+            return word;
+        }
+        long claim = 0;
+        for(int i = 0 ; i < count ; i++){
+            long low = word & -word;
+            claim |= low;
+            word ^= low;
+        }
+        return claim;
     }
 }
 class ChangeRequest {
@@ -1005,5 +2786,6444 @@ class ChangeRequest {
         return newSeatNumbers;
     }
 }
-
-
+class FlightKey {
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private final String flightNumber;
+    private final long departureDay;
+    public FlightKey ( String flightNumber , long departureDay ){
+        this.flightNumber = flightNumber;
+        this.departureDay = departureDay;
+    }
+    public static FlightKey of ( AbstractFlight flight ){
+        return new FlightKey(flight.getFlightNumber(), dayOf(flight.getDepartureTime()));
+    }
+    // departure dates are UTC epoch days so the key never depends on the host time zone
+    public static long dayOf ( long time ){
+        return Math.floorDiv(time, MILLIS_PER_DAY);
+    }
+    public static long dayOf ( LocalDate date ){
+        return date.toEpochDay();
+    }
+    public String getFlightNumber() {
+        return flightNumber;
+    }
+
+    public long getDepartureDay() {
+        return departureDay;
+    }
+    @Override
+    public boolean equals ( Object o ){
+        if(this == o){
+            return true;
+        }
+        if(!(o instanceof FlightKey)){
+            return false;
+        }
+        FlightKey other = (FlightKey) o;
+        return departureDay == other.departureDay && flightNumber.equals(other.flightNumber);
+    }
+    @Override
+    public int hashCode (){
+        return 31 * flightNumber.hashCode() + Long.hashCode(departureDay);
+    }
+    @Override
+    public String toString (){
+        return flightNumber + "@" + LocalDate.ofEpochDay(departureDay);
+    }
+}
+class FlightInventory {
+    // Flights live in one ConcurrentHashMap, so lookups never lock. Everything that mutates a
+    // single flight (its booking list, re-keying after a schedule change) synchronizes on that
+    // flight's entry, which means bookings on different flights never share a lock.
+    static final class FlightEntry {
+        private static final AtomicIntegerFieldUpdater<FlightEntry> GATE = AtomicIntegerFieldUpdater.newUpdater(FlightEntry.class, "gate");
+        private static final int CLOSED = 1 << 30;
+        private final AbstractFlight flight;
+        private FlightKey key;
+        private final List<AbstractBooking> bookings = new ArrayList<>();
+        // Bookings and cancellations pass the gate in any number, one CAS in and one out. A schedule
+        // change closes it, waits for those inside to leave and keeps new ones out until it reopens.
+        private volatile int gate;
+        FlightEntry(AbstractFlight flight, FlightKey key){
+            this.flight = flight;
+            this.key = key;
+        }
+        void enter(){
+            while(true){
+                int current = gate;
+                if(current >= CLOSED){
+                    awaitOpen();
+                }
+                else if(GATE.compareAndSet(this, current, current + 1)){
+                    return;
+                }
+            }
+        }
+        void leave(){
+            GATE.decrementAndGet(this);
+        }
+        void close(){
+            while(true){
+                int current = gate;
+                if(current >= CLOSED){
+                    awaitOpen();
+                }
+                else if(GATE.compareAndSet(this, current, current + CLOSED)){
+                    break;
+                }
+            }
+            while(gate != CLOSED){
+                Thread.yield();
+            }
+        }
+        void open(){
+            GATE.addAndGet(this, -CLOSED);
+            synchronized (this){
+                notifyAll();
+            }
+        }
+        private synchronized void awaitOpen(){
+            boolean interrupted = false;
+            while(gate >= CLOSED){
+                try{
+                    wait();
+                }
+                catch(InterruptedException e){
+                    interrupted = true;
+                }
+            }
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
+        AbstractFlight getFlight(){
+            return flight;
+        }
+        FlightKey getKey(){
+            return key;
+        }
+    }
+    private final ConcurrentHashMap<FlightKey, FlightEntry> flights;
+    private final ConcurrentHashMap<String, Set<FlightEntry>> byNumber;
+    private final FlightSearchIndex searchIndex = new FlightSearchIndex();
+    private final ConcurrentHashMap<Long, AbstractBooking> bookings;
+    private final PassengerStore passengers = new PassengerStore();
+    private volatile IBookingEventListener listener;
+
+    public FlightInventory (){
+        this(1 << 16);
+    }
+    public FlightInventory ( int expectedFlights ){
+        int concurrency = Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+        this.flights = new ConcurrentHashMap<>(expectedFlights, 0.75f, concurrency);
+        this.byNumber = new ConcurrentHashMap<>(Math.max(16, expectedFlights / 8), 0.75f, concurrency);
+        this.bookings = new ConcurrentHashMap<>(Math.max(16, expectedFlights), 0.75f, concurrency);
+    }
+    public IBookingEventListener getListener (){
+        return listener;
+    }
+    // where bookings rebuilt from a journal or snapshot keep their passengers, for as long as the inventory lives
+    public PassengerStore getPassengerStore (){
+        return passengers;
+    }
+    public void setListener ( IBookingEventListener listener ){
+        this.listener = listener;
+    }
+    static String routeKey ( String origin , String destination ){
+        return origin + "->" + destination;
+    }
+    public int size (){
+        return flights.size();
+    }
+    public boolean addFlight ( AbstractFlight flight ){
+        FlightKey key = FlightKey.of(flight);
+        FlightEntry entry = new FlightEntry(flight, key);
+        if(flights.putIfAbsent(key, entry) != null){
+            return false;
+        }
+        byNumber.computeIfAbsent(flight.getFlightNumber(), k -> ConcurrentHashMap.newKeySet()).add(entry);
+        searchIndex.add(flight);
+        IBookingEventListener listener = this.listener;
+        if(listener != null){
+            listener.flightAdded(flight);
+        }
+        return true;
+    }
+    public AbstractFlight removeFlight ( String flightNumber , long departureDay ){
+        FlightEntry entry = flights.get(new FlightKey(flightNumber, departureDay));
+        if(entry == null){
+            return null;
+        }
+        synchronized (entry){
+            if(!flights.remove(entry.key, entry)){
+                return null;
+            }
+            removeFromIndex(byNumber, entry.flight.getFlightNumber(), entry);
+            searchIndex.remove(entry.flight, entry.flight.getDepartureTime());
+        }
+        return entry.flight;
+    }
+    private static void removeFromIndex ( ConcurrentHashMap<String, Set<FlightEntry>> index , String key , FlightEntry entry ){
+        Set<FlightEntry> set = index.get(key);
+        if(set != null){
+            set.remove(entry);
+        }
+    }
+    public AbstractFlight getFlight ( String flightNumber , long departureDay ){
+        FlightEntry entry = flights.get(new FlightKey(flightNumber, departureDay));
+        return entry == null ? null : entry.flight;
+    }
+    public AbstractFlight getFlight ( String flightNumber , LocalDate departureDate ){
+        return getFlight(flightNumber, FlightKey.dayOf(departureDate));
+    }
+    public List<AbstractFlight> findByFlightNumber ( String flightNumber ){
+        return flightsOf(byNumber.get(flightNumber));
+    }
+    public List<AbstractFlight> findByRoute ( String origin , String destination ){
+        return searchIndex.search(origin, destination, Long.MIN_VALUE, Long.MAX_VALUE, null, 0, Integer.MAX_VALUE);
+    }
+    public List<AbstractFlight> search ( String origin , String destination , long from , long to , ClassType type , int minSeats ){
+        return searchIndex.search(origin, destination, from, to, type, minSeats, Integer.MAX_VALUE);
+    }
+    public FlightSearchIndex getSearchIndex (){
+        return searchIndex;
+    }
+    private static List<AbstractFlight> flightsOf ( Set<FlightEntry> entries ){
+        if(entries == null){
+            return Collections.emptyList();
+        }
+        List<AbstractFlight> result = new ArrayList<>(entries.size());
+        for(FlightEntry entry : entries){
+            result.add(entry.flight);
+        }
+        return result;
+    }
+    Collection<FlightEntry> entries (){
+        return flights.values();
+    }
+    FlightEntry entryFor ( AbstractFlight flight ){
+        FlightEntry entry = flights.get(FlightKey.of(flight));
+        return entry != null && entry.flight == flight ? entry : null;
+    }
+    // Books against a registered flight. Seat reservation itself is lock-free; the entry lock only
+    // guards the flight's booking list, and the entry's gate keeps the booking out of a schedule change.
+    public boolean book ( AbstractBooking booking ){
+        return book(booking, true);
+    }
+    // reprice false confirms at the booking's current totalPrice, see SeatHoldManager.confirm
+    boolean book ( AbstractBooking booking , boolean reprice ){
+        FlightEntry entry = entryFor(booking.getFlight());
+        if(entry == null){
+            return false;
+        }
+        if(booking.getListener() == null){
+            booking.setListener(listener);
+        }
+        entry.enter();
+        try{
+            if(entry.flight.getStatus() == FlightStatus.CANCELLED || !booking.createBooking(reprice)){
+                return false;
+            }
+            register(entry, booking);
+            return true;
+        }
+        finally{
+            entry.leave();
+        }
+    }
+    // Registers a booking that is already confirmed, e.g. one rebuilt from the journal.
+    boolean restoreBooking ( AbstractBooking booking ){
+        FlightEntry entry = entryFor(booking.getFlight());
+        if(entry == null){
+            return false;
+        }
+        register(entry, booking);
+        return true;
+    }
+    private void register ( FlightEntry entry , AbstractBooking booking ){
+        synchronized (entry){
+            entry.bookings.add(booking);
+        }
+        bookings.put(booking.getBookingNumber(), booking);
+    }
+    // Registers a batch of confirmed bookings of one flight under a single lock acquisition.
+    boolean registerAll ( AbstractFlight flight , List<? extends AbstractBooking> confirmed ){
+        FlightEntry entry = entryFor(flight);
+        if(entry == null){
+            return false;
+        }
+        synchronized (entry){
+            entry.bookings.addAll(confirmed);
+        }
+        for(AbstractBooking booking : confirmed){
+            bookings.put(booking.getBookingNumber(), booking);
+        }
+        return true;
+    }
+    void forgetBooking ( AbstractBooking booking ){
+        FlightEntry entry = entryFor(booking.getFlight());
+        if(entry != null){
+            synchronized (entry){
+                entry.bookings.remove(booking);
+            }
+        }
+        bookings.remove(booking.getBookingNumber(), booking);
+    }
+    public boolean cancel ( StandardBooking booking ){
+        FlightEntry entry = entryFor(booking.getFlight());
+        if(entry != null){
+            entry.enter();
+        }
+        try{
+            if(!booking.cancel()){
+                return false;
+            }
+            forgetBooking(booking);
+            return true;
+        }
+        finally{
+            if(entry != null){
+                entry.leave();
+            }
+        }
+    }
+    // Cancels the flight and every confirmed booking on it. Each booking gives its seats back and is
+    // reported through bookingCancelled, then the flight's new status through flightChanged. The
+    // entry's gate is closed meanwhile, as for a schedule change, so no booking slips in. False if
+    // the flight is not registered or cannot be cancelled from its current status.
+    public boolean cancelFlight ( AbstractFlight flight ){
+        FlightEntry entry = entryFor(flight);
+        if(entry == null){
+            return false;
+        }
+        entry.close();
+        try{
+            if(flight.getStatus() == FlightStatus.CANCELLED || !StatusTransitions.allowed(flight.getStatus(), FlightStatus.CANCELLED)){
+                return false;
+            }
+            IBookingEventListener listener = this.listener;
+            for(AbstractBooking booking : getBookings(flight)){
+                if(booking.getStatus() != BookingStatus.CONFIRMED){
+                    continue;
+                }
+                booking.releaseSeats();
+                booking.setStatus(BookingStatus.CANCELLED);
+                // bookings rebuilt from a journal or snapshot carry no listener of their own
+                IBookingEventListener bookingListener = booking.getListener() != null ? booking.getListener() : listener;
+                if(bookingListener != null){
+                    bookingListener.bookingCancelled(booking);
+                }
+                forgetBooking(booking);
+            }
+            flight.setStatus(FlightStatus.CANCELLED);
+            if(listener != null){
+                listener.flightChanged(flight, entry.key.getDepartureDay());
+            }
+            return true;
+        }
+        finally{
+            entry.open();
+        }
+    }
+    public AbstractBooking getBooking ( long bookingNumber ){
+        return bookings.get(bookingNumber);
+    }
+    public AbstractBooking getBooking ( String bookingId ){
+        long bookingNumber = IdGenerator.parse("BK", bookingId);
+        return bookingNumber < 0 ? null : bookings.get(bookingNumber);
+    }
+    public List<AbstractBooking> getBookings ( AbstractFlight flight ){
+        FlightEntry entry = entryFor(flight);
+        if(entry == null){
+            return Collections.emptyList();
+        }
+        synchronized (entry){
+            return new ArrayList<>(entry.bookings);
+        }
+    }
+    // Moves a flight to new times without the IChangeable rules, used when replaying history. False
+    // if the flight is not registered or its number is already scheduled on the new departure date.
+    boolean moveFlight ( AbstractFlight flight , long departureTime , long arrivalTime ){
+        FlightEntry entry = entryFor(flight);
+        return entry != null && move(entry, departureTime, arrivalTime, false);
+    }
+    // Applies a schedule change and moves the flight to its new departure-date key. False if the
+    // change is not allowed or the flight number is already scheduled on the new departure date.
+    public boolean changeFlight ( AbstractFlight flight , ChangeRequest request ){
+        if(!(flight instanceof IChangeable)){
+            return false;
+        }
+        FlightEntry entry = entryFor(flight);
+        if(entry == null){
+            return ((IChangeable) flight).change(request);
+        }
+        entry.close();
+        try{
+            return change(entry, request);
+        }
+        finally{
+            entry.open();
+        }
+    }
+    private boolean change ( FlightEntry entry , ChangeRequest request ){
+        AbstractFlight flight = entry.flight;
+        synchronized (entry){
+            FlightKey oldKey = entry.key;
+            FlightKey newKey = new FlightKey(flight.getFlightNumber(), FlightKey.dayOf(request.getNewDepartureTime()));
+            // the new key is taken before the flight changes, so a collision leaves it untouched
+            if(!newKey.equals(oldKey) && flights.putIfAbsent(newKey, entry) != null){
+                return false;
+            }
+            long previousDeparture = flight.getDepartureTime();
+            if(!((IChangeable) flight).change(request)){
+                if(!newKey.equals(oldKey)){
+                    flights.remove(newKey, entry);
+                }
+                return false;
+            }
+            searchIndex.reschedule(flight, previousDeparture);
+            if(!newKey.equals(oldKey)){
+                flights.remove(oldKey, entry);
+                entry.key = newKey;
+            }
+            IBookingEventListener listener = this.listener;
+            if(listener != null){
+                listener.flightChanged(flight, oldKey.getDepartureDay());
+            }
+            return true;
+        }
+    }
+    // Moves a flight to new times on the authority of the schedule feed, without the IChangeable
+    // rules; reported to the listener like changeFlight. False if the flight is not registered or
+    // its number is already scheduled on the new departure date. Both close the entry's gate, so
+    // every booking event of the flight comes either before flightChanged, under the old date, or
+    // after it, under the new one.
+    public boolean rescheduleFlight ( AbstractFlight flight , long departureTime , long arrivalTime ){
+        FlightEntry entry = entryFor(flight);
+        if(entry == null){
+            return false;
+        }
+        entry.close();
+        try{
+            return move(entry, departureTime, arrivalTime, true);
+        }
+        finally{
+            entry.open();
+        }
+    }
+    // rescheduleFlight for a caller that already closed the entry's gate, see ScheduleChangeService
+    boolean reschedule ( FlightEntry entry , long departureTime , long arrivalTime ){
+        return move(entry, departureTime, arrivalTime, true);
+    }
+    private boolean move ( FlightEntry entry , long departureTime , long arrivalTime , boolean notify ){
+        AbstractFlight flight = entry.flight;
+        synchronized (entry){
+            FlightKey oldKey = entry.key;
+            FlightKey newKey = new FlightKey(flight.getFlightNumber(), FlightKey.dayOf(departureTime));
+            if(!newKey.equals(oldKey) && flights.putIfAbsent(newKey, entry) != null){
+                return false;
+            }
+            long previousDeparture = flight.getDepartureTime();
+            flight.setDepartureTime(departureTime);
+            flight.setArrivalTime(arrivalTime);
+            searchIndex.reschedule(flight, previousDeparture);
+            if(!newKey.equals(oldKey)){
+                flights.remove(oldKey, entry);
+                entry.key = newKey;
+            }
+            IBookingEventListener listener = this.listener;
+            if(notify && listener != null){
+                listener.flightChanged(flight, oldKey.getDepartureDay());
+            }
+            return true;
+        }
+    }
+}
+// Streams a schedule feed into a FlightInventory, one flight per line:
+//   flightNumber,type,origin,destination,departure,arrival,basePrice,taxRate,layout[,scheduledDeparture]
+// type is D (domestic), I (international) or X (cancel through FlightInventory.cancelFlight; only
+// number, departure and scheduledDeparture are read). Times are UTC "yyyy-MM-ddTHH:mm[:ss]" or epoch
+// millis; taxRate, layout and scheduledDeparture may be left empty. Blank lines, lines starting with
+// '#' and a "flightNumber," header are skipped.
+// A flight is identified by its number and the date of scheduledDeparture, the departure it was
+// first filed with, or of departure when that is empty. A row that retimes a flight to another date
+// must give scheduledDeparture; a flight already moved there by an earlier import is found under its
+// new date, so importing the same file again changes nothing. Unknown flights are added; known ones
+// are updated in place (times through rescheduleFlight, price and tax through the setters) and
+// unchanged rows cost one lookup, so a feed of just the changed rows applies incrementally. The file
+// is memory-mapped and split at line boundaries into chunks that fork-join tasks parse and upsert
+// in parallel. Numbers and times are parsed from the bytes and codes and flight numbers come from
+// a per-chunk cache, so a row does not make a String per field. Chunks run in no particular order,
+// so a flight should appear once per file.
+class ScheduleImporter {
+    private static final int CHUNK = 1 << 22;
+    private static final int FIELDS = 10;
+    private static final int MAX_ERRORS = 16;
+    private static final byte[] HEADER = "flightNumber,".getBytes(StandardCharsets.US_ASCII);
+    private static final double[] POW10 = new double[16];
+    static {
+        POW10[0] = 1;
+        for(int i = 1 ; i < POW10.length ; i++){
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    public static final class Result {
+        private long rows;
+        private long added;
+        private long updated;
+        private long unchanged;
+        private long cancelled;
+        private long rejected;
+        private long nanos;
+        private final List<String> errors = new ArrayList<>();
+        private void reject ( long offset , String reason ){
+            rejected++;
+            if(errors.size() < MAX_ERRORS){
+                errors.add("byte " + offset + ": " + reason);
+            }
+        }
+        private Result merge ( Result other ){
+            rows += other.rows;
+            added += other.added;
+            updated += other.updated;
+            unchanged += other.unchanged;
+            cancelled += other.cancelled;
+            rejected += other.rejected;
+            for(String error : other.errors){
+                if(errors.size() < MAX_ERRORS){
+                    errors.add(error);
+                }
+            }
+            return this;
+        }
+        public long getRows (){
+            return rows;
+        }
+        public long getAdded (){
+            return added;
+        }
+        public long getUpdated (){
+            return updated;
+        }
+        public long getUnchanged (){
+            return unchanged;
+        }
+        public long getCancelled (){
+            return cancelled;
+        }
+        public long getRejected (){
+            return rejected;
+        }
+        // the first few rejected rows, by byte offset in the file
+        public List<String> getErrors (){
+            return Collections.unmodifiableList(errors);
+        }
+        public long getNanos (){
+            return nanos;
+        }
+        public double getRowsPerSecond (){
+            return nanos == 0 ? 0 : rows * 1e9 / nanos;
+        }
+        @Override
+        public String toString (){
+            return String.format("%,d rows (%,d added, %,d updated, %,d unchanged, %,d cancelled, %,d rejected) in %.2f s = %,.0f rows/s",
+                    rows, added, updated, unchanged, cancelled, rejected, nanos / 1e9, getRowsPerSecond());
+        }
+    }
+    // Direct-mapped cache from field bytes to a String shared by the whole import.
+    private final class Names {
+        private static final int SLOTS = 16384;
+        private final byte[][] keys = new byte[SLOTS][];
+        private final String[] values = new String[SLOTS];
+        String get ( ByteBuffer buffer , int from , int to ){
+            int hash = 0;
+            for(int i = from ; i < to ; i++){
+                hash = 31 * hash + buffer.get(i);
+            }
+            int slot = (hash ^ (hash >>> 16)) & (SLOTS - 1);
+            byte[] key = keys[slot];
+            if(key != null && key.length == to - from){
+                int i = 0;
+                while(i < key.length && key[i] == buffer.get(from + i)){
+                    i++;
+                }
+                if(i == key.length){
+                    return values[slot];
+                }
+            }
+            key = new byte[to - from];
+            for(int i = 0 ; i < key.length ; i++){
+                key[i] = buffer.get(from + i);
+            }
+            String value = new String(key, StandardCharsets.UTF_8);
+            String shared = canonical.putIfAbsent(value, value);
+            keys[slot] = key;
+            values[slot] = shared == null ? value : shared;
+            return values[slot];
+        }
+    }
+    @SuppressWarnings("serial")
+    private final class ChunkTask extends RecursiveTask<Result> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        ChunkTask ( FileChannel channel , long start , long end ){
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+        @Override
+        protected Result compute (){
+            try{
+                long middle;
+                if(end - start <= CHUNK || (middle = lineStart(channel, start + (end - start) / 2, end)) >= end){
+                    return parse(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start), start);
+                }
+                ChunkTask left = new ChunkTask(channel, start, middle);
+                left.fork();
+                Result right = new ChunkTask(channel, middle, end).compute();
+                return left.join().merge(right);
+            }
+            catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+    private final FlightInventory inventory;
+    private final ForkJoinPool pool;
+    private final ConcurrentHashMap<String, String> canonical = new ConcurrentHashMap<>();
+
+    public ScheduleImporter ( FlightInventory inventory ){
+        this(inventory, ForkJoinPool.commonPool());
+    }
+    public ScheduleImporter ( FlightInventory inventory , ForkJoinPool pool ){
+        this.inventory = inventory;
+        this.pool = pool;
+    }
+    public Result importFile ( Path path ) throws IOException {
+        long start = System.nanoTime();
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            Result result = pool.invoke(new ChunkTask(channel, 0, channel.size()));
+            result.nanos = System.nanoTime() - start;
+            return result;
+        }
+        catch(UncheckedIOException e){
+            throw e.getCause();
+        }
+    }
+    // first offset at or after position that starts a line, or end
+    private static long lineStart ( FileChannel channel , long position , long end ) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(512);
+        long offset = position - 1;
+        while(offset < end){
+            block.clear();
+            int read = channel.read(block, offset);
+            if(read <= 0){
+                return end;
+            }
+            for(int i = 0 ; i < read ; i++){
+                if(block.get(i) == '\n'){
+                    return Math.min(offset + i + 1, end);
+                }
+            }
+            offset += read;
+        }
+        return end;
+    }
+    private Result parse ( ByteBuffer buffer , long offset ){
+        Result result = new Result();
+        Names names = new Names();
+        int[] bounds = new int[FIELDS * 2];
+        int limit = buffer.limit();
+        int line = 0;
+        while(line < limit){
+            int eol = line;
+            while(eol < limit && buffer.get(eol) != '\n'){
+                eol++;
+            }
+            int next = eol + 1;
+            if(eol > line && buffer.get(eol - 1) == '\r'){
+                eol--;
+            }
+            if(eol > line && buffer.get(line) != '#' && !(offset + line == 0 && startsWith(buffer, line, eol, HEADER))){
+                result.rows++;
+                String error = upsert(buffer, line, eol, bounds, names, result);
+                if(error != null){
+                    result.reject(offset + line, error);
+                }
+            }
+            line = next;
+        }
+        return result;
+    }
+    private String upsert ( ByteBuffer buffer , int line , int eol , int[] bounds , Names names , Result result ){
+        int count = 0;
+        int fieldStart = line;
+        for(int i = line ; i <= eol ; i++){
+            if(i == eol || buffer.get(i) == ','){
+                if(count == FIELDS){
+                    return "more than " + FIELDS + " fields";
+                }
+                bounds[2 * count] = fieldStart;
+                bounds[2 * count + 1] = i;
+                count++;
+                fieldStart = i + 1;
+            }
+        }
+        for(int f = count ; f < FIELDS ; f++){
+            bounds[2 * f] = eol;
+            bounds[2 * f + 1] = eol;
+        }
+        if(bounds[1] == bounds[0]){
+            return "missing flight number";
+        }
+        String number = names.get(buffer, bounds[0], bounds[1]);
+        byte type = bounds[3] - bounds[2] == 1 ? buffer.get(bounds[2]) : 0;
+        long departure = parseTime(buffer, bounds[8], bounds[9]);
+        if(departure == Long.MIN_VALUE){
+            return "bad departure time";
+        }
+        long day = FlightKey.dayOf(departure);
+        long scheduled = bounds[19] == bounds[18] ? departure : parseTime(buffer, bounds[18], bounds[19]);
+        if(scheduled == Long.MIN_VALUE){
+            return "bad scheduled departure time";
+        }
+        long scheduledDay = FlightKey.dayOf(scheduled);
+        AbstractFlight flight = inventory.getFlight(number, scheduledDay);
+        if(flight == null && scheduledDay != day){
+            flight = inventory.getFlight(number, day); // moved to its new date by an earlier import
+        }
+        if(type == 'X'){
+            if(flight == null){
+                return "cancels an unknown flight";
+            }
+            if(flight.getStatus() == FlightStatus.CANCELLED){
+                result.unchanged++;
+                return null;
+            }
+            if(!StatusTransitions.allowed(flight.getStatus(), FlightStatus.CANCELLED)){
+                return "cannot cancel a flight that is " + flight.getStatus();
+            }
+            if(!inventory.cancelFlight(flight)){
+                if(flight.getStatus() == FlightStatus.CANCELLED){
+                    result.unchanged++; // cancelled by another chunk in the meantime
+                    return null;
+                }
+                return "flight was removed while importing";
+            }
+            result.cancelled++;
+            return null;
+        }
+        if(type != 'D' && type != 'I'){
+            return "unknown flight type";
+        }
+        if(count < 7){
+            return "expected " + FIELDS + " fields";
+        }
+        String origin = names.get(buffer, bounds[4], bounds[5]);
+        String destination = names.get(buffer, bounds[6], bounds[7]);
+        long arrival = parseTime(buffer, bounds[10], bounds[11]);
+        if(arrival == Long.MIN_VALUE || arrival < departure){
+            return "bad arrival time";
+        }
+        double basePrice = parseDecimal(buffer, bounds[12], bounds[13]);
+        if(!(basePrice >= 0)){
+            return "bad base price";
+        }
+        double taxRate = bounds[15] == bounds[14] ? 0 : parseDecimal(buffer, bounds[14], bounds[15]);
+        if(!(taxRate >= 0)){
+            return "bad tax rate";
+        }
+        AircraftLayout layout = null;
+        if(bounds[17] > bounds[16]){
+            try{
+                layout = AircraftLayout.forName(names.get(buffer, bounds[16], bounds[17]));
+            }
+            catch(IllegalArgumentException e){
+                return e.getMessage();
+            }
+        }
+        if(flight == null){
+            flight = type == 'D'
+                    ? new DomesticFlight(number, origin, destination, departure, arrival, basePrice, taxRate, layout)
+                    : new InternationalFlight(number, origin, destination, departure, arrival, basePrice, layout);
+            if(inventory.addFlight(flight)){
+                result.added++;
+                return null;
+            }
+            flight = inventory.getFlight(number, day); // added by another chunk in the meantime
+            if(flight == null){
+                return "flight was removed while importing";
+            }
+        }
+        if((type == 'D') != (flight instanceof DomesticFlight)){
+            return "changes the flight type";
+        }
+        if(!flight.getOrigin().equals(origin) || !flight.getDestination().equals(destination)){
+            return "changes the route";
+        }
+        if(layout != null && layout != flight.getLayout()){
+            return "changes the aircraft";
+        }
+        if(flight.getStatus() == FlightStatus.CANCELLED){
+            return "flight is cancelled";
+        }
+        boolean changed = false;
+        if(flight.getDepartureTime() != departure || flight.getArrivalTime() != arrival){
+            if(!inventory.rescheduleFlight(flight, departure, arrival)){
+                return "flight was removed while importing";
+            }
+            changed = true;
+        }
+        if(flight.getBasePrice() != basePrice){
+            flight.setBasePrice(basePrice);
+            changed = true;
+        }
+        if(flight instanceof DomesticFlight && ((DomesticFlight) flight).getDomesticTaxRate() != taxRate){
+            ((DomesticFlight) flight).setDomesticTaxRate(taxRate);
+            changed = true;
+        }
+        if(changed){
+            result.updated++;
+        }
+        else{
+            result.unchanged++;
+        }
+        return null;
+    }
+    private static boolean startsWith ( ByteBuffer buffer , int from , int to , byte[] prefix ){
+        if(to - from < prefix.length){
+            return false;
+        }
+        for(int i = 0 ; i < prefix.length ; i++){
+            if(buffer.get(from + i) != prefix[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+    private static int digits ( ByteBuffer buffer , int from , int count ){
+        int value = 0;
+        for(int i = from ; i < from + count ; i++){
+            int digit = buffer.get(i) - '0';
+            if(digit < 0 || digit > 9){
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+    // UTC "yyyy-MM-ddTHH:mm[:ss]" or epoch millis; Long.MIN_VALUE if neither
+    static long parseTime ( ByteBuffer buffer , int from , int to ){
+        int length = to - from;
+        if(length == 16 || length == 19){
+            int year = digits(buffer, from, 4);
+            int month = digits(buffer, from + 5, 2);
+            int day = digits(buffer, from + 8, 2);
+            int hour = digits(buffer, from + 11, 2);
+            int minute = digits(buffer, from + 14, 2);
+            int second = length == 19 ? digits(buffer, from + 17, 2) : 0;
+            if(year < 0 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month) || hour < 0 || hour > 23 || minute < 0 || minute > 59
+                    || second < 0 || second > 59 || buffer.get(from + 4) != '-' || buffer.get(from + 7) != '-'
+                    || buffer.get(from + 10) != 'T' || buffer.get(from + 13) != ':' || (length == 19 && buffer.get(from + 16) != ':')){
+                return Long.MIN_VALUE;
+            }
+            return (epochDay(year, month, day) * 86400L + hour * 3600 + minute * 60 + second) * 1000L;
+        }
+        if(length == 0 || length > 18){
+            return Long.MIN_VALUE;
+        }
+        long millis = 0;
+        for(int i = from ; i < to ; i++){
+            int digit = buffer.get(i) - '0';
+            if(digit < 0 || digit > 9){
+                return Long.MIN_VALUE;
+            }
+            millis = millis * 10 + digit;
+        }
+        return millis;
+    }
+    private static int lengthOfMonth ( int year , int month ){
+        if(month == 2){
+            return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+    // days from 1970-01-01 in the proleptic Gregorian calendar, as LocalDate.toEpochDay
+    private static long epochDay ( int year , int month , int day ){
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+    // Plain decimals such as 1234.56. Up to 15 digits the digits and the power of ten are exact
+    // doubles, so one division gives the correctly rounded value, as Double.parseDouble would.
+    static double parseDecimal ( ByteBuffer buffer , int from , int to ){
+        long mantissa = 0;
+        int digitCount = 0;
+        int fraction = -1;
+        for(int i = from ; i < to ; i++){
+            byte b = buffer.get(i);
+            if(b == '.' && fraction < 0){
+                fraction = 0;
+                continue;
+            }
+            if(b < '0' || b > '9'){
+                return Double.NaN;
+            }
+            mantissa = mantissa * 10 + (b - '0');
+            digitCount++;
+            if(fraction >= 0){
+                fraction++;
+            }
+        }
+        if(digitCount == 0){
+            return Double.NaN;
+        }
+        if(digitCount > 15){
+            byte[] text = new byte[to - from];
+            for(int i = 0 ; i < text.length ; i++){
+                text[i] = buffer.get(from + i);
+            }
+            return Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+        }
+        return fraction <= 0 ? mantissa : mantissa / POW10[fraction];
+    }
+}
+class IdGenerator {
+    // Snowflake layout: 41 bits of milliseconds since EPOCH, 10 bits of node id, 12 bits of sequence.
+    private static final long EPOCH = 1735689600000L; // 2025-01-01T00:00:00Z
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+    public static final IdGenerator DEFAULT = new IdGenerator(Integer.getInteger("flight.nodeId", 0));
+
+    private final long node;
+    // last issued (millis - EPOCH) << SEQUENCE_BITS | sequence
+    private final AtomicLong last = new AtomicLong();
+
+    public IdGenerator ( int node ){
+        if(node < 0 || node > MAX_NODE){
+            throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE + ": " + node);
+        }
+        this.node = node;
+    }
+    public int getNode (){
+        return (int) node;
+    }
+    // Lock-free and strictly increasing per node. When the clock stands still or goes backwards the
+    // sequence keeps counting, and a full sequence simply carries into the next millisecond.
+    public long nextId (){
+        while(true){
+            long prev = last.get();
+            long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+            long next = now > prev ? now : prev + 1;
+            if(last.compareAndSet(prev, next)){
+                long millis = next >>> SEQUENCE_BITS;
+                long sequence = next & ((1L << SEQUENCE_BITS) - 1);
+                return (millis << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | sequence;
+            }
+        }
+    }
+    // Fills out[0..count) with consecutive ids reserved by a single CAS.
+    public void nextIds ( long[] out , int count ){
+        while(true){
+            long prev = last.get();
+            long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+            long first = now > prev ? now : prev + 1;
+            if(last.compareAndSet(prev, first + count - 1)){
+                for(int i = 0 ; i < count ; i++){
+                    long next = first + i;
+                    long millis = next >>> SEQUENCE_BITS;
+                    long sequence = next & ((1L << SEQUENCE_BITS) - 1);
+                    out[i] = (millis << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | sequence;
+                }
+                return;
+            }
+        }
+    }
+    public static long timestampOf ( long id ){
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+    }
+    public static int nodeOf ( long id ){
+        return (int) ((id >>> SEQUENCE_BITS) & MAX_NODE);
+    }
+    public static String format ( String prefix , long id ){
+        return prefix.concat(Long.toString(id));
+    }
+    // Inverse of format, or -1 when the text was not produced by it.
+    public static long parse ( String prefix , String text ){
+        if(text == null || !text.startsWith(prefix) || text.length() == prefix.length()){
+            return -1;
+        }
+        try{
+            return Long.parseLong(text.substring(prefix.length()));
+        }
+        catch(NumberFormatException e){
+            return -1;
+        }
+    }
+}
+enum JournalDurability {
+    PER_EVENT,      // fsync after every event before the caller returns
+    GROUP_COMMIT,   // callers wait, one fsync covers every event queued meanwhile
+    ASYNC           // callers never wait, the writer fsyncs every flush interval
+}
+// Append-only binary journal of flight, booking and payment events. Each record is framed as
+// [int length][byte type][payload][int crc32]; callers encode and checksum their own record and a
+// single writer thread appends whole batches and fsyncs according to the durability mode.
+class BookingJournal implements IBookingEventListener, Closeable {
+    static final byte FLIGHT_ADDED = 1;
+    static final byte FLIGHT_CHANGED = 2;
+    static final byte BOOKING_CONFIRMED = 3;
+    static final byte BOOKING_CANCELLED = 4;
+    static final byte PAYMENT_COMPLETED = 5;
+    static final byte PAYMENT_REFUNDED = 6;
+    static final byte AIRCRAFT_CHANGED = 7;
+    static final byte BOOKING_RESCHEDULED = 8;
+    private static final int MAGIC = 0x464A524E; // "FJRN"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 6;
+    private static final int MAX_BATCH = 4096;
+    private static final long WAIT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final byte DOMESTIC = 0;
+    private static final byte INTERNATIONAL = 1;
+
+    private static final class Pending {
+        final byte[] record;
+        final Thread waiter;
+        volatile boolean done;
+        volatile IOException failure;
+        Pending(byte[] record, Thread waiter){
+            this.record = record;
+            this.waiter = waiter;
+        }
+    }
+
+    private final FileChannel channel;
+    private final JournalDurability durability;
+    private final long flushIntervalNanos;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile long length;
+    private long lastForce = System.nanoTime();
+    private boolean dirty;
+
+    private BookingJournal(FileChannel channel, JournalDurability durability, long flushIntervalMillis){
+        this.channel = channel;
+        this.durability = durability;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.writer = new Thread(this::writeLoop, "booking-journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+    public static BookingJournal open(Path path, JournalDurability durability) throws IOException {
+        return open(path, durability, 10);
+    }
+    // Opens the journal for appending. A torn record at the tail (a crash mid-write) is cut off.
+    public static BookingJournal open(Path path, JournalDurability durability, long flushIntervalMillis) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try{
+            if(channel.size() == 0){
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putShort(VERSION).flip();
+                while(header.hasRemaining()){
+                    channel.write(header);
+                }
+                channel.force(false);
+            }
+            else{
+                long valid = scan(path, null, HEADER_SIZE).getValidLength();
+                if(valid < channel.size()){
+                    channel.truncate(valid);
+                }
+            }
+            channel.position(channel.size());
+            BookingJournal journal = new BookingJournal(channel, durability, flushIntervalMillis);
+            journal.length = channel.size();
+            return journal;
+        }
+        catch(IOException | RuntimeException e){
+            channel.close();
+            throw e;
+        }
+    }
+    public JournalDurability getDurability(){
+        return durability;
+    }
+    // Bytes handed to the file so far. Taken before a snapshot it is the offset to replay from.
+    public long getLength(){
+        return length;
+    }
+
+    @Override
+    public void flightAdded(AbstractFlight flight){
+        RecordWriter out = new RecordWriter(FLIGHT_ADDED);
+        if(flight instanceof DomesticFlight){
+            out.writeByte(DOMESTIC);
+        }
+        else if(flight instanceof InternationalFlight){
+            out.writeByte(INTERNATIONAL);
+        }
+        else{
+            throw new IllegalArgumentException("Cannot journal flight type " + flight.getClass().getName());
+        }
+        out.writeUTF(flight.getFlightNumber());
+        out.writeUTF(flight.getOrigin());
+        out.writeUTF(flight.getDestination());
+        out.writeLong(flight.getDepartureTime());
+        out.writeLong(flight.getArrivalTime());
+        out.writeDouble(flight.getBasePrice());
+        out.writeDouble(flight instanceof DomesticFlight ? ((DomesticFlight) flight).getDomesticTaxRate() : 0.0);
+        // appended last so older records without it still replay, onto the default aircraft
+        String layout = flight.getLayout().getName();
+        out.writeUTF(layout == null ? "" : layout);
+        append(out.finish());
+    }
+    @Override
+    public void flightChanged(AbstractFlight flight, long previousDepartureDay){
+        RecordWriter out = new RecordWriter(FLIGHT_CHANGED);
+        out.writeUTF(flight.getFlightNumber());
+        out.writeLong(previousDepartureDay);
+        out.writeLong(flight.getDepartureTime());
+        out.writeLong(flight.getArrivalTime());
+        // appended last so older records without it still replay, leaving the status alone
+        out.writeByte(flight.getStatus().ordinal());
+        append(out.finish());
+    }
+    @Override
+    public void bookingConfirmed(AbstractBooking booking){
+        AbstractFlight flight = booking.getFlight();
+        RecordWriter out = new RecordWriter(BOOKING_CONFIRMED);
+        out.writeLong(booking.getBookingNumber());
+        out.writeUTF(flight.getFlightNumber());
+        out.writeLong(FlightKey.dayOf(flight.getDepartureTime()));
+        out.writeLong(booking.getBookingTime());
+        out.writeDouble(booking.getTotalPrice());
+        out.writeBoolean(booking instanceof StandardBooking && ((StandardBooking) booking).isInsuranceIncluded());
+        out.writeDouble(booking.getPricingStrategy().getTaxRate());
+        out.writeDouble(booking.getPricingStrategy().getDiscountRate());
+        Passenger[] passengers = booking.getPassengers();
+        out.writeShort(passengers.length);
+        for(Passenger p : passengers){
+            out.writeUTF(p.getFirstName());
+            out.writeUTF(p.getLastName());
+            out.writeLong(p.getBirthDate());
+            out.writeUTF(p.getPassportNumber());
+            out.writeUTF(p.getNationality());
+            out.writeUTF(p.getContactEmail());
+            out.writeUTF(p.getContactPhone());
+        }
+        Seat[] seats = booking.getAssignedSeats();
+        out.writeShort(seats.length);
+        for(Seat seat : seats){
+            out.writeInt(seat == null ? -1 : seat.getIndex());
+        }
+        // appended last like the layout name: an overbooked booking has no seat to infer its class from
+        out.writeByte(booking.getClassType().ordinal());
+        out.writeBoolean(booking.isOverbooked());
+        append(out.finish());
+    }
+    @Override
+    public void aircraftChanged(AbstractFlight flight){
+        RecordWriter out = new RecordWriter(AIRCRAFT_CHANGED);
+        out.writeUTF(flight.getFlightNumber());
+        out.writeLong(FlightKey.dayOf(flight.getDepartureTime()));
+        out.writeUTF(flight.getLayout().getName());
+        append(out.finish());
+    }
+    // the booking's seats after a schedule change, on the flight's current aircraft
+    @Override
+    public void bookingRescheduled(AbstractBooking booking, double changeFee){
+        RecordWriter out = new RecordWriter(BOOKING_RESCHEDULED);
+        out.writeLong(booking.getBookingNumber());
+        out.writeDouble(booking.getTotalPrice());
+        out.writeBoolean(booking.isOverbooked());
+        Seat[] seats = booking.getAssignedSeats();
+        out.writeShort(seats.length);
+        for(Seat seat : seats){
+            out.writeInt(seat == null ? -1 : seat.getIndex());
+        }
+        append(out.finish());
+    }
+    @Override
+    public void bookingCancelled(AbstractBooking booking){
+        RecordWriter out = new RecordWriter(BOOKING_CANCELLED);
+        out.writeLong(booking.getBookingNumber());
+        append(out.finish());
+    }
+    @Override
+    public void paymentCompleted(AbstractPaymentProcessor payment){
+        RecordWriter out = new RecordWriter(PAYMENT_COMPLETED);
+        out.writeLong(payment.getPaymentNumber());
+        out.writeLong(payment.getBooking().getBookingNumber());
+        out.writeDouble(payment.getAmount());
+        out.writeLong(payment.getPaymentTime());
+        boolean card = payment instanceof CreditCardPayment;
+        String number = card ? ((CreditCardPayment) payment).getCardNumber() : null;
+        // never journal full card data, only what is needed to recognise the payment again
+        out.writeUTF(number != null && number.length() > 4 ? number.substring(number.length() - 4) : "");
+        out.writeUTF(card && ((CreditCardPayment) payment).getCardHolderName() != null
+                ? ((CreditCardPayment) payment).getCardHolderName() : "");
+        append(out.finish());
+    }
+    @Override
+    public void paymentRefunded(AbstractPaymentProcessor payment){
+        RecordWriter out = new RecordWriter(PAYMENT_REFUNDED);
+        out.writeLong(payment.getPaymentNumber());
+        out.writeLong(payment.getBooking().getBookingNumber());
+        append(out.finish());
+    }
+
+    private void append(byte[] record){
+        if(!running){
+            throw new IllegalStateException("Journal is closed");
+        }
+        boolean wait = durability != JournalDurability.ASYNC;
+        Pending pending = new Pending(record, wait ? Thread.currentThread() : null);
+        queue.add(pending);
+        // close() may have stopped the writer between the check above and the add; whoever removes
+        // the record from the queue owns it, so it is either written, failed by close() or failed here
+        if(!running && queue.remove(pending)){
+            throw new IllegalStateException("Journal is closed");
+        }
+        if(!wait){
+            return;
+        }
+        long deadline = System.nanoTime() + WAIT_TIMEOUT_NANOS;
+        while(!pending.done){
+            long left = deadline - System.nanoTime();
+            if(left <= 0 || !writer.isAlive()){
+                if(pending.done){
+                    break;
+                }
+                throw new UncheckedIOException(new IOException("Journal write not acknowledged"));
+            }
+            LockSupport.parkNanos(this, Math.min(left, TimeUnit.MILLISECONDS.toNanos(100)));
+        }
+        if(pending.failure != null){
+            throw new UncheckedIOException(pending.failure);
+        }
+    }
+    private void writeLoop(){
+        List<Pending> batch = new ArrayList<>();
+        while(running || !queue.isEmpty()){
+            try{
+                Pending first = queue.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+                if(first != null){
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    writeBatch(batch);
+                }
+                if(dirty && System.nanoTime() - lastForce >= flushIntervalNanos){
+                    force();
+                }
+            }
+            catch(InterruptedException e){
+                running = false;
+            }
+            catch(IOException e){
+                for(Pending p : batch){
+                    p.failure = e;
+                }
+            }
+            finally{
+                for(Pending p : batch){
+                    complete(p);
+                }
+                batch.clear();
+            }
+        }
+    }
+    private void writeBatch(List<Pending> batch) throws IOException {
+        for(Pending p : batch){
+            if(buffer.remaining() < p.record.length){
+                flushBuffer();
+            }
+            if(p.record.length > buffer.capacity()){
+                ByteBuffer large = ByteBuffer.wrap(p.record);
+                while(large.hasRemaining()){
+                    channel.write(large);
+                }
+                length = channel.position();
+            }
+            else{
+                buffer.put(p.record);
+            }
+            if(durability == JournalDurability.PER_EVENT){
+                flushBuffer();
+                force();
+                complete(p);
+            }
+        }
+        flushBuffer();
+        if(durability == JournalDurability.GROUP_COMMIT){
+            force();
+        }
+    }
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+        buffer.clear();
+        dirty = true;
+        length = channel.position();
+    }
+    private void force() throws IOException {
+        channel.force(false);
+        dirty = false;
+        lastForce = System.nanoTime();
+    }
+    private static void complete(Pending p){
+        if(!p.done){
+            p.done = true;
+            if(p.waiter != null){
+                LockSupport.unpark(p.waiter);
+            }
+        }
+    }
+    // Stops accepting events, drains everything already queued and fsyncs.
+    @Override
+    public void close() throws IOException {
+        running = false;
+        try{
+            writer.join();
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        Pending late;
+        while((late = queue.poll()) != null){
+            late.failure = new IOException("Journal closed before the event was written");
+            complete(late);
+        }
+        try{
+            if(dirty){
+                force();
+            }
+        }
+        finally{
+            channel.close();
+        }
+    }
+
+    static final class RecordWriter {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        RecordWriter(byte type){
+            writeInt(0);
+            writeByte(type);
+        }
+        void writeByte(int v){ try{ out.writeByte(v); } catch(IOException e){ throw new UncheckedIOException(e); } }
+        void writeBoolean(boolean v){ try{ out.writeBoolean(v); } catch(IOException e){ throw new UncheckedIOException(e); } }
+        void writeShort(int v){ try{ out.writeShort(v); } catch(IOException e){ throw new UncheckedIOException(e); } }
+        void writeInt(int v){ try{ out.writeInt(v); } catch(IOException e){ throw new UncheckedIOException(e); } }
+        void writeLong(long v){ try{ out.writeLong(v); } catch(IOException e){ throw new UncheckedIOException(e); } }
+        void writeDouble(double v){ try{ out.writeDouble(v); } catch(IOException e){ throw new UncheckedIOException(e); } }
+        void writeUTF(String v){ try{ out.writeUTF(v == null ? "" : v); } catch(IOException e){ throw new UncheckedIOException(e); } }
+        byte[] finish(){
+            CRC32 crc = new CRC32();
+            byte[] record = bytes.toByteArray();
+            crc.update(record, 4, record.length - 4);
+            ByteBuffer framed = ByteBuffer.allocate(record.length + 4);
+            framed.put(record).putInt((int) crc.getValue());
+            framed.putInt(0, record.length - 4);
+            return framed.array();
+        }
+    }
+
+    static final class ReplayResult {
+        private long records;
+        private long validLength;
+        private int flights;
+        private int bookings;
+        private int cancellations;
+        private final Map<Long, AbstractPaymentProcessor> payments = new HashMap<>();
+        public long getRecords() { return records; }
+        public long getValidLength() { return validLength; }
+        public int getFlights() { return flights; }
+        public int getBookings() { return bookings; }
+        public int getCancellations() { return cancellations; }
+        public Map<Long, AbstractPaymentProcessor> getPayments() { return payments; }
+    }
+    // Rebuilds flights, bookings and payments from the journal into the given inventory. Call it
+    // before attaching a journal as the inventory's listener, so replayed events are not re-journaled.
+    public static ReplayResult replay(Path path, FlightInventory inventory) throws IOException {
+        return scan(path, inventory, HEADER_SIZE);
+    }
+    // Replays only the records from fromOffset on, e.g. the tail written after a snapshot was taken.
+    // Replay is idempotent, so records already reflected in the snapshot are skipped.
+    public static ReplayResult replay(Path path, FlightInventory inventory, long fromOffset) throws IOException {
+        return scan(path, inventory, Math.max(HEADER_SIZE, fromOffset));
+    }
+    private static ReplayResult scan(Path path, FlightInventory inventory, long fromOffset) throws IOException {
+        ReplayResult result = new ReplayResult();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))){
+            if(in.readInt() != MAGIC || in.readShort() != VERSION){
+                throw new IOException("Not a booking journal: " + path);
+            }
+            long position = HEADER_SIZE;
+            while(position < fromOffset){
+                long skipped = in.skip(fromOffset - position);
+                if(skipped <= 0){
+                    break;
+                }
+                position += skipped;
+            }
+            CRC32 crc = new CRC32();
+            while(true){
+                int length;
+                byte[] payload;
+                int checksum;
+                try{
+                    length = in.readInt();
+                    if(length <= 0 || length > (64 << 20)){
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    checksum = in.readInt();
+                }
+                catch(EOFException e){
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                if((int) crc.getValue() != checksum){
+                    break;
+                }
+                if(inventory != null){
+                    apply(payload, inventory, result);
+                }
+                position += 8 + length;
+                result.records++;
+            }
+            result.validLength = position;
+        }
+        return result;
+    }
+    private static void apply(byte[] payload, FlightInventory inventory, ReplayResult result) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        if(type == FLIGHT_ADDED){
+            byte kind = in.readByte();
+            String number = in.readUTF();
+            String origin = in.readUTF();
+            String destination = in.readUTF();
+            long departure = in.readLong();
+            long arrival = in.readLong();
+            double basePrice = in.readDouble();
+            double domesticTax = in.readDouble();
+            String layoutName = in.available() > 0 ? in.readUTF() : "";
+            AircraftLayout layout = layoutName.isEmpty() ? null : AircraftLayout.forName(layoutName);
+            AbstractFlight flight = kind == DOMESTIC
+                    ? new DomesticFlight(number, origin, destination, departure, arrival, basePrice, domesticTax, layout)
+                    : new InternationalFlight(number, origin, destination, departure, arrival, basePrice, layout);
+            if(inventory.addFlight(flight)){
+                result.flights++;
+            }
+        }
+        else if(type == FLIGHT_CHANGED){
+            String number = in.readUTF();
+            long previousDay = in.readLong();
+            long departure = in.readLong();
+            long arrival = in.readLong();
+            AbstractFlight flight = inventory.getFlight(number, previousDay);
+            if(flight != null){
+                inventory.moveFlight(flight, departure, arrival);
+                if(in.available() > 0){
+                    flight.restoreStatus(FlightStatus.values()[in.readUnsignedByte()]);
+                }
+            }
+        }
+        else if(type == BOOKING_CONFIRMED){
+            long bookingNumber = in.readLong();
+            AbstractFlight flight = inventory.getFlight(in.readUTF(), in.readLong());
+            // checked before the passengers are read, so a skipped booking adds no rows to the store
+            if(flight == null || inventory.getBooking(bookingNumber) != null){
+                return;
+            }
+            long bookingTime = in.readLong();
+            double totalPrice = in.readDouble();
+            boolean insurance = in.readBoolean();
+            double taxRate = in.readDouble();
+            double discountRate = in.readDouble();
+            Passenger[] passengers = new Passenger[in.readUnsignedShort()];
+            for(int i = 0 ; i < passengers.length ; i++){
+                passengers[i] = new Passenger(inventory.getPassengerStore(), in.readUTF(), in.readUTF(), in.readLong(), in.readUTF(),
+                        in.readUTF(), in.readUTF(), in.readUTF());
+            }
+            int seatCount = in.readUnsignedShort();
+            StandardBooking booking = new StandardBooking(flight, passengers,
+                    new SeasonalPricingStrategy(taxRate, discountRate), insurance);
+            booking.setBookingNumber(bookingNumber);
+            booking.setBookingTime(bookingTime);
+            booking.setTotalPrice(totalPrice);
+            Seat[] seats = new Seat[Math.max(seatCount, passengers.length)];
+            for(int i = 0 ; i < seatCount ; i++){
+                int index = in.readInt();
+                if(index >= 0 && index < flight.getSeatMap().size()){
+                    flight.getSeatMap().reserve(index);
+                    seats[i] = flight.getSeatMap().getSeat(index);
+                }
+            }
+            booking.setAssignedSeats(seats);
+            if(in.available() > 0){
+                booking.setClassType(ClassType.values()[in.readUnsignedByte()]);
+                if(in.readBoolean()){
+                    booking.setOverbooked(true);
+                    if(flight.getOverbooking() != null){
+                        flight.getOverbooking().restore(booking.getClassType(), passengers.length);
+                    }
+                }
+            }
+            else if(seatCount > 0 && seats[0] != null){
+                booking.setClassType(seats[0].getClassType());
+            }
+            booking.setStatus(BookingStatus.CONFIRMED);
+            inventory.restoreBooking(booking);
+            result.bookings++;
+        }
+        else if(type == AIRCRAFT_CHANGED){
+            AbstractFlight flight = inventory.getFlight(in.readUTF(), in.readLong());
+            AircraftLayout layout = AircraftLayout.forName(in.readUTF());
+            if(flight != null && flight.getLayout() != layout){
+                flight.replaceSeatMap(new SeatMap(layout));
+            }
+        }
+        else if(type == BOOKING_RESCHEDULED){
+            AbstractBooking booking = inventory.getBooking(in.readLong());
+            double totalPrice = in.readDouble();
+            boolean overbooked = in.readBoolean();
+            if(booking == null){
+                return;
+            }
+            SeatMap seatMap = booking.getFlight().getSeatMap();
+            Seat[] held = booking.getAssignedSeats();
+            // seats of a replaced aircraft went with its map
+            if(held.length > 0 && held[0] != null && held[0].getSeatMapOrNull() == seatMap){
+                seatMap.release(held);
+            }
+            Seat[] seats = new Seat[held.length];
+            int seatCount = in.readUnsignedShort();
+            for(int i = 0 ; i < seatCount ; i++){
+                int index = in.readInt();
+                if(i < seats.length && index >= 0 && index < seatMap.size()){
+                    seatMap.reserve(index);
+                    seats[i] = seatMap.getSeat(index);
+                }
+            }
+            booking.setAssignedSeats(seats);
+            booking.setTotalPrice(totalPrice);
+            OverbookingManager overbooking = booking.getFlight().getOverbooking();
+            if(overbooked != booking.isOverbooked() && overbooking != null){
+                if(overbooked){
+                    overbooking.restore(booking.getClassType(), booking.getPassengers().length);
+                }
+                else{
+                    overbooking.withdraw(booking.getClassType(), booking.getPassengers().length);
+                }
+            }
+            booking.setOverbooked(overbooked);
+        }
+        else if(type == BOOKING_CANCELLED){
+            AbstractBooking booking = inventory.getBooking(in.readLong());
+            if(booking != null){
+                booking.releaseSeats(); // from the map the seats came from, which a swap may have replaced
+                booking.setStatus(BookingStatus.CANCELLED);
+                inventory.forgetBooking(booking);
+                result.cancellations++;
+            }
+        }
+        else if(type == PAYMENT_COMPLETED){
+            long paymentNumber = in.readLong();
+            AbstractBooking booking = inventory.getBooking(in.readLong());
+            double amount = in.readDouble();
+            long paymentTime = in.readLong();
+            String lastDigits = in.readUTF();
+            String holder = in.readUTF();
+            if(booking != null){
+                CreditCardPayment payment = new CreditCardPayment(booking, "************" + lastDigits, holder, "", "");
+                payment.setPaymentNumber(paymentNumber);
+                payment.setAmount(amount);
+                payment.setPaymentTime(paymentTime);
+                payment.setStatus(PaymentStatus.COMPLETED);
+                result.payments.put(paymentNumber, payment);
+            }
+        }
+        else if(type == PAYMENT_REFUNDED){
+            AbstractPaymentProcessor payment = result.payments.get(in.readLong());
+            if(payment != null){
+                payment.setStatus(PaymentStatus.REFUNDED);
+            }
+        }
+    }
+}
+// Versioned snapshot of a flight inventory: flights, seat bitmaps, bookings and passengers.
+// Layout: header [magic][version][createdAt][journalOffset][flightCount][indexOffset], one record
+// per flight, then an index of record offsets sorted by flight number and departure day.
+class InventorySnapshot {
+    static final int MAGIC = 0x46534E50; // "FSNP"
+    static final short VERSION = 4; // 2 added the aircraft layout name to each flight, 3 each booking's class and overbooked flag, 4 the flight's status
+    static final int HEADER_SIZE = 34;
+    static final byte DOMESTIC = 0;
+    static final byte INTERNATIONAL = 1;
+
+    // Writes every flight of the inventory; journalOffset is where replay should resume.
+    public static void write(FlightInventory inventory, Path path, long journalOffset) throws IOException {
+        try(Writer writer = new Writer(path)){
+            for(FlightInventory.FlightEntry entry : inventory.entries()){
+                writer.add(entry.getFlight(), inventory.getBookings(entry.getFlight()));
+            }
+            writer.finish(journalOffset);
+        }
+    }
+
+    // Streams flight records to a temporary file and moves it over the target in finish(), so a
+    // crash while writing never leaves a half-written snapshot behind.
+    static final class Writer implements Closeable {
+        private static final class IndexEntry {
+            final String flightNumber;
+            final long departureDay;
+            final long offset;
+            IndexEntry(String flightNumber, long departureDay, long offset){
+                this.flightNumber = flightNumber;
+                this.departureDay = departureDay;
+                this.offset = offset;
+            }
+        }
+        private final Path target;
+        private final Path temp;
+        private final DataOutputStream out;
+        private final List<IndexEntry> index = new ArrayList<>();
+        private long position;
+        private boolean finished;
+
+        Writer(Path target) throws IOException {
+            this.target = target;
+            this.temp = target.resolveSibling(target.getFileName() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16));
+            out.write(new byte[HEADER_SIZE]);
+            position = HEADER_SIZE;
+        }
+        public void add(AbstractFlight flight, List<AbstractBooking> bookings) throws IOException {
+            byte kind;
+            if(flight instanceof DomesticFlight){
+                kind = DOMESTIC;
+            }
+            else if(flight instanceof InternationalFlight){
+                kind = INTERNATIONAL;
+            }
+            else{
+                throw new IllegalArgumentException("Cannot snapshot flight type " + flight.getClass().getName());
+            }
+            index.add(new IndexEntry(flight.getFlightNumber(), FlightKey.dayOf(flight.getDepartureTime()), position));
+            int start = out.size();
+            out.writeByte(kind);
+            writeString(flight.getFlightNumber());
+            writeString(flight.getOrigin());
+            writeString(flight.getDestination());
+            out.writeLong(flight.getDepartureTime());
+            out.writeLong(flight.getArrivalTime());
+            out.writeDouble(flight.getBasePrice());
+            out.writeDouble(kind == DOMESTIC ? ((DomesticFlight) flight).getDomesticTaxRate() : 0.0);
+            writeString(flight.getLayout().getName());
+            out.writeByte(flight.getStatus().ordinal());
+            SeatMap seatMap = flight.getSeatMap();
+            out.writeInt(seatMap.size());
+            for(int w = 0 ; w < seatMap.wordCount() ; w++){
+                out.writeLong(seatMap.freeWord(w));
+            }
+            out.writeInt(bookings.size());
+            for(AbstractBooking booking : bookings){
+                out.writeLong(booking.getBookingNumber());
+                out.writeLong(booking.getBookingTime());
+                out.writeDouble(booking.getTotalPrice());
+                out.writeBoolean(booking instanceof StandardBooking && ((StandardBooking) booking).isInsuranceIncluded());
+                out.writeDouble(booking.getPricingStrategy().getTaxRate());
+                out.writeDouble(booking.getPricingStrategy().getDiscountRate());
+                out.writeByte(booking.getStatus().ordinal());
+                out.writeByte(booking.getClassType().ordinal());
+                out.writeBoolean(booking.isOverbooked());
+                Passenger[] passengers = booking.getPassengers();
+                out.writeShort(passengers.length);
+                for(Passenger p : passengers){
+                    writeString(p.getFirstName());
+                    writeString(p.getLastName());
+                    out.writeLong(p.getBirthDate());
+                    writeString(p.getPassportNumber());
+                    writeString(p.getNationality());
+                    writeString(p.getContactEmail());
+                    writeString(p.getContactPhone());
+                }
+                Seat[] seats = booking.getAssignedSeats();
+                out.writeShort(seats.length);
+                for(Seat seat : seats){
+                    out.writeInt(seat == null ? -1 : seat.getIndex());
+                }
+            }
+            position += out.size() - start;
+            if(position > Integer.MAX_VALUE){
+                throw new IOException("Snapshot larger than 2 GB cannot be mapped in one region");
+            }
+        }
+        private void writeString(String value) throws IOException {
+            byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+        public void finish(long journalOffset) throws IOException {
+            index.sort((a, b) -> {
+                int c = a.flightNumber.compareTo(b.flightNumber);
+                return c != 0 ? c : Long.compare(a.departureDay, b.departureDay);
+            });
+            long indexOffset = position;
+            for(IndexEntry entry : index){
+                out.writeLong(entry.offset);
+            }
+            out.close();
+            try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)){
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putShort(VERSION).putLong(System.currentTimeMillis())
+                        .putLong(journalOffset).putInt(index.size()).putLong(indexOffset).flip();
+                while(header.hasRemaining()){
+                    channel.write(header, header.position());
+                }
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+        }
+        @Override
+        public void close() throws IOException {
+            if(!finished){
+                out.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+}
+// Read side of InventorySnapshot. Opening only maps the file and checks the header; flights are
+// decoded from the mapping the first time they are asked for and then cached.
+class MappedSnapshot implements Closeable {
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final long createdAt;
+    private final long journalOffset;
+    private final int flightCount;
+    private final int indexOffset;
+    private final AtomicReferenceArray<AbstractFlight> flights;
+
+    private MappedSnapshot(FileChannel channel, MappedByteBuffer buffer) throws IOException {
+        this.channel = channel;
+        this.buffer = buffer;
+        if(buffer.limit() < InventorySnapshot.HEADER_SIZE || buffer.getInt(0) != InventorySnapshot.MAGIC){
+            throw new IOException("Not an inventory snapshot");
+        }
+        if(buffer.getShort(4) != InventorySnapshot.VERSION){
+            throw new IOException("Unsupported snapshot version " + buffer.getShort(4));
+        }
+        this.createdAt = buffer.getLong(6);
+        this.journalOffset = buffer.getLong(14);
+        this.flightCount = buffer.getInt(22);
+        this.indexOffset = (int) buffer.getLong(26);
+        this.flights = new AtomicReferenceArray<>(flightCount);
+    }
+    public static MappedSnapshot open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try{
+            if(channel.size() > Integer.MAX_VALUE){
+                throw new IOException("Snapshot larger than 2 GB cannot be mapped in one region");
+            }
+            return new MappedSnapshot(channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        catch(IOException | RuntimeException e){
+            channel.close();
+            throw e;
+        }
+    }
+    public long getCreatedAt(){
+        return createdAt;
+    }
+    public long getJournalOffset(){
+        return journalOffset;
+    }
+    public int getFlightCount(){
+        return flightCount;
+    }
+    private int recordOffset(int i){
+        return (int) buffer.getLong(indexOffset + i * 8);
+    }
+    public FlightKey keyAt(int i){
+        Cursor in = new Cursor(buffer, recordOffset(i) + 1);
+        String number = in.string();
+        in.skipString();
+        in.skipString();
+        return new FlightKey(number, FlightKey.dayOf(in.getLong()));
+    }
+    // Binary search over the sorted index, decoding only the keys it visits.
+    public int indexOf(String flightNumber, long departureDay){
+        int low = 0;
+        int high = flightCount - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            FlightKey key = keyAt(mid);
+            int c = key.getFlightNumber().compareTo(flightNumber);
+            if(c == 0){
+                c = Long.compare(key.getDepartureDay(), departureDay);
+            }
+            if(c < 0){
+                low = mid + 1;
+            }
+            else if(c > 0){
+                high = mid - 1;
+            }
+            else{
+                return mid;
+            }
+        }
+        return -1;
+    }
+    public AbstractFlight find(String flightNumber, long departureDay){
+        int i = indexOf(flightNumber, departureDay);
+        return i < 0 ? null : flight(i);
+    }
+    public AbstractFlight flight(int i){
+        AbstractFlight flight = flights.get(i);
+        if(flight == null){
+            flight = decodeFlight(new Cursor(buffer, recordOffset(i)));
+            if(!flights.compareAndSet(i, null, flight)){
+                flight = flights.get(i);
+            }
+        }
+        return flight;
+    }
+    private static AbstractFlight decodeFlight(Cursor in){
+        byte kind = in.getByte();
+        String number = in.string();
+        String origin = in.string();
+        String destination = in.string();
+        long departure = in.getLong();
+        long arrival = in.getLong();
+        double basePrice = in.getDouble();
+        double domesticTax = in.getDouble();
+        String layoutName = in.string();
+        AircraftLayout layout = layoutName.isEmpty() ? null : AircraftLayout.forName(layoutName);
+        AbstractFlight flight = kind == InventorySnapshot.DOMESTIC
+                ? new DomesticFlight(number, origin, destination, departure, arrival, basePrice, domesticTax, layout)
+                : new InternationalFlight(number, origin, destination, departure, arrival, basePrice, layout);
+        flight.restoreStatus(FlightStatus.values()[in.getByte()]);
+        SeatMap seatMap = flight.getSeatMap();
+        int seatCount = in.getInt();
+        for(int w = 0 ; w < (seatCount + 63) >>> 6 ; w++){
+            long reserved = ~in.getLong();
+            while(reserved != 0){
+                int index = (w << 6) + Long.numberOfTrailingZeros(reserved);
+                if(index >= seatCount){
+                    break;
+                }
+                if(index < seatMap.size()){
+                    seatMap.reserve(index);
+                }
+                reserved &= reserved - 1;
+            }
+        }
+        return flight;
+    }
+    public List<AbstractBooking> bookings(int i){
+        return bookings(i, flight(i), null);
+    }
+    // store null gives every passenger its own fields
+    private List<AbstractBooking> bookings(int i, AbstractFlight flight, PassengerStore store){
+        Cursor in = new Cursor(buffer, recordOffset(i) + 1);
+        in.skipString();
+        in.skipString();
+        in.skipString();
+        in.skip(32);
+        in.skipString();
+        in.skip(1);
+        int seatCount = in.getInt();
+        in.skip(((seatCount + 63) >>> 6) * 8);
+        int count = in.getInt();
+        List<AbstractBooking> bookings = new ArrayList<>(count);
+        for(int b = 0 ; b < count ; b++){
+            long bookingNumber = in.getLong();
+            long bookingTime = in.getLong();
+            double totalPrice = in.getDouble();
+            boolean insurance = in.getByte() != 0;
+            double taxRate = in.getDouble();
+            double discountRate = in.getDouble();
+            BookingStatus status = BookingStatus.values()[in.getByte()];
+            ClassType classType = ClassType.values()[in.getByte()];
+            boolean overbooked = in.getByte() != 0;
+            Passenger[] passengers = new Passenger[in.getShort() & 0xFFFF];
+            for(int p = 0 ; p < passengers.length ; p++){
+                passengers[p] = store == null
+                        ? new Passenger(in.string(), in.string(), in.getLong(), in.string(), in.string(), in.string(), in.string())
+                        : new Passenger(store, in.string(), in.string(), in.getLong(), in.string(), in.string(), in.string(), in.string());
+            }
+            int stored = in.getShort() & 0xFFFF;
+            Seat[] seats = new Seat[Math.max(stored, passengers.length)];
+            for(int s = 0 ; s < stored ; s++){
+                int index = in.getInt();
+                seats[s] = index >= 0 && index < flight.getSeatMap().size() ? flight.getSeatMap().getSeat(index) : null;
+            }
+            StandardBooking booking = new StandardBooking(flight, passengers, new SeasonalPricingStrategy(taxRate, discountRate), insurance);
+            booking.setBookingNumber(bookingNumber);
+            booking.setBookingTime(bookingTime);
+            booking.setTotalPrice(totalPrice);
+            booking.setAssignedSeats(seats);
+            booking.setClassType(classType);
+            booking.setOverbooked(overbooked);
+            booking.restoreStatus(status);
+            bookings.add(booking);
+        }
+        return bookings;
+    }
+    // Materialises every flight and booking into the inventory. Returns the number of flights added.
+    // Overbooked bookings take their places back in the flight's OverbookingManager, if it has one
+    // by then, as they do on journal replay.
+    public int restoreInto(FlightInventory inventory){
+        int added = 0;
+        for(int i = 0 ; i < flightCount ; i++){
+            AbstractFlight flight = flight(i);
+            if(inventory.addFlight(flight)){
+                added++;
+                OverbookingManager overbooking = flight.getOverbooking();
+                for(AbstractBooking booking : bookings(i, flight, inventory.getPassengerStore())){
+                    if(overbooking != null && booking.isOverbooked() && booking.getStatus() == BookingStatus.CONFIRMED){
+                        overbooking.restore(booking.getClassType(), booking.getPassengers().length);
+                    }
+                    inventory.restoreBooking(booking);
+                }
+            }
+        }
+        return added;
+    }
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Reads with absolute offsets only, so any number of threads can share the mapping.
+    private static final class Cursor {
+        private final ByteBuffer buffer;
+        private int position;
+        Cursor(ByteBuffer buffer, int position){
+            this.buffer = buffer;
+            this.position = position;
+        }
+        byte getByte(){
+            return buffer.get(position++);
+        }
+        short getShort(){
+            short v = buffer.getShort(position);
+            position += 2;
+            return v;
+        }
+        int getInt(){
+            int v = buffer.getInt(position);
+            position += 4;
+            return v;
+        }
+        long getLong(){
+            long v = buffer.getLong(position);
+            position += 8;
+            return v;
+        }
+        double getDouble(){
+            double v = buffer.getDouble(position);
+            position += 8;
+            return v;
+        }
+        void skip(int bytes){
+            position += bytes;
+        }
+        String string(){
+            int length = getShort() & 0xFFFF;
+            byte[] bytes = new byte[length];
+            for(int i = 0 ; i < length ; i++){
+                bytes[i] = buffer.get(position + i);
+            }
+            position += length;
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        void skipString(){
+            int length = getShort() & 0xFFFF;
+            position += length;
+        }
+    }
+}
+// Route index for shopping queries: one timeline per (origin, destination), kept sorted by
+// departure time, so a departure window is two binary searches and the availability filter only
+// ever looks at flights inside the window.
+class FlightSearchIndex {
+    static final class RouteTimeline {
+        private final StampedLock lock = new StampedLock();
+        private long[] times = new long[8];
+        private AbstractFlight[] flights = new AbstractFlight[8];
+        private int size;
+
+        void add(AbstractFlight flight, long departureTime){
+            long stamp = lock.writeLock();
+            try{
+                if(size == times.length){
+                    times = Arrays.copyOf(times, size * 2);
+                    flights = Arrays.copyOf(flights, size * 2);
+                }
+                int at = upperBound(times, size, departureTime);
+                System.arraycopy(times, at, times, at + 1, size - at);
+                System.arraycopy(flights, at, flights, at + 1, size - at);
+                times[at] = departureTime;
+                flights[at] = flight;
+                size++;
+            }
+            finally{
+                lock.unlockWrite(stamp);
+            }
+        }
+        boolean remove(AbstractFlight flight, long departureTime){
+            long stamp = lock.writeLock();
+            try{
+                for(int i = lowerBound(times, size, departureTime) ; i < size && times[i] == departureTime ; i++){
+                    if(flights[i] == flight){
+                        System.arraycopy(times, i + 1, times, i, size - i - 1);
+                        System.arraycopy(flights, i + 1, flights, i, size - i - 1);
+                        flights[--size] = null;
+                        return true;
+                    }
+                }
+                return false;
+            }
+            finally{
+                lock.unlockWrite(stamp);
+            }
+        }
+        int size(){
+            long stamp = lock.tryOptimisticRead();
+            int n = size;
+            if(!lock.validate(stamp)){
+                stamp = lock.readLock();
+                try{
+                    n = size;
+                }
+                finally{
+                    lock.unlockRead(stamp);
+                }
+            }
+            return n;
+        }
+        // Optimistic read first; if a writer got in between, the collected result is discarded and
+        // the scan is repeated under the read lock.
+        int collect(long from, long to, ClassType type, int minSeats, int limit, List<AbstractFlight> out){
+            int mark = out.size();
+            long stamp = lock.tryOptimisticRead();
+            if(stamp != 0){
+                scan(from, to, type, minSeats, limit, out);
+                if(lock.validate(stamp)){
+                    return out.size() - mark;
+                }
+                out.subList(mark, out.size()).clear();
+            }
+            stamp = lock.readLock();
+            try{
+                scan(from, to, type, minSeats, limit, out);
+                return out.size() - mark;
+            }
+            finally{
+                lock.unlockRead(stamp);
+            }
+        }
+        private void scan(long from, long to, ClassType type, int minSeats, int limit, List<AbstractFlight> out){
+            long[] times = this.times;
+            AbstractFlight[] flights = this.flights;
+            int n = Math.min(size, Math.min(times.length, flights.length));
+            int found = 0;
+            for(int i = lowerBound(times, n, from) ; i < n && times[i] <= to && found < limit ; i++){
+                AbstractFlight flight = flights[i];
+                if(flight == null){
+                    continue;
+                }
+                int free = type == null ? flight.getAvailableSeatCount() : flight.getAvailableSeatCount(type);
+                if(free >= minSeats){
+                    out.add(flight);
+                    found++;
+                }
+            }
+        }
+        private static int lowerBound(long[] times, int n, long key){
+            int low = 0;
+            int high = n;
+            while(low < high){
+                int mid = (low + high) >>> 1;
+                if(times[mid] < key){
+                    low = mid + 1;
+                }
+                else{
+                    high = mid;
+                }
+            }
+            return low;
+        }
+        private static int upperBound(long[] times, int n, long key){
+            int low = 0;
+            int high = n;
+            while(low < high){
+                int mid = (low + high) >>> 1;
+                if(times[mid] <= key){
+                    low = mid + 1;
+                }
+                else{
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final ConcurrentHashMap<String, RouteTimeline> routes = new ConcurrentHashMap<>(1024);
+    // every departure from an airport, whatever the destination, for connection building
+    private final ConcurrentHashMap<String, RouteTimeline> departures = new ConcurrentHashMap<>(1024);
+    private final ConcurrentHashMap<String, Set<String>> originsByDestination = new ConcurrentHashMap<>(1024);
+
+    public void add(AbstractFlight flight){
+        add(flight, flight.getDepartureTime());
+    }
+    // Indexes the flight under an explicit departure time rather than reading it from the flight.
+    public void add(AbstractFlight flight, long departureTime){
+        routes.computeIfAbsent(FlightInventory.routeKey(flight.getOrigin(), flight.getDestination()),
+                k -> new RouteTimeline()).add(flight, departureTime);
+        departures.computeIfAbsent(flight.getOrigin(), k -> new RouteTimeline()).add(flight, departureTime);
+        originsByDestination.computeIfAbsent(flight.getDestination(), k -> ConcurrentHashMap.newKeySet()).add(flight.getOrigin());
+    }
+    public boolean remove(AbstractFlight flight, long departureTime){
+        RouteTimeline timeline = routes.get(FlightInventory.routeKey(flight.getOrigin(), flight.getDestination()));
+        RouteTimeline fromOrigin = departures.get(flight.getOrigin());
+        if(fromOrigin != null){
+            fromOrigin.remove(flight, departureTime);
+        }
+        return timeline != null && timeline.remove(flight, departureTime);
+    }
+    // Airports with at least one direct flight to destination.
+    public Set<String> originsServing(String destination){
+        Set<String> origins = originsByDestination.get(destination);
+        return origins == null ? Collections.<String>emptySet() : origins;
+    }
+    // Departures from origin to any destination in [from, to] with at least minSeats free.
+    public int departures(String origin, long from, long to, int minSeats, int limit, List<AbstractFlight> out){
+        RouteTimeline timeline = departures.get(origin);
+        return timeline == null ? 0 : timeline.collect(from, to, null, minSeats, limit, out);
+    }
+    // Re-indexes a flight whose departure time changed from previousDepartureTime.
+    public void reschedule(AbstractFlight flight, long previousDepartureTime){
+        if(previousDepartureTime != flight.getDepartureTime() && remove(flight, previousDepartureTime)){
+            add(flight);
+        }
+    }
+    public int routeCount(){
+        return routes.size();
+    }
+    public int size(String origin, String destination){
+        RouteTimeline timeline = routes.get(FlightInventory.routeKey(origin, destination));
+        return timeline == null ? 0 : timeline.size();
+    }
+    // Flights on the route departing in [from, to] with at least minSeats free in the given class
+    // (any class when type is null), in departure order, at most limit of them.
+    public List<AbstractFlight> search(String origin, String destination, long from, long to,
+                                       ClassType type, int minSeats, int limit){
+        List<AbstractFlight> result = new ArrayList<>();
+        search(origin, destination, from, to, type, minSeats, limit, result);
+        return result;
+    }
+    public int search(String origin, String destination, long from, long to,
+                      ClassType type, int minSeats, int limit, List<AbstractFlight> out){
+        RouteTimeline timeline = routes.get(FlightInventory.routeKey(origin, destination));
+        return timeline == null ? 0 : timeline.collect(from, to, type, minSeats, limit, out);
+    }
+}
+class Itinerary {
+    private final AbstractFlight[] legs;
+    private final double price;
+    public Itinerary ( AbstractFlight[] legs , double price ){
+        this.legs = legs;
+        this.price = price;
+    }
+    public AbstractFlight[] getLegs() {
+        return legs;
+    }
+
+    public int getStops() {
+        return legs.length - 1;
+    }
+
+    public double getPrice() {
+        return price;
+    }
+
+    public long getDepartureTime() {
+        return legs[0].getDepartureTime();
+    }
+
+    public long getArrivalTime() {
+        return legs[legs.length - 1].getArrivalTime();
+    }
+    // door to door, connections included
+    public long getTotalMinutes (){
+        return (getArrivalTime() - getDepartureTime()) / (1000 * 60);
+    }
+    public long getFlyingMinutes (){
+        long minutes = 0;
+        for(AbstractFlight leg : legs){
+            minutes += leg.calculateDuration();
+        }
+        return minutes;
+    }
+    @Override
+    public String toString (){
+        StringBuilder sb = new StringBuilder();
+        for(AbstractFlight leg : legs){
+            if(sb.length() == 0){
+                sb.append(leg.getOrigin());
+            }
+            sb.append(" -").append(leg.getFlightNumber()).append("-> ").append(leg.getDestination());
+        }
+        return sb.append(" (").append(getTotalMinutes()).append(" min, ").append(price).append(" TL)").toString();
+    }
+}
+// Builds direct, 1-stop and 2-stop itineraries on top of FlightSearchIndex. Each leg is looked up
+// as a time window of departures from the previous arrival airport, and a leg is only followed if
+// its arrival airport still has a direct flight to the destination (or can reach one that does),
+// so the search never walks the whole schedule.
+class ConnectionSearch {
+    private static final long MINUTE = 60L * 1000;
+    private final FlightSearchIndex index;
+    private final Function<AbstractFlight, AbstractPricingStrategy> pricing;
+    private long minConnectionMillis = 45 * MINUTE;
+    private long maxConnectionMillis = 6 * 60 * MINUTE;
+    private long maxTravelMillis = 30 * 60 * MINUTE;
+    private int maxStops = 2;
+    private int maxResults = 20;
+    private int maxFanOut = 200;
+
+    public ConnectionSearch ( FlightSearchIndex index , Function<AbstractFlight, AbstractPricingStrategy> pricing ){
+        this.index = index;
+        this.pricing = pricing;
+    }
+    public long getMinConnectionMillis() {
+        return minConnectionMillis;
+    }
+
+    public void setMinConnectionMillis(long minConnectionMillis) {
+        this.minConnectionMillis = minConnectionMillis;
+    }
+
+    public long getMaxConnectionMillis() {
+        return maxConnectionMillis;
+    }
+
+    public void setMaxConnectionMillis(long maxConnectionMillis) {
+        this.maxConnectionMillis = maxConnectionMillis;
+    }
+
+    public long getMaxTravelMillis() {
+        return maxTravelMillis;
+    }
+
+    public void setMaxTravelMillis(long maxTravelMillis) {
+        this.maxTravelMillis = maxTravelMillis;
+    }
+
+    public int getMaxStops() {
+        return maxStops;
+    }
+
+    public void setMaxStops(int maxStops) {
+        this.maxStops = Math.max(0, Math.min(2, maxStops));
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    public void setMaxResults(int maxResults) {
+        this.maxResults = maxResults;
+    }
+
+    public int getMaxFanOut() {
+        return maxFanOut;
+    }
+
+    public void setMaxFanOut(int maxFanOut) {
+        this.maxFanOut = maxFanOut;
+    }
+    // Itineraries leaving origin in [from, to] with seats for every passenger on every leg, ordered
+    // by arrival time and then price.
+    public List<Itinerary> search ( String origin , String destination , long from , long to , int passengers ){
+        List<AbstractFlight[]> found = new ArrayList<>();
+        Set<String> lastHops = index.originsServing(destination);
+        List<AbstractFlight> firstLegs = new ArrayList<>();
+        index.departures(origin, from, to, passengers, maxFanOut, firstLegs);
+        List<AbstractFlight> second = new ArrayList<>();
+        List<AbstractFlight> third = new ArrayList<>();
+        Map<String, Boolean> reach = new HashMap<>();
+        for(AbstractFlight leg1 : firstLegs){
+            String stop1 = leg1.getDestination();
+            if(stop1.equals(destination)){
+                found.add(new AbstractFlight[]{ leg1 });
+                continue;
+            }
+            if(maxStops == 0 || stop1.equals(origin)){
+                continue;
+            }
+            boolean direct = lastHops.contains(stop1);
+            if(!direct && (maxStops < 2 || !reachesLastHop(stop1, lastHops, reach))){
+                continue;
+            }
+            long deadline = leg1.getDepartureTime() + maxTravelMillis;
+            second.clear();
+            index.departures(stop1, leg1.getArrivalTime() + minConnectionMillis,
+                    Math.min(leg1.getArrivalTime() + maxConnectionMillis, deadline), passengers, maxFanOut, second);
+            for(AbstractFlight leg2 : second){
+                String stop2 = leg2.getDestination();
+                if(leg2.getArrivalTime() > deadline || stop2.equals(origin) || stop2.equals(stop1)){
+                    continue;
+                }
+                if(stop2.equals(destination)){
+                    found.add(new AbstractFlight[]{ leg1, leg2 });
+                    continue;
+                }
+                if(maxStops < 2 || !lastHops.contains(stop2)){
+                    continue;
+                }
+                third.clear();
+                index.search(stop2, destination, leg2.getArrivalTime() + minConnectionMillis,
+                        Math.min(leg2.getArrivalTime() + maxConnectionMillis, deadline), null, passengers, maxFanOut, third);
+                for(AbstractFlight leg3 : third){
+                    if(leg3.getArrivalTime() <= deadline){
+                        found.add(new AbstractFlight[]{ leg1, leg2, leg3 });
+                    }
+                }
+            }
+        }
+        found.sort((a, b) -> {
+            int c = Long.compare(a[a.length - 1].getArrivalTime(), b[b.length - 1].getArrivalTime());
+            return c != 0 ? c : Integer.compare(a.length, b.length);
+        });
+        List<Itinerary> result = new ArrayList<>(Math.min(found.size(), maxResults));
+        for(int i = 0 ; i < found.size() && result.size() < maxResults ; i++){
+            AbstractFlight[] legs = found.get(i);
+            result.add(new Itinerary(legs, price(legs, passengers)));
+        }
+        result.sort((a, b) -> {
+            int c = Long.compare(a.getArrivalTime(), b.getArrivalTime());
+            return c != 0 ? c : Double.compare(a.getPrice(), b.getPrice());
+        });
+        return result;
+    }
+    // true when airport has a direct flight to one of the last-hop airports, memoised per query
+    private boolean reachesLastHop ( String airport , Set<String> lastHops , Map<String, Boolean> reach ){
+        Boolean known = reach.get(airport);
+        if(known == null){
+            known = Boolean.FALSE;
+            for(String hop : lastHops){
+                if(index.size(airport, hop) > 0){
+                    known = Boolean.TRUE;
+                    break;
+                }
+            }
+            reach.put(airport, known);
+        }
+        return known;
+    }
+    // Each leg is priced by its own strategy; seasonal strategies go through their shared FareTable
+    // so concurrent searches never write into a strategy.
+    private double price ( AbstractFlight[] legs , int passengers ){
+        double total = 0;
+        for(AbstractFlight leg : legs){
+            AbstractPricingStrategy strategy = pricing.apply(leg);
+            if(strategy instanceof SeasonalPricingStrategy){
+                total += ((SeasonalPricingStrategy) strategy).getFareTable().finalPrice(leg, passengers);
+            }
+            else{
+                total += strategy.calculateFinalPrice(leg, passengers);
+            }
+        }
+        return total;
+    }
+}
+class BookingRequest {
+    private final AbstractFlight flight;
+    private final Passenger[] passengers;
+    private final AbstractPricingStrategy pricingStrategy;
+    private final boolean insuranceIncluded;
+    private final ClassType classType;
+    public BookingRequest ( AbstractFlight flight , Passenger[] passengers , AbstractPricingStrategy pricingStrategy , boolean insuranceIncluded ){
+        this(flight, passengers, pricingStrategy, insuranceIncluded, ClassType.ECONOMY);
+    }
+    public BookingRequest ( AbstractFlight flight , Passenger[] passengers , AbstractPricingStrategy pricingStrategy , boolean insuranceIncluded ,
+                            ClassType classType ){
+        this.flight = flight;
+        this.passengers = passengers;
+        this.pricingStrategy = pricingStrategy;
+        this.insuranceIncluded = insuranceIncluded;
+        this.classType = classType;
+    }
+    public AbstractFlight getFlight() {
+        return flight;
+    }
+
+    public Passenger[] getPassengers() {
+        return passengers;
+    }
+
+    public AbstractPricingStrategy getPricingStrategy() {
+        return pricingStrategy;
+    }
+
+    public boolean isInsuranceIncluded() {
+        return insuranceIncluded;
+    }
+
+    public ClassType getClassType() {
+        return classType;
+    }
+}
+// Books a whole batch (group and charter sales) at once. Requests are grouped by flight; each
+// group prices every (strategy, party size) combination once, claims all the seats it needs in a
+// single pass over the flight's SeatMap and hands them out in request order. Booking numbers come
+// from one IdGenerator block and the booking time is read once. Results come back in request order
+// as StandardBookings that are either CONFIRMED or FAILED, exactly as createBooking leaves them.
+class BulkBookingService {
+    private final FlightInventory inventory;
+    public BulkBookingService (){
+        this(null);
+    }
+    // With an inventory, confirmed bookings are registered there and reported to its listener.
+    public BulkBookingService ( FlightInventory inventory ){
+        this.inventory = inventory;
+    }
+    public StandardBooking[] bookAll ( List<BookingRequest> requests ){
+        int n = requests.size();
+        StandardBooking[] results = new StandardBooking[n];
+        long[] numbers = new long[n];
+        IdGenerator.DEFAULT.nextIds(numbers, n);
+        long bookingTime = System.currentTimeMillis();
+        IdentityHashMap<AbstractFlight, int[]> groups = new IdentityHashMap<>();
+        int[] sizes = new int[n];
+        for(int i = 0 ; i < n ; i++){
+            int[] group = groups.get(requests.get(i).getFlight());
+            if(group == null){
+                group = new int[]{ i, 0 };
+                groups.put(requests.get(i).getFlight(), group);
+            }
+            sizes[group[0]]++;
+        }
+        // bucket request indexes by group, keeping request order inside each group
+        int[] order = new int[n];
+        int offset = 0;
+        for(int[] group : groups.values()){
+            group[1] = offset;
+            offset += sizes[group[0]];
+            sizes[group[0]] = group[1];
+        }
+        for(int i = 0 ; i < n ; i++){
+            int[] group = groups.get(requests.get(i).getFlight());
+            order[sizes[group[0]]++] = i;
+        }
+        for(Map.Entry<AbstractFlight, int[]> group : groups.entrySet()){
+            int from = group.getValue()[1];
+            bookFlight(group.getKey(), order, from, sizes[group.getValue()[0]], requests, numbers, bookingTime, results);
+        }
+        return results;
+    }
+    // Inside the flight entry's gate, like FlightInventory.book, so a schedule change cannot swap the
+    // seat map between the reservation and the registration.
+    private void bookFlight ( AbstractFlight flight , int[] order , int from , int to , List<BookingRequest> requests ,
+                              long[] numbers , long bookingTime , StandardBooking[] results ){
+        FlightInventory.FlightEntry entry = inventory == null ? null : inventory.entryFor(flight);
+        if(entry != null){
+            entry.enter();
+        }
+        try{
+            reserve(flight, order, from, to, requests, numbers, bookingTime, results);
+        }
+        finally{
+            if(entry != null){
+                entry.leave();
+            }
+        }
+    }
+    private void reserve ( AbstractFlight flight , int[] order , int from , int to , List<BookingRequest> requests ,
+                           long[] numbers , long bookingTime , StandardBooking[] results ){
+        IdentityHashMap<AbstractPricingStrategy, double[]> prices = new IdentityHashMap<>();
+        SeatMap seatMap = flight.getSeatMap();
+        ClassType[] types = ClassType.values();
+        int[] needed = new int[types.length];
+        for(int k = from ; k < to ; k++){
+            BookingRequest request = requests.get(order[k]);
+            needed[request.getClassType().ordinal()] += request.getPassengers().length;
+        }
+        // one pool per class, claimed a word at a time in seat order so a party's seats are adjacent
+        // unless they straddle a row end
+        Seat[][] pools = new Seat[types.length][];
+        int[] available = new int[types.length];
+        int[] next = new int[types.length];
+        for(int c = 0 ; c < types.length ; c++){
+            pools[c] = new Seat[needed[c]];
+            available[c] = needed[c] == 0 ? 0 : seatMap.reserveUpTo(types[c], needed[c], pools[c], 0);
+        }
+        IBookingEventListener listener = inventory == null ? null : inventory.getListener();
+        List<StandardBooking> confirmed = new ArrayList<>(to - from);
+        for(int k = from ; k < to ; k++){
+            int i = order[k];
+            BookingRequest request = requests.get(i);
+            Passenger[] passengers = request.getPassengers();
+            StandardBooking booking = new StandardBooking(flight, passengers, request.getPricingStrategy(),
+                    request.isInsuranceIncluded(), price(prices, request.getPricingStrategy(), flight, request.getClassType(), passengers.length),
+                    numbers[i], bookingTime);
+            booking.setListener(listener);
+            booking.setClassType(request.getClassType());
+            results[i] = booking;
+            int c = request.getClassType().ordinal();
+            if(passengers.length > available[c] - next[c]){
+                booking.setStatus(BookingStatus.FAILED);
+                continue;
+            }
+            System.arraycopy(pools[c], next[c], booking.getAssignedSeats(), 0, passengers.length);
+            next[c] += passengers.length;
+            booking.setStatus(BookingStatus.CONFIRMED);
+            confirmed.add(booking);
+        }
+        for(int c = 0 ; c < types.length ; c++){
+            for(int k = next[c] ; k < available[c] ; k++){
+                seatMap.release(pools[c][k].getIndex());
+            }
+        }
+        if(inventory != null){
+            inventory.registerAll(flight, confirmed);
+        }
+        if(listener != null){
+            for(StandardBooking booking : confirmed){
+                listener.bookingConfirmed(booking);
+            }
+        }
+    }
+    // prices[strategy][passengerCount * classes + class], filled on first use
+    private static double price ( IdentityHashMap<AbstractPricingStrategy, double[]> prices , AbstractPricingStrategy strategy ,
+                                  AbstractFlight flight , ClassType type , int passengerCount ){
+        int key = passengerCount * ClassType.values().length + type.ordinal();
+        double[] byCount = prices.get(strategy);
+        if(byCount == null || byCount.length <= key){
+            double[] grown = new double[Math.max(key + 1, 8 * ClassType.values().length)];
+            Arrays.fill(grown, Double.NaN);
+            if(byCount != null){
+                System.arraycopy(byCount, 0, grown, 0, byCount.length);
+            }
+            byCount = grown;
+            prices.put(strategy, byCount);
+        }
+        if(Double.isNaN(byCount[key])){
+            byCount[key] = strategy.calculateFinalPrice(flight, type, passengerCount);
+        }
+        return byCount[key];
+    }
+}
+// Request-handling layer for concurrent booking, change, cancel, payment and refund calls. Each
+// call runs on its own virtual thread when the JVM has them (Java 21+) and on a cached platform
+// thread otherwise, so a call blocked on payment authorisation costs no pooled worker. A semaphore
+// bounds in-flight calls; once it is exhausted a caller waits up to the admission timeout and the
+// call is then rejected, so overload shows up as backpressure instead of an unbounded queue.
+class BookingFrontEnd implements Closeable {
+    private final FlightInventory inventory;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final Semaphore admission;
+    private final int maxInFlight;
+    private final long admissionTimeoutNanos;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    // bookAndPay's holds last one call, which always confirms or releases them, so nothing ticks them
+    private final SeatHoldManager holds;
+    public BookingFrontEnd ( FlightInventory inventory , int maxInFlight , long admissionTimeout , TimeUnit unit ){
+        if(maxInFlight <= 0){
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        this.inventory = inventory;
+        this.maxInFlight = maxInFlight;
+        this.admission = new Semaphore(maxInFlight);
+        this.admissionTimeoutNanos = unit.toNanos(admissionTimeout);
+        this.holds = new SeatHoldManager(inventory, TimeUnit.MINUTES.toMillis(15), 1000, false);
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "booking-request");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    // Executors.newVirtualThreadPerTaskExecutor looked up reflectively so the class still runs on Java 8.
+    private static ExecutorService newVirtualThreadExecutor (){
+        try{
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch(ReflectiveOperationException e){
+            return null;
+        }
+    }
+    public boolean isVirtualThreads (){
+        return virtualThreads;
+    }
+    public int getMaxInFlight (){
+        return maxInFlight;
+    }
+    public int getInFlight (){
+        return maxInFlight - admission.availablePermits();
+    }
+    public long getCompleted (){
+        return completed.sum();
+    }
+    public long getFailed (){
+        return failed.sum();
+    }
+    public long getRejected (){
+        return rejected.sum();
+    }
+    // Books through the inventory when there is one, so the booking is registered and journaled.
+    public CompletableFuture<Boolean> book ( AbstractBooking booking ){
+        return submit(() -> inventory != null ? inventory.book(booking) : booking.createBooking());
+    }
+    public CompletableFuture<Boolean> pay ( AbstractPaymentProcessor payment ){
+        return submit(payment::processPayment);
+    }
+    // Holds the seats, pays and confirms on the same thread. A payment that fails or throws releases
+    // the hold, so the booking ends FAILED without ever having been confirmed, cancelled or refunded.
+    public CompletableFuture<Boolean> bookAndPay ( AbstractBooking booking , Function<AbstractBooking, ? extends AbstractPaymentProcessor> payment ){
+        return submit(() -> {
+            SeatHold hold = holds.hold(booking);
+            if(hold == null){
+                return false;
+            }
+            try{
+                return holds.payAndConfirm(hold, payment.apply(booking));
+            }
+            finally{
+                if(hold.isHeld()){
+                    holds.release(hold);
+                }
+            }
+        });
+    }
+    public CompletableFuture<Boolean> cancel ( StandardBooking booking ){
+        return submit(() -> inventory != null ? inventory.cancel(booking) : booking.cancel());
+    }
+    public CompletableFuture<Boolean> refund ( AbstractPaymentProcessor payment ){
+        return submit(payment::refundPayment);
+    }
+    public CompletableFuture<Boolean> change ( AbstractFlight flight , ChangeRequest request ){
+        return submit(() -> inventory != null ? inventory.changeFlight(flight, request)
+                : flight instanceof IChangeable && ((IChangeable) flight).change(request));
+    }
+    // Admits the call or rejects it after the admission timeout. The permit is held until the call
+    // finishes, whichever way it finishes.
+    public <T> CompletableFuture<T> submit ( Callable<T> call ){
+        CompletableFuture<T> result = new CompletableFuture<>();
+        boolean admitted;
+        try{
+            admitted = admission.tryAcquire(admissionTimeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            admitted = false;
+        }
+        if(!admitted){
+            rejected.increment();
+            result.completeExceptionally(new RejectedExecutionException("Too many requests in flight: " + maxInFlight));
+            return result;
+        }
+        try{
+            executor.execute(() -> {
+                try{
+                    result.complete(call.call());
+                    completed.increment();
+                }
+                catch(Throwable e){
+                    failed.increment();
+                    result.completeExceptionally(e);
+                }
+                finally{
+                    admission.release();
+                }
+            });
+        }
+        catch(RejectedExecutionException e){
+            admission.release();
+            rejected.increment();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+    // Stops taking calls and waits for the ones in flight.
+    @Override
+    public void close (){
+        executor.shutdown();
+        try{
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        holds.close();
+    }
+}
+// A card acquirer. Calls return at once and complete when the acquirer answers; authorize
+// completes with null when the card is declined.
+interface IAcquirer {
+    CompletableFuture<String> authorize ( AbstractPaymentProcessor payment );
+    CompletableFuture<Boolean> capture ( AbstractPaymentProcessor payment , String authorizationCode );
+    CompletableFuture<Boolean> refund ( AbstractPaymentProcessor payment );
+}
+// Local stand-in for a real acquirer. Requests are spread round-robin over a few connections, each
+// pipelining up to window requests; every answer arrives latency later from a timer thread, so an
+// outstanding request holds no thread. Requests beyond a connection's window queue behind it.
+class StubAcquirer implements IAcquirer, Closeable {
+    private final ScheduledThreadPoolExecutor timer;
+    private final long latencyNanos;
+    private final double declineRate;
+    private final Connection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    public StubAcquirer ( long latency , TimeUnit unit , double declineRate , int connectionCount , int window ){
+        this.timer = AsyncPaymentPipeline.newTimer("stub-acquirer");
+        this.latencyNanos = unit.toNanos(latency);
+        this.declineRate = declineRate;
+        this.connections = new Connection[connectionCount];
+        for(int i = 0 ; i < connectionCount ; i++){
+            connections[i] = new Connection(window);
+        }
+    }
+    @Override
+    public CompletableFuture<String> authorize ( AbstractPaymentProcessor payment ){
+        boolean approved = declineRate <= 0 || ThreadLocalRandom.current().nextDouble() >= declineRate;
+        return send(() -> approved ? "A" + Long.toHexString(payment.getPaymentNumber()) : null);
+    }
+    @Override
+    public CompletableFuture<Boolean> capture ( AbstractPaymentProcessor payment , String authorizationCode ){
+        return send(() -> authorizationCode != null);
+    }
+    @Override
+    public CompletableFuture<Boolean> refund ( AbstractPaymentProcessor payment ){
+        return send(() -> Boolean.TRUE);
+    }
+    private <T> CompletableFuture<T> send ( Supplier<T> answer ){
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Connection connection = connections[(nextConnection.getAndIncrement() & Integer.MAX_VALUE) % connections.length];
+        connection.waiting.offer(() -> result.complete(answer.get()));
+        connection.drain();
+        return result;
+    }
+    @Override
+    public void close (){
+        timer.shutdownNow();
+    }
+    private final class Connection {
+        private final int window;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+        Connection ( int window ){
+            this.window = window;
+        }
+        void drain (){
+            while(!waiting.isEmpty()){
+                int n = inFlight.get();
+                if(n >= window){
+                    return;
+                }
+                if(!inFlight.compareAndSet(n, n + 1)){
+                    continue;
+                }
+                Runnable request = waiting.poll();
+                if(request == null){
+                    inFlight.decrementAndGet();
+                    continue;
+                }
+                timer.schedule(() -> {
+                    try{
+                        request.run();
+                    }
+                    finally{
+                        inFlight.decrementAndGet();
+                        drain();
+                    }
+                }, latencyNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+}
+// Non-blocking payment pipeline: validate -> authorize -> capture, and refund, each acquirer stage
+// bounded by the timeout. Nothing waits on the acquirer, so throughput follows the number of
+// payments in flight rather than acquirer latency. A declined, timed-out or failed stage leaves the
+// payment FAILED; a payment that timed out after authorisation still needs voiding at the acquirer.
+class AsyncPaymentPipeline implements Closeable {
+    private final IAcquirer acquirer;
+    private final ScheduledThreadPoolExecutor timer;
+    private final long timeoutNanos;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder declined = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    public AsyncPaymentPipeline ( IAcquirer acquirer , long timeout , TimeUnit unit ){
+        this.acquirer = acquirer;
+        this.timeoutNanos = unit.toNanos(timeout);
+        this.timer = newTimer("payment-timeout");
+    }
+    static ScheduledThreadPoolExecutor newTimer ( String name ){
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        // cancelled timeouts would otherwise stay queued until they expire
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+    public long getCompleted (){
+        return completed.sum();
+    }
+    public long getDeclined (){
+        return declined.sum();
+    }
+    public long getTimedOut (){
+        return timedOut.sum();
+    }
+    public CompletableFuture<Boolean> process ( AbstractPaymentProcessor payment ){
+        if(!payment.validatePaymentDetails()){
+            payment.setStatus(PaymentStatus.FAILED);
+            declined.increment();
+            return CompletableFuture.completedFuture(false);
+        }
+        return within(acquirer.authorize(payment)).thenCompose(code -> {
+            if(code == null){
+                payment.setStatus(PaymentStatus.FAILED);
+                declined.increment();
+                return CompletableFuture.completedFuture(false);
+            }
+            payment.setAuthorizationCode(code);
+            payment.setStatus(PaymentStatus.AUTHORIZED);
+            return within(acquirer.capture(payment, code)).thenApply(captured -> {
+                if(!captured){
+                    payment.setStatus(PaymentStatus.FAILED);
+                    declined.increment();
+                    return false;
+                }
+                payment.complete();
+                completed.increment();
+                return true;
+            });
+        }).exceptionally(e -> failed(payment, e));
+    }
+    public CompletableFuture<Boolean> refund ( AbstractPaymentProcessor payment ){
+        if(payment.getStatus() != PaymentStatus.COMPLETED){
+            return CompletableFuture.completedFuture(false);
+        }
+        return within(acquirer.refund(payment)).thenApply(refunded -> refunded && payment.refundPayment())
+                .exceptionally(e -> {
+                    if(e.getCause() instanceof TimeoutException){
+                        timedOut.increment();
+                    }
+                    return false;
+                });
+    }
+    private boolean failed ( AbstractPaymentProcessor payment , Throwable e ){
+        if(e.getCause() instanceof TimeoutException){
+            timedOut.increment();
+        }
+        payment.setStatus(PaymentStatus.FAILED);
+        return false;
+    }
+    // Fails the stage with a TimeoutException if the acquirer has not answered in time.
+    private <T> CompletableFuture<T> within ( CompletableFuture<T> stage ){
+        if(stage.isDone()){
+            return stage;
+        }
+        ScheduledFuture<?> timeout = timer.schedule(() -> stage.completeExceptionally(
+                new TimeoutException("Acquirer did not answer within " + timeoutNanos / 1000000 + " ms")),
+                timeoutNanos, TimeUnit.NANOSECONDS);
+        stage.whenComplete((result, e) -> timeout.cancel(false));
+        return stage;
+    }
+    @Override
+    public void close (){
+        timer.shutdownNow();
+    }
+}
+// Hierarchical timing wheel: LEVELS wheels of 64 slots, level l slots spanning 64^l ticks. A timer
+// sits in the lowest level whose span still separates it from the current tick and cascades down
+// as time reaches its slot, so scheduling, cancelling and each tick are O(1) however many timers
+// are pending. Timers are doubly linked inside their slot so a cancel just unlinks the node.
+final class TimingWheel<T> {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = 6;
+    static final class Timer<T> {
+        final T item;
+        final long tick;
+        private Timer<T> prev;
+        private Timer<T> next;
+        private int level = -1;
+        private int slot;
+        Timer ( T item , long tick ){
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+    private final long tickMillis;
+    private final long origin;
+    private final Timer<T>[][] slots;
+    private long current;
+    private int size;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimingWheel ( long tickMillis , long originMillis ){
+        this.tickMillis = tickMillis;
+        this.origin = originMillis;
+        this.slots = new Timer[LEVELS][SLOTS];
+    }
+    long getTickMillis (){
+        return tickMillis;
+    }
+    synchronized int size (){
+        return size;
+    }
+    // Returns null when the deadline falls on a tick that has already passed.
+    synchronized Timer<T> schedule ( T item , long deadlineMillis ){
+        long tick = (Math.max(deadlineMillis, origin) - origin + tickMillis - 1) / tickMillis;
+        if(tick <= current){
+            return null;
+        }
+        if(((tick - current) >>> (BITS * LEVELS)) != 0){
+            throw new IllegalArgumentException("Deadline beyond the wheel's range: " + deadlineMillis);
+        }
+        Timer<T> timer = new Timer<>(item, tick);
+        place(timer);
+        size++;
+        return timer;
+    }
+    synchronized boolean cancel ( Timer<T> timer ){
+        if(timer.level < 0){
+            return false;
+        }
+        unlink(timer);
+        size--;
+        return true;
+    }
+    // Moves the wheel up to nowMillis and adds the items of every timer that came due to expired.
+    synchronized void advance ( long nowMillis , List<T> expired ){
+        long target = (nowMillis - origin) / tickMillis;
+        while(current < target){
+            current++;
+            int top = 0;
+            while(top < LEVELS - 1 && (current & ((1L << (BITS * (top + 1))) - 1)) == 0){
+                top++;
+            }
+            for(int level = top ; level > 0 ; level--){
+                int slot = (int) ((current >>> (BITS * level)) & (SLOTS - 1));
+                Timer<T> timer = slots[level][slot];
+                slots[level][slot] = null;
+                while(timer != null){
+                    Timer<T> next = timer.next;
+                    place(timer);
+                    timer = next;
+                }
+            }
+            int slot = (int) (current & (SLOTS - 1));
+            Timer<T> timer = slots[0][slot];
+            slots[0][slot] = null;
+            while(timer != null){
+                Timer<T> next = timer.next;
+                timer.level = -1;
+                timer.prev = timer.next = null;
+                expired.add(timer.item);
+                size--;
+                timer = next;
+            }
+        }
+    }
+    private void place ( Timer<T> timer ){
+        long diff = timer.tick ^ current;
+        int level = 0;
+        while(level < LEVELS - 1 && (diff >>> (BITS * (level + 1))) != 0){
+            level++;
+        }
+        int slot = (int) ((timer.tick >>> (BITS * level)) & (SLOTS - 1));
+        Timer<T> head = slots[level][slot];
+        timer.level = level;
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = head;
+        if(head != null){
+            head.prev = timer;
+        }
+        slots[level][slot] = timer;
+    }
+    private void unlink ( Timer<T> timer ){
+        if(timer.prev != null){
+            timer.prev.next = timer.next;
+        }
+        else{
+            slots[timer.level][timer.slot] = timer.next;
+        }
+        if(timer.next != null){
+            timer.next.prev = timer.prev;
+        }
+        timer.level = -1;
+        timer.prev = timer.next = null;
+    }
+}
+// A booking's seats held until payment confirms them or the hold runs out.
+class SeatHold {
+    static final int HELD = 0;
+    static final int CONFIRMED = 1;
+    static final int RELEASED = 2;
+    static final int EXPIRED = 3;
+    private final AbstractBooking booking;
+    private final long expiresAt;
+    private final AtomicInteger state = new AtomicInteger(HELD);
+    TimingWheel.Timer<SeatHold> timer;
+    SeatHold ( AbstractBooking booking , long expiresAt ){
+        this.booking = booking;
+        this.expiresAt = expiresAt;
+    }
+    public AbstractBooking getBooking (){
+        return booking;
+    }
+    public long getExpiresAt (){
+        return expiresAt;
+    }
+    public boolean isHeld (){
+        return state.get() == HELD;
+    }
+    public boolean isExpired (){
+        return state.get() == EXPIRED;
+    }
+    boolean finish ( int outcome ){
+        return state.compareAndSet(HELD, outcome);
+    }
+}
+// Temporary seat holds for the time between seat selection and payment. hold() reserves the
+// seats and leaves the booking PENDING; confirm() (after a successful payment) turns it into a
+// normal confirmed booking, release() or the TTL running out frees the seats again and marks the
+// booking FAILED or EXPIRED. Expiry is driven by a TimingWheel ticked from one daemon thread.
+class SeatHoldManager implements Closeable {
+    private final FlightInventory inventory;
+    private final long ttlMillis;
+    private final TimingWheel<SeatHold> wheel;
+    private final Thread ticker;
+    private volatile boolean closed;
+    private final LongAdder created = new LongAdder();
+    private final LongAdder converted = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder expiryFailures = new LongAdder();
+    public SeatHoldManager ( FlightInventory inventory , long ttl , TimeUnit unit ){
+        this(inventory, unit.toMillis(ttl), 10, true);
+    }
+    // Without a ticker the owner drives expiry through expireUntil, e.g. from a test clock.
+    SeatHoldManager ( FlightInventory inventory , long ttlMillis , long tickMillis , boolean startTicker ){
+        this.inventory = inventory;
+        this.ttlMillis = ttlMillis;
+        this.wheel = new TimingWheel<>(tickMillis, System.currentTimeMillis());
+        if(startTicker){
+            ticker = new Thread(this::tick, "seat-hold-expiry");
+            ticker.setDaemon(true);
+            ticker.start();
+        }
+        else{
+            ticker = null;
+        }
+    }
+    public long getTtlMillis (){
+        return ttlMillis;
+    }
+    public int getPending (){
+        return wheel.size();
+    }
+    public long getCreated (){
+        return created.sum();
+    }
+    public long getConverted (){
+        return converted.sum();
+    }
+    public long getReleased (){
+        return released.sum();
+    }
+    public long getExpired (){
+        return expired.sum();
+    }
+    // holds whose expiry threw, e.g. in a listener; their seats were freed before the listener ran
+    public long getExpiryFailures (){
+        return expiryFailures.sum();
+    }
+    // Prices the booking and reserves its seats for the TTL. Returns null (booking FAILED) if the
+    // seats are not available.
+    public SeatHold hold ( AbstractBooking booking ){
+        return hold(booking, System.currentTimeMillis() + ttlMillis);
+    }
+    SeatHold hold ( AbstractBooking booking , long expiresAt ){
+        booking.setTotalPrice(booking.calculateTotalPrice());
+        // through the entry's gate like FlightInventory.book; a swap after this is caught on confirm,
+        // where assignSeats moves the booking to the new aircraft
+        FlightInventory.FlightEntry entry = inventory == null ? null : inventory.entryFor(booking.getFlight());
+        if(entry != null){
+            entry.enter();
+        }
+        boolean assigned;
+        try{
+            assigned = booking.assignSeats();
+        }
+        finally{
+            if(entry != null){
+                entry.leave();
+            }
+        }
+        if(!assigned){
+            booking.setStatus(BookingStatus.FAILED);
+            return null;
+        }
+        SeatHold hold = new SeatHold(booking, expiresAt);
+        created.increment();
+        synchronized (hold){
+            hold.timer = wheel.schedule(hold, expiresAt);
+        }
+        if(hold.timer == null){
+            expire(hold);
+        }
+        return hold;
+    }
+    // Turns the hold into a confirmed booking at the price it was held at, which payAndConfirm
+    // charged; the held seats count towards the load, so repricing now could land in a higher fare
+    // bucket. False if it already expired or was released, or if the booking cannot be confirmed
+    // (e.g. its flight is no longer registered), which frees the seats.
+    public boolean confirm ( SeatHold hold ){
+        if(!hold.finish(SeatHold.CONFIRMED)){
+            return false;
+        }
+        cancelTimer(hold);
+        AbstractBooking booking = hold.getBooking();
+        boolean booked = inventory != null ? inventory.book(booking, false) : booking.createBooking(false);
+        if(booked){
+            converted.increment();
+        }
+        else{
+            free(hold, BookingStatus.FAILED);
+            released.increment();
+        }
+        return booked;
+    }
+    public boolean release ( SeatHold hold ){
+        if(!hold.finish(SeatHold.RELEASED)){
+            return false;
+        }
+        cancelTimer(hold);
+        free(hold, BookingStatus.FAILED);
+        released.increment();
+        return true;
+    }
+    // Pays for a held booking. A failed payment releases the hold; a payment that completes after
+    // the hold expired is refunded.
+    public boolean payAndConfirm ( SeatHold hold , AbstractPaymentProcessor payment ){
+        if(!payment.processPayment()){
+            release(hold);
+            return false;
+        }
+        if(confirm(hold)){
+            return true;
+        }
+        payment.refundPayment();
+        return false;
+    }
+    public CompletableFuture<Boolean> payAndConfirm ( SeatHold hold , AbstractPaymentProcessor payment , AsyncPaymentPipeline pipeline ){
+        return payment.processPaymentAsync(pipeline).thenCompose(paid -> {
+            if(!paid){
+                release(hold);
+                return CompletableFuture.completedFuture(false);
+            }
+            if(confirm(hold)){
+                return CompletableFuture.completedFuture(true);
+            }
+            return payment.refundPaymentAsync(pipeline).thenApply(refunded -> false);
+        });
+    }
+    private void cancelTimer ( SeatHold hold ){
+        TimingWheel.Timer<SeatHold> timer;
+        synchronized (hold){
+            timer = hold.timer;
+        }
+        if(timer != null){
+            wheel.cancel(timer);
+        }
+    }
+    private void expire ( SeatHold hold ){
+        if(hold.finish(SeatHold.EXPIRED)){
+            free(hold, BookingStatus.EXPIRED);
+            expired.increment();
+        }
+    }
+    private void free ( SeatHold hold , BookingStatus status ){
+        AbstractBooking booking = hold.getBooking();
+        booking.releaseSeats();
+        booking.setStatus(status);
+    }
+    // Expires every hold due by nowMillis; returns how many came due. The due holds are already out
+    // of the wheel, so one that throws is counted and the rest still expire.
+    int expireUntil ( long nowMillis ){
+        List<SeatHold> due = new ArrayList<>();
+        wheel.advance(nowMillis, due);
+        for(SeatHold hold : due){
+            try{
+                expire(hold);
+            }
+            catch(RuntimeException e){
+                expiryFailures.increment();
+            }
+        }
+        return due.size();
+    }
+    private void tick (){
+        long tickNanos = wheel.getTickMillis() * 1000000L;
+        while(!closed){
+            LockSupport.parkNanos(tickNanos);
+            expireUntil(System.currentTimeMillis());
+        }
+    }
+    @Override
+    public void close (){
+        closed = true;
+        if(ticker != null){
+            LockSupport.unpark(ticker);
+        }
+    }
+}
+// Log-linear latency histogram in the style of HdrHistogram: exact below 64 ns, then 32 linear
+// sub-buckets per power of two (about 3% relative error) up to 2^63 ns. Recording is a couple of
+// atomic adds on preallocated arrays, so it never allocates.
+final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final Metrics metrics; // owner whose sampler re-arms this histogram, if any
+    // Set by the Metrics sampler; the first call to see it is timed. Deliberately not volatile: a
+    // late or doubled sample is harmless, a fenced read on every call is not. Starts armed so the
+    // first call starts the sampler.
+    boolean armed = true;
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    public LatencyHistogram (){
+        this(null);
+    }
+    LatencyHistogram ( Metrics metrics ){
+        this.metrics = metrics;
+    }
+    static int bucketOf ( long nanos ){
+        if(nanos < 2 * SUB_BUCKETS){
+            return (int) Math.max(0, nanos);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        return (exponent - SUB_BITS) * SUB_BUCKETS + (int) (nanos >>> (exponent - SUB_BITS));
+    }
+    static long lowerBound ( int bucket ){
+        if(bucket < 2 * SUB_BUCKETS){
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        return ((long) (bucket % SUB_BUCKETS + SUB_BUCKETS)) << (exponent - SUB_BITS);
+    }
+    public void record ( long nanos ){
+        counts.incrementAndGet(bucketOf(nanos));
+        totalNanos.add(nanos);
+        long max = maxNanos.get();
+        while(nanos > max && !maxNanos.compareAndSet(max, nanos)){
+            max = maxNanos.get();
+        }
+    }
+    // Returns the start time when this call is to be sampled, 0 otherwise. Unsampled calls pay one
+    // field read, which is why hot paths use this instead of timing every call.
+    public long start (){
+        if(!Metrics.ENABLED || !armed){
+            return 0;
+        }
+        armed = false;
+        if(metrics != null){
+            metrics.startSampler();
+        }
+        return System.nanoTime();
+    }
+    // Records the time since a start() value; 0 means the call was not sampled.
+    public void recordSince ( long start ){
+        if(start != 0){
+            record(System.nanoTime() - start);
+        }
+    }
+    public long getCount (){
+        long count = 0;
+        for(int i = 0 ; i < BUCKETS ; i++){
+            count += counts.get(i);
+        }
+        return count;
+    }
+    public long getMaxNanos (){
+        return maxNanos.get();
+    }
+    public double getMeanNanos (){
+        long count = getCount();
+        return count == 0 ? 0 : (double) totalNanos.sum() / count;
+    }
+    // Lower bound of the bucket holding the given quantile (0..1).
+    public long getQuantileNanos ( double quantile ){
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for(int i = 0 ; i < BUCKETS ; i++){
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if(count == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for(int i = 0 ; i < BUCKETS ; i++){
+            seen += snapshot[i];
+            if(seen >= rank){
+                return Math.min(lowerBound(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+    public void reset (){
+        for(int i = 0 ; i < BUCKETS ; i++){
+            counts.set(i, 0);
+        }
+        totalNanos.reset();
+        maxNanos.set(0);
+    }
+}
+// Built-in instrumentation of the booking, pricing and payment hot paths. Two clock reads cost
+// more than a priced fare, so latencies are sampled by time: a daemon thread arms every histogram
+// each flight.metrics.sampleMicros (default 1000) and the next call through it is timed. That
+// bounds sampling to about 1,000 calls per second per histogram whatever the load; outcome
+// counters are exact. Set -Dflight.metrics=false to compile the instrumentation away.
+final class Metrics {
+    static final boolean ENABLED = !"false".equals(System.getProperty("flight.metrics"));
+    static final long SAMPLE_MICROS = Math.max(1, Long.getLong("flight.metrics.sampleMicros", 1000));
+    static final Metrics DEFAULT = new Metrics();
+    private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+    private final Map<String, LongAdder> counters = new LinkedHashMap<>();
+    final LatencyHistogram createBooking = histogram("booking.create");
+    final LatencyHistogram assignSeats = histogram("booking.assignSeats");
+    final LatencyHistogram cancel = histogram("booking.cancel");
+    final LatencyHistogram processRefund = histogram("booking.processRefund");
+    final LatencyHistogram calculateFinalPrice = histogram("pricing.calculateFinalPrice");
+    final LatencyHistogram validatePaymentDetails = histogram("payment.validatePaymentDetails");
+    final LongAdder bookingsFailed = counter("booking.failed");
+    final LongAdder bookingErrors = counter("booking.errors");
+    final LongAdder cancellations = counter("booking.cancelled");
+    final LongAdder refunds = counter("booking.refunded");
+    final LongAdder invalidPayments = counter("payment.invalidDetails");
+    private volatile Thread sampler;
+    // The sampler starts with the first timed call or export, not when a booking class loads.
+    void startSampler (){
+        if(sampler != null || !ENABLED){
+            return;
+        }
+        synchronized (this){
+            if(sampler == null){
+                Thread thread = new Thread(this::arm, "metrics-sampler");
+                thread.setDaemon(true);
+                thread.start();
+                sampler = thread;
+            }
+        }
+    }
+    private void arm (){
+        LatencyHistogram[] armed = histograms.values().toArray(new LatencyHistogram[0]);
+        while(true){
+            LockSupport.parkNanos(SAMPLE_MICROS * 1000);
+            for(LatencyHistogram histogram : armed){
+                histogram.armed = true;
+            }
+        }
+    }
+    LatencyHistogram histogram ( String name ){
+        LatencyHistogram histogram = new LatencyHistogram(this);
+        histograms.put(name, histogram);
+        return histogram;
+    }
+    LongAdder counter ( String name ){
+        LongAdder counter = new LongAdder();
+        counters.put(name, counter);
+        return counter;
+    }
+    public Map<String, LatencyHistogram> getHistograms (){
+        return Collections.unmodifiableMap(histograms);
+    }
+    public Map<String, LongAdder> getCounters (){
+        return Collections.unmodifiableMap(counters);
+    }
+    public long getSampleMicros (){
+        return SAMPLE_MICROS;
+    }
+    public void export ( IMetricsExporter exporter ) throws IOException {
+        startSampler();
+        exporter.export(this);
+    }
+    public void reset (){
+        for(LatencyHistogram histogram : histograms.values()){
+            histogram.reset();
+        }
+        for(LongAdder counter : counters.values()){
+            counter.reset();
+        }
+    }
+}
+interface IMetricsExporter {
+    void export ( Metrics metrics ) throws IOException;
+}
+// Plain-text dump, one line per histogram (samples taken, sampled latency percentiles) and counter.
+class TextMetricsExporter implements IMetricsExporter {
+    private final Appendable out;
+    public TextMetricsExporter ( Appendable out ){
+        this.out = out;
+    }
+    @Override
+    public void export ( Metrics metrics ) throws IOException {
+        for(Map.Entry<String, LatencyHistogram> entry : metrics.getHistograms().entrySet()){
+            LatencyHistogram h = entry.getValue();
+            out.append(String.format("%-32s samples=%,d  mean=%,.0f ns  p50=%,d ns  p99=%,d ns  p99.9=%,d ns  max=%,d ns%n",
+                    entry.getKey(), h.getCount(), h.getMeanNanos(), h.getQuantileNanos(0.5),
+                    h.getQuantileNanos(0.99), h.getQuantileNanos(0.999), h.getMaxNanos()));
+        }
+        for(Map.Entry<String, LongAdder> entry : metrics.getCounters().entrySet()){
+            out.append(String.format("%-32s %,d%n", entry.getKey(), entry.getValue().sum()));
+        }
+    }
+}
+// Publishes the metrics as one MBean (flight:type=Metrics by default) whose attributes are read
+// live: <histogram>.samples/.meanNanos/.p50Nanos/.p99Nanos/.p999Nanos/.maxNanos and each counter.
+class JmxMetricsExporter implements IMetricsExporter, DynamicMBean {
+    private static final String[] STATS = { "samples", "meanNanos", "p50Nanos", "p99Nanos", "p999Nanos", "maxNanos" };
+    private final ObjectName name;
+    private volatile Metrics metrics;
+    public JmxMetricsExporter () throws MalformedObjectNameException {
+        this(new ObjectName("flight:type=Metrics"));
+    }
+    public JmxMetricsExporter ( ObjectName name ){
+        this.name = name;
+    }
+    @Override
+    public void export ( Metrics metrics ) throws IOException {
+        this.metrics = metrics;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try{
+            if(!server.isRegistered(name)){
+                server.registerMBean(this, name);
+            }
+        }
+        catch(JMException e){
+            throw new IOException("Could not register " + name, e);
+        }
+    }
+    @Override
+    public Object getAttribute ( String attribute ) throws AttributeNotFoundException {
+        Metrics metrics = this.metrics;
+        LongAdder counter = metrics.getCounters().get(attribute);
+        if(counter != null){
+            return counter.sum();
+        }
+        int dot = attribute.lastIndexOf('.');
+        LatencyHistogram h = dot < 0 ? null : metrics.getHistograms().get(attribute.substring(0, dot));
+        if(h == null){
+            throw new AttributeNotFoundException(attribute);
+        }
+        switch(attribute.substring(dot + 1)){
+            case "samples": return h.getCount();
+            case "meanNanos": return h.getMeanNanos();
+            case "p50Nanos": return h.getQuantileNanos(0.5);
+            case "p99Nanos": return h.getQuantileNanos(0.99);
+            case "p999Nanos": return h.getQuantileNanos(0.999);
+            case "maxNanos": return h.getMaxNanos();
+            default: throw new AttributeNotFoundException(attribute);
+        }
+    }
+    @Override
+    public AttributeList getAttributes ( String[] attributes ){
+        AttributeList list = new AttributeList();
+        for(String attribute : attributes){
+            try{
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            }
+            catch(AttributeNotFoundException e){
+                // skipped, as the DynamicMBean contract allows
+            }
+        }
+        return list;
+    }
+    @Override
+    public void setAttribute ( Attribute attribute ) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+    @Override
+    public AttributeList setAttributes ( AttributeList attributes ){
+        return new AttributeList();
+    }
+    @Override
+    public Object invoke ( String actionName , Object[] params , String[] signature ) throws MBeanException {
+        if(actionName.equals("reset")){
+            metrics.reset();
+            return null;
+        }
+        throw new MBeanException(new UnsupportedOperationException(actionName));
+    }
+    @Override
+    public MBeanInfo getMBeanInfo (){
+        Metrics metrics = this.metrics;
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for(String histogram : metrics.getHistograms().keySet()){
+            for(String stat : STATS){
+                String type = stat.equals("meanNanos") ? "double" : "long";
+                attributes.add(new MBeanAttributeInfo(histogram + "." + stat, type, histogram + " " + stat, true, false, false));
+            }
+        }
+        for(String counter : metrics.getCounters().keySet()){
+            attributes.add(new MBeanAttributeInfo(counter, "long", counter, true, false, false));
+        }
+        MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Clears all histograms and counters",
+                new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+        return new MBeanInfo(getClass().getName(), "Booking, pricing and payment metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[]{ reset }, null);
+    }
+}
+// Read-through cache for shopping queries ("what does it cost and how many seats are left"),
+// keyed by (flight, ClassType) under one pricing strategy. A cached quote remembers the versions it
+// was computed from - the SeatMap's per-class counter, bumped by every reserve/release, the flight's
+// own version, bumped by schedule and price setters such as DomesticFlight.change(), and the
+// strategy's tax and discount - and is recomputed as soon as any of them moved, so it is never
+// served stale. Bounded by LRU eviction in 16 independently locked segments.
+class FareAvailabilityCache {
+    private static final ClassType[] CLASS_TYPES = ClassType.values();
+    private static final int SEGMENTS = 16;
+    static final class FareQuote {
+        private final int seatsLeft;
+        private final double classFare;
+        private final double pricePerPassenger;
+        private final SeatMap seatMap;
+        private final long seatVersion;
+        private final long flightVersion;
+        private final double taxRate;
+        private final double discountRate;
+        FareQuote ( int seatsLeft , double classFare , double pricePerPassenger , SeatMap seatMap , long seatVersion ,
+                    long flightVersion , double taxRate , double discountRate ){
+            this.seatsLeft = seatsLeft;
+            this.classFare = classFare;
+            this.pricePerPassenger = pricePerPassenger;
+            this.seatMap = seatMap;
+            this.seatVersion = seatVersion;
+            this.flightVersion = flightVersion;
+            this.taxRate = taxRate;
+            this.discountRate = discountRate;
+        }
+        public int getSeatsLeft (){
+            return seatsLeft;
+        }
+        // what getPriceForClass returns after pricing the flight
+        public double getClassFare (){
+            return classFare;
+        }
+        // what calculateFinalPrice returns for one passenger
+        public double getPricePerPassenger (){
+            return pricePerPassenger;
+        }
+        boolean isCurrent ( AbstractFlight flight , ClassType type , AbstractPricingStrategy strategy ){
+            SeatMap current = flight.getSeatMap();
+            return current == seatMap && current.version(type) == seatVersion && flight.getVersion() == flightVersion
+                    && strategy.getTaxRate() == taxRate && strategy.getDiscountRate() == discountRate;
+        }
+    }
+    @SuppressWarnings("serial")
+    private static final class Segment extends LinkedHashMap<AbstractFlight, FareQuote[]> {
+        private final int capacity;
+        private final LongAdder evictions;
+        Segment ( int capacity , LongAdder evictions ){
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+        @Override
+        protected boolean removeEldestEntry ( Map.Entry<AbstractFlight, FareQuote[]> eldest ){
+            if(size() > capacity){
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+    private final AbstractPricingStrategy strategy;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    // maxEntries counts (flight, ClassType) pairs
+    public FareAvailabilityCache ( AbstractPricingStrategy strategy , int maxEntries ){
+        this.strategy = strategy;
+        int flightsPerSegment = Math.max(1, maxEntries / CLASS_TYPES.length / SEGMENTS);
+        for(int i = 0 ; i < SEGMENTS ; i++){
+            segments[i] = new Segment(flightsPerSegment, evictions);
+        }
+    }
+    private Segment segmentFor ( AbstractFlight flight ){
+        int h = System.identityHashCode(flight);
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+    public FareQuote quote ( AbstractFlight flight , ClassType type ){
+        Segment segment = segmentFor(flight);
+        FareQuote cached;
+        synchronized (segment){
+            FareQuote[] quotes = segment.get(flight);
+            cached = quotes == null ? null : quotes[type.ordinal()];
+        }
+        if(cached == null){
+            misses.increment();
+        }
+        else if(cached.isCurrent(flight, type, strategy)){
+            hits.increment();
+            return cached;
+        }
+        else{
+            stale.increment();
+        }
+        FareQuote fresh = compute(flight, type);
+        synchronized (segment){
+            FareQuote[] quotes = segment.get(flight);
+            if(quotes == null){
+                quotes = new FareQuote[CLASS_TYPES.length];
+                segment.put(flight, quotes);
+            }
+            quotes[type.ordinal()] = fresh;
+        }
+        return fresh;
+    }
+    // Versions are read before the values, so a change racing with the computation leaves a quote
+    // that is already out of date and is recomputed on the next lookup.
+    private FareQuote compute ( AbstractFlight flight , ClassType type ){
+        SeatMap seatMap = flight.getSeatMap();
+        long seatVersion = seatMap.version(type);
+        long flightVersion = flight.getVersion();
+        double taxRate = strategy.getTaxRate();
+        double discountRate = strategy.getDiscountRate();
+        int seatsLeft = seatMap.availableCount(type);
+        double pricePerPassenger;
+        double classFare;
+        if(strategy instanceof SeasonalPricingStrategy){
+            FareTable table = ((SeasonalPricingStrategy) strategy).getFareTable();
+            pricePerPassenger = table.pricePerPassenger(flight);
+            classFare = table.classPrice(flight, type);
+        }
+        else if(strategy instanceof LoadFactorPricingStrategy){
+            LoadFactorPricingStrategy.FareBuckets buckets = ((LoadFactorPricingStrategy) strategy).getFareBuckets(flight);
+            pricePerPassenger = buckets.getPrice(type);
+            classFare = buckets.getFare(type);
+        }
+        else{
+            // the generic chain keeps the base price in the strategy between the two calls
+            synchronized (strategy){
+                pricePerPassenger = strategy.calculateFinalPrice(flight, 1);
+                classFare = strategy instanceof IPricingStrategy ? ((IPricingStrategy) strategy).getPriceForClass(type) : pricePerPassenger;
+            }
+        }
+        return new FareQuote(seatsLeft, classFare, pricePerPassenger, seatMap, seatVersion, flightVersion, taxRate, discountRate);
+    }
+    public void invalidate ( AbstractFlight flight ){
+        Segment segment = segmentFor(flight);
+        synchronized (segment){
+            segment.remove(flight);
+        }
+    }
+    public int size (){
+        int size = 0;
+        for(Segment segment : segments){
+            synchronized (segment){
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+    public long getHits (){
+        return hits.sum();
+    }
+    public long getMisses (){
+        return misses.sum();
+    }
+    // lookups that found a quote whose flight, seats or pricing had changed since it was computed
+    public long getStale (){
+        return stale.sum();
+    }
+    public long getEvictions (){
+        return evictions.sum();
+    }
+    public double getHitRate (){
+        long hits = getHits();
+        long total = hits + getMisses() + getStale();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+    public double getStaleRate (){
+        long stale = getStale();
+        long total = getHits() + getMisses() + stale;
+        return total == 0 ? 0 : (double) stale / total;
+    }
+}
+// Rolling no-show rate per flight number and ClassType: an exponentially weighted moving average
+// of each departure's no-show share, so recording a departure and reading the rate are both O(1)
+// and no history is kept. Rates are stored as double bits so one CAS updates them.
+class NoShowForecast {
+    private static final int CLASSES = ClassType.values().length;
+    private final double alpha; // weight of the newest departure
+    private final double initialRate;
+    private final ConcurrentHashMap<String, AtomicLongArray> rates = new ConcurrentHashMap<>();
+    public NoShowForecast ( double alpha , double initialRate ){
+        if(alpha <= 0 || alpha > 1 || initialRate < 0 || initialRate >= 1){
+            throw new IllegalArgumentException("alpha must be in (0, 1] and initialRate in [0, 1)");
+        }
+        this.alpha = alpha;
+        this.initialRate = initialRate;
+    }
+    public double getAlpha (){
+        return alpha;
+    }
+    public double getRate ( String flightNumber , ClassType type ){
+        AtomicLongArray cell = rates.get(flightNumber);
+        return cell == null ? initialRate : Double.longBitsToDouble(cell.get(type.ordinal()));
+    }
+    public void record ( String flightNumber , ClassType type , int booked , int noShows ){
+        record(ratesFor(flightNumber), type.ordinal(), booked, noShows);
+    }
+    // The per-class rates of one flight number; callers on a hot path keep the array so a read
+    // costs no lookup.
+    AtomicLongArray ratesFor ( String flightNumber ){
+        AtomicLongArray cell = rates.get(flightNumber);
+        if(cell == null){
+            long[] initial = new long[CLASSES];
+            Arrays.fill(initial, Double.doubleToRawLongBits(initialRate));
+            cell = rates.computeIfAbsent(flightNumber, key -> new AtomicLongArray(initial));
+        }
+        return cell;
+    }
+    void record ( AtomicLongArray cell , int c , int booked , int noShows ){
+        if(booked <= 0){
+            return;
+        }
+        double observed = (double) noShows / booked;
+        while(true){
+            long bits = cell.get(c);
+            double rate = Double.longBitsToDouble(bits);
+            double next = rate + alpha * (observed - rate);
+            if(cell.compareAndSet(c, bits, Double.doubleToRawLongBits(next))){
+                return;
+            }
+        }
+    }
+}
+// Lets one flight sell past its physical seats. Each class may sell up to its authorised capacity:
+// the seats plus the no-shows the forecast expects, less riskFactor standard deviations of them so
+// a departure with more shows than usual rarely denies boarding, and never more than
+// maxOverbookingRate above the seats.
+// Once a class is full, further passengers are admitted without seats, one CAS on the class's
+// oversold count, and get seats in reaccommodate at departure, after the no-shows have let theirs go.
+class OverbookingManager {
+    private static final ClassType[] CLASS_TYPES = ClassType.values();
+    private final AbstractFlight flight;
+    private final NoShowForecast forecast;
+    private final AtomicLongArray rates;
+    private final double maxOverbookingRate;
+    private final double riskFactor;
+    private final AtomicIntegerArray oversold = new AtomicIntegerArray(CLASS_TYPES.length);
+    public OverbookingManager ( AbstractFlight flight , NoShowForecast forecast , double maxOverbookingRate ){
+        this(flight, forecast, maxOverbookingRate, 2.0);
+    }
+    public OverbookingManager ( AbstractFlight flight , NoShowForecast forecast , double maxOverbookingRate , double riskFactor ){
+        this.flight = flight;
+        this.forecast = forecast;
+        this.rates = forecast.ratesFor(flight.getFlightNumber());
+        this.maxOverbookingRate = maxOverbookingRate;
+        this.riskFactor = riskFactor;
+    }
+    public AbstractFlight getFlight (){
+        return flight;
+    }
+    public double getMaxOverbookingRate (){
+        return maxOverbookingRate;
+    }
+    public double getRiskFactor (){
+        return riskFactor;
+    }
+    // passengers currently admitted in the class without a seat
+    public int getOversold ( ClassType type ){
+        return oversold.get(type.ordinal());
+    }
+    public int getAuthorizedCapacity ( ClassType type ){
+        int seats = flight.getSeatMap().getLayout().size(type);
+        double rate = Math.max(0, Double.longBitsToDouble(rates.get(type.ordinal())));
+        // no-shows among the seats sold are roughly binomial: mean seats * rate / (1 - rate),
+        // standard deviation about sqrt(seats * rate)
+        double extra = seats * rate / (1 - rate) - riskFactor * Math.sqrt(seats * rate);
+        return seats + (int) Math.max(0, Math.min(extra, seats * maxOverbookingRate));
+    }
+    // Admits passengers past the seats of a full class if the authorised capacity allows it.
+    public boolean admit ( ClassType type , int passengers ){
+        int c = type.ordinal();
+        int limit = getAuthorizedCapacity(type) - flight.getSeatMap().getLayout().size(type);
+        while(true){
+            int current = oversold.get(c);
+            if(current + passengers > limit){
+                return false;
+            }
+            if(oversold.compareAndSet(c, current, current + passengers)){
+                return true;
+            }
+        }
+    }
+    // takes the places of an overbooked booking rebuilt from the journal, whatever the limit now is
+    void restore ( ClassType type , int passengers ){
+        oversold.addAndGet(type.ordinal(), passengers);
+    }
+    // gives back the places of an admitted booking that was cancelled or expired before departure
+    public void withdraw ( ClassType type , int passengers ){
+        oversold.addAndGet(type.ordinal(), -passengers);
+    }
+    // Runs at departure over the flight's bookings. Confirmed bookings that noShow picks give up
+    // their seats and feed the forecast; then overbooked passengers are seated in booking order,
+    // in their own class or else the next class up. A party that still does not fit is denied boarding.
+    public Reaccommodation reaccommodate ( Collection<? extends AbstractBooking> bookings , Predicate<AbstractBooking> noShow ){
+        Reaccommodation result = new Reaccommodation();
+        int[] booked = new int[CLASS_TYPES.length];
+        int[] noShows = new int[CLASS_TYPES.length];
+        List<AbstractBooking> waiting = new ArrayList<>();
+        for(AbstractBooking booking : bookings){
+            if(booking.getStatus() != BookingStatus.CONFIRMED){
+                continue;
+            }
+            int c = booking.getClassType().ordinal();
+            int passengers = booking.getPassengers().length;
+            booked[c] += passengers;
+            if(noShow.test(booking)){
+                noShows[c] += passengers;
+                result.noShows += passengers;
+                leave(booking, BookingStatus.NO_SHOW);
+            }
+            else if(booking.isOverbooked()){
+                waiting.add(booking);
+            }
+        }
+        for(int c = 0 ; c < CLASS_TYPES.length ; c++){
+            forecast.record(rates, c, booked[c], noShows[c]);
+        }
+        SeatMap seatMap = flight.getSeatMap();
+        for(AbstractBooking booking : waiting){
+            int own = booking.getClassType().ordinal();
+            int passengers = booking.getPassengers().length;
+            boolean seated = false;
+            for(int c = own ; c < CLASS_TYPES.length && !seated ; c++){
+                seated = seatMap.reserve(CLASS_TYPES[c], passengers, booking.getAssignedSeats());
+                if(seated && c != own){
+                    result.upgraded += passengers;
+                }
+            }
+            if(seated){
+                booking.setOverbooked(false);
+                withdraw(CLASS_TYPES[own], passengers);
+                result.seated += passengers;
+            }
+            else{
+                result.denied += passengers;
+                leave(booking, BookingStatus.DENIED_BOARDING);
+            }
+        }
+        return result;
+    }
+    private void leave ( AbstractBooking booking , BookingStatus status ){
+        booking.releaseSeats();
+        booking.setStatus(status);
+        if(booking.getListener() != null){
+            booking.getListener().bookingCancelled(booking); // the journal only needs to know the seats are free
+        }
+    }
+    public static final class Reaccommodation {
+        private int noShows;
+        private int seated;
+        private int upgraded;
+        private int denied;
+        public int getNoShows (){
+            return noShows;
+        }
+        // overbooked passengers who got a seat, upgrades included
+        public int getSeated (){
+            return seated;
+        }
+        public int getUpgraded (){
+            return upgraded;
+        }
+        public int getDenied (){
+            return denied;
+        }
+    }
+}
+// One flight's part of a disruption: its new times, the aircraft it flies with from now on (null
+// keeps the current one) and the seat changes passengers asked for, as ChangeRequests by booking id.
+class ScheduleChange {
+    private final AbstractFlight flight;
+    private final long newDepartureTime;
+    private final long newArrivalTime;
+    private final AircraftLayout newLayout;
+    private final Map<String, ChangeRequest> seatRequests = new HashMap<>();
+    public ScheduleChange ( AbstractFlight flight , long newDepartureTime , long newArrivalTime , AircraftLayout newLayout ){
+        this.flight = flight;
+        this.newDepartureTime = newDepartureTime;
+        this.newArrivalTime = newArrivalTime;
+        this.newLayout = newLayout;
+    }
+    public ScheduleChange addSeatRequest ( ChangeRequest request ){
+        seatRequests.put(request.getBookingId(), request);
+        return this;
+    }
+    public AbstractFlight getFlight (){
+        return flight;
+    }
+    public long getNewDepartureTime (){
+        return newDepartureTime;
+    }
+    public long getNewArrivalTime (){
+        return newArrivalTime;
+    }
+    public AircraftLayout getNewLayout (){
+        return newLayout;
+    }
+    public ChangeRequest getSeatRequest ( String bookingId ){
+        return seatRequests.get(bookingId);
+    }
+    public boolean hasSeatRequests (){
+        return !seatRequests.isEmpty();
+    }
+}
+// Carries schedule changes through to the bookings, one task per flight on a ForkJoinPool. The
+// flight is retimed with FlightInventory.rescheduleFlight and its confirmed bookings come from the
+// inventory's per-flight list. Passengers who asked for seats with a ChangeRequest get them if the
+// seats exist, are free and are in their class, and pay the flight's calculateChangeFee per
+// passenger. On an aircraft swap everyone else is seated on a fresh SeatMap of the new aircraft,
+// highest class and earliest booking first: in their own class, else the next class up, else down,
+// else in the overbooking allowance. Whoever still does not fit is cancelled and listed in the
+// result. The flight's gate in the inventory is closed while its seats are rearranged, so
+// FlightInventory.book and cancel on it wait and the bookings read at the start are all there are;
+// the filled map is installed in one step. Every affected booking is told through bookingRescheduled.
+class ScheduleChangeService {
+    private static final ClassType[] CLASS_TYPES = ClassType.values();
+    private static final Comparator<AbstractBooking> PRIORITY = (a, b) -> {
+        if(a.getClassType() != b.getClassType()){
+            return b.getClassType().ordinal() - a.getClassType().ordinal();
+        }
+        if(a.isOverbooked() != b.isOverbooked()){
+            return a.isOverbooked() ? 1 : -1;
+        }
+        if(a.getBookingTime() != b.getBookingTime()){
+            return Long.compare(a.getBookingTime(), b.getBookingTime());
+        }
+        return Long.compare(a.getBookingNumber(), b.getBookingNumber());
+    };
+
+    public static final class Result {
+        private int flights;
+        private int failedFlights;
+        private int bookings;
+        private int passengers;
+        private int moved;
+        private int upgraded;
+        private int downgraded;
+        private int overbooked;
+        private int displaced;
+        private int seatRequestsHonoured;
+        private int seatRequestsRefused;
+        private double changeFees;
+        private long nanos;
+        private final List<AbstractBooking> displacedBookings = new ArrayList<>();
+        private Result merge ( Result other ){
+            flights += other.flights;
+            failedFlights += other.failedFlights;
+            bookings += other.bookings;
+            passengers += other.passengers;
+            moved += other.moved;
+            upgraded += other.upgraded;
+            downgraded += other.downgraded;
+            overbooked += other.overbooked;
+            displaced += other.displaced;
+            seatRequestsHonoured += other.seatRequestsHonoured;
+            seatRequestsRefused += other.seatRequestsRefused;
+            changeFees += other.changeFees;
+            displacedBookings.addAll(other.displacedBookings);
+            return this;
+        }
+        public int getFlights (){
+            return flights;
+        }
+        // flights the inventory does not hold, or whose number already flies on the new date
+        public int getFailedFlights (){
+            return failedFlights;
+        }
+        public int getBookings (){
+            return bookings;
+        }
+        public int getPassengers (){
+            return passengers;
+        }
+        // passengers given a seat on another aircraft, in any class
+        public int getMoved (){
+            return moved;
+        }
+        public int getUpgraded (){
+            return upgraded;
+        }
+        public int getDowngraded (){
+            return downgraded;
+        }
+        // passengers kept confirmed without a seat in the overbooking allowance
+        public int getOverbooked (){
+            return overbooked;
+        }
+        public int getDisplaced (){
+            return displaced;
+        }
+        public List<AbstractBooking> getDisplacedBookings (){
+            return Collections.unmodifiableList(displacedBookings);
+        }
+        public int getSeatRequestsHonoured (){
+            return seatRequestsHonoured;
+        }
+        public int getSeatRequestsRefused (){
+            return seatRequestsRefused;
+        }
+        public double getChangeFees (){
+            return changeFees;
+        }
+        public long getNanos (){
+            return nanos;
+        }
+        @Override
+        public String toString (){
+            return String.format("%,d flights (%,d failed), %,d bookings / %,d passengers: %,d moved (%,d up, %,d down), %,d overbooked, "
+                    + "%,d displaced, seat requests %,d honoured / %,d refused, fees %,.2f, in %.1f ms",
+                    flights, failedFlights, bookings, passengers, moved, upgraded, downgraded, overbooked, displaced,
+                    seatRequestsHonoured, seatRequestsRefused, changeFees, nanos / 1e6);
+        }
+    }
+    private final FlightInventory inventory;
+    private final ForkJoinPool pool;
+
+    public ScheduleChangeService ( FlightInventory inventory ){
+        this(inventory, ForkJoinPool.commonPool());
+    }
+    public ScheduleChangeService ( FlightInventory inventory , ForkJoinPool pool ){
+        this.inventory = inventory;
+        this.pool = pool;
+    }
+    public Result apply ( Collection<ScheduleChange> changes ){
+        long start = System.nanoTime();
+        List<ForkJoinTask<Result>> tasks = new ArrayList<>(changes.size());
+        for(ScheduleChange change : changes){
+            tasks.add(pool.submit(() -> apply(change)));
+        }
+        Result result = new Result();
+        for(ForkJoinTask<Result> task : tasks){
+            result.merge(task.join());
+        }
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+    public Result apply ( ScheduleChange change ){
+        Result result = new Result();
+        AbstractFlight flight = change.getFlight();
+        FlightInventory.FlightEntry entry = inventory.entryFor(flight);
+        if(entry == null){
+            result.failedFlights++;
+            return result;
+        }
+        entry.close();
+        try{
+            if(flight.getDepartureTime() != change.getNewDepartureTime() || flight.getArrivalTime() != change.getNewArrivalTime()){
+                if(!inventory.reschedule(entry, change.getNewDepartureTime(), change.getNewArrivalTime())){
+                    result.failedFlights++;
+                    return result;
+                }
+            }
+            result.flights++;
+            reseat(change, result);
+        }
+        finally{
+            entry.open();
+        }
+        return result;
+    }
+    private void reseat ( ScheduleChange change , Result result ){
+        AbstractFlight flight = change.getFlight();
+        double changeFee = flight instanceof IChangeable ? ((IChangeable) flight).calculateChangeFee() : 0;
+        List<AbstractBooking> bookings = new ArrayList<>();
+        for(AbstractBooking booking : inventory.getBookings(flight)){
+            if(booking.getStatus() == BookingStatus.CONFIRMED){
+                bookings.add(booking);
+            }
+        }
+        bookings.sort(PRIORITY);
+        SeatMap current = flight.getSeatMap();
+        AircraftLayout layout = change.getNewLayout();
+        boolean swap = layout != null && layout != current.getLayout();
+        SeatMap target = swap ? new SeatMap(layout) : current;
+        IdentityHashMap<AbstractBooking, Double> fees = new IdentityHashMap<>();
+        if(change.hasSeatRequests()){
+            for(AbstractBooking booking : bookings){
+                ChangeRequest request = change.getSeatRequest(booking.getBookingId());
+                if(request == null || request.getNewSeatNumbers() == null){
+                    continue;
+                }
+                if(seatAsRequested(target, booking, request.getNewSeatNumbers(), swap)){
+                    double fee = changeFee * booking.getPassengers().length;
+                    booking.setTotalPrice(booking.getTotalPrice() + fee);
+                    fees.put(booking, fee);
+                    result.seatRequestsHonoured++;
+                    result.changeFees += fee;
+                }
+                else{
+                    result.seatRequestsRefused++;
+                }
+            }
+        }
+        List<AbstractBooking> unseated = new ArrayList<>();
+        if(swap){
+            for(AbstractBooking booking : bookings){
+                if(fees.containsKey(booking)){
+                    result.moved += booking.getPassengers().length;
+                }
+                else if(!seatByClass(target, booking, result)){
+                    unseated.add(booking);
+                }
+            }
+            flight.replaceSeatMap(target);
+            IBookingEventListener listener = inventory.getListener();
+            if(listener != null){
+                listener.aircraftChanged(flight);
+            }
+        }
+        OverbookingManager overbooking = flight.getOverbooking();
+        for(AbstractBooking booking : unseated){
+            int passengers = booking.getPassengers().length;
+            if(booking.isOverbooked()){
+                result.overbooked += passengers; // keeps the place it already had
+            }
+            else if(overbooking != null && overbooking.admit(booking.getClassType(), passengers)){
+                Arrays.fill(booking.getAssignedSeats(), null);
+                booking.setOverbooked(true);
+                result.overbooked += passengers;
+            }
+            else{
+                Arrays.fill(booking.getAssignedSeats(), null); // seats of the old aircraft, now gone
+                booking.setStatus(BookingStatus.CANCELLED);
+                IBookingEventListener listener = listenerOf(booking);
+                if(listener != null){
+                    listener.bookingCancelled(booking);
+                }
+                inventory.forgetBooking(booking);
+                result.displaced += passengers;
+                result.displacedBookings.add(booking);
+            }
+        }
+        for(AbstractBooking booking : bookings){
+            result.bookings++;
+            result.passengers += booking.getPassengers().length;
+            IBookingEventListener listener = listenerOf(booking);
+            if(booking.getStatus() == BookingStatus.CONFIRMED && listener != null){
+                Double fee = fees.get(booking);
+                listener.bookingRescheduled(booking, fee == null ? 0 : fee);
+            }
+        }
+    }
+    // bookings rebuilt from a journal or snapshot carry no listener of their own
+    private IBookingEventListener listenerOf ( AbstractBooking booking ){
+        return booking.getListener() != null ? booking.getListener() : inventory.getListener();
+    }
+    // Reserves exactly the requested seats in the booking's class; on the flight's own map the seats
+    // the booking already holds count as its own and the ones it leaves are given back.
+    private static boolean seatAsRequested ( SeatMap target , AbstractBooking booking , String[] seatNumbers , boolean swap ){
+        Seat[] held = booking.getAssignedSeats();
+        if(seatNumbers.length != booking.getPassengers().length || booking.isOverbooked()){
+            return false;
+        }
+        AircraftLayout layout = target.getLayout();
+        int[] indexes = new int[seatNumbers.length];
+        for(int i = 0 ; i < seatNumbers.length ; i++){
+            indexes[i] = seatNumbers[i] == null ? -1 : layout.indexOf(seatNumbers[i]);
+            if(indexes[i] < 0 || layout.getClassType(indexes[i]) != booking.getClassType()){
+                return false;
+            }
+            for(int j = 0 ; j < i ; j++){
+                if(indexes[j] == indexes[i]){
+                    return false;
+                }
+            }
+        }
+        Seat[] seats = new Seat[seatNumbers.length];
+        boolean[] reserved = new boolean[seatNumbers.length];
+        for(int i = 0 ; i < indexes.length ; i++){
+            seats[i] = target.getSeat(indexes[i]);
+            if(!swap && holds(held, seats[i])){
+                continue;
+            }
+            if(!target.reserve(indexes[i])){
+                for(int j = 0 ; j < i ; j++){
+                    if(reserved[j]){
+                        target.release(indexes[j]);
+                    }
+                }
+                return false;
+            }
+            reserved[i] = true;
+        }
+        if(!swap){
+            for(Seat seat : held){
+                if(seat != null && !holds(seats, seat)){
+                    seat.release();
+                }
+            }
+        }
+        booking.setAssignedSeats(seats);
+        return true;
+    }
+    private static boolean holds ( Seat[] seats , Seat seat ){
+        for(Seat s : seats){
+            if(seat.equals(s)){
+                return true;
+            }
+        }
+        return false;
+    }
+    // own class first, then the classes above, then below
+    private static boolean seatByClass ( SeatMap target , AbstractBooking booking , Result result ){
+        int own = booking.getClassType().ordinal();
+        int passengers = booking.getPassengers().length;
+        Seat[] seats = new Seat[Math.max(passengers, booking.getAssignedSeats().length)];
+        boolean seated = target.reserve(CLASS_TYPES[own], passengers, seats);
+        for(int c = own + 1 ; !seated && c < CLASS_TYPES.length ; c++){
+            seated = target.reserve(CLASS_TYPES[c], passengers, seats);
+        }
+        for(int c = own - 1 ; !seated && c >= 0 ; c--){
+            seated = target.reserve(CLASS_TYPES[c], passengers, seats);
+        }
+        if(!seated){
+            return false;
+        }
+        ClassType seatedIn = seats[0].getClassType();
+        if(seatedIn.ordinal() > own){
+            result.upgraded += passengers;
+        }
+        else if(seatedIn.ordinal() < own){
+            result.downgraded += passengers;
+        }
+        if(booking.isOverbooked()){
+            booking.setOverbooked(false);
+            OverbookingManager overbooking = booking.getFlight().getOverbooking();
+            if(overbooking != null){
+                overbooking.withdraw(booking.getClassType(), passengers);
+            }
+        }
+        booking.setAssignedSeats(seats);
+        result.moved += passengers;
+        return true;
+    }
+}
+// Passes every event to each listener in turn, e.g. to a BookingJournal and a BookingEventStore.
+class BookingEventFanOut implements IBookingEventListener {
+    private final IBookingEventListener[] listeners;
+    public BookingEventFanOut ( IBookingEventListener... listeners ){
+        this.listeners = listeners.clone();
+    }
+    @Override
+    public void flightAdded(AbstractFlight flight){
+        for(IBookingEventListener listener : listeners){
+            listener.flightAdded(flight);
+        }
+    }
+    @Override
+    public void flightChanged(AbstractFlight flight, long previousDepartureDay){
+        for(IBookingEventListener listener : listeners){
+            listener.flightChanged(flight, previousDepartureDay);
+        }
+    }
+    @Override
+    public void bookingConfirmed(AbstractBooking booking){
+        for(IBookingEventListener listener : listeners){
+            listener.bookingConfirmed(booking);
+        }
+    }
+    @Override
+    public void bookingCancelled(AbstractBooking booking){
+        for(IBookingEventListener listener : listeners){
+            listener.bookingCancelled(booking);
+        }
+    }
+    @Override
+    public void aircraftChanged(AbstractFlight flight){
+        for(IBookingEventListener listener : listeners){
+            listener.aircraftChanged(flight);
+        }
+    }
+    @Override
+    public void bookingRescheduled(AbstractBooking booking, double changeFee){
+        for(IBookingEventListener listener : listeners){
+            listener.bookingRescheduled(booking, changeFee);
+        }
+    }
+    @Override
+    public void bookingStatusChanged(AbstractBooking booking, BookingStatus from, BookingStatus to){
+        for(IBookingEventListener listener : listeners){
+            listener.bookingStatusChanged(booking, from, to);
+        }
+    }
+    @Override
+    public void paymentCompleted(AbstractPaymentProcessor payment){
+        for(IBookingEventListener listener : listeners){
+            listener.paymentCompleted(payment);
+        }
+    }
+    @Override
+    public void paymentRefunded(AbstractPaymentProcessor payment){
+        for(IBookingEventListener listener : listeners){
+            listener.paymentRefunded(payment);
+        }
+    }
+    @Override
+    public void paymentStatusChanged(AbstractPaymentProcessor payment, PaymentStatus from, PaymentStatus to){
+        for(IBookingEventListener listener : listeners){
+            listener.paymentStatusChanged(payment, from, to);
+        }
+    }
+}
+// One status transition of a booking or of a payment for it, as recorded by BookingEventStore, or a
+// change of a flight: its status and a move from previousDepartureDay to departureDay.
+final class BookingEvent {
+    private final long sequence;
+    private final long time;
+    private final long bookingNumber;
+    private final String flightNumber;
+    private final long departureDay;
+    private final long previousDepartureDay;
+    private final ClassType classType;
+    private final int passengers;
+    private final double amount; // booking total, or the payment amount for payment events
+    private final Enum<?> from;
+    private final Enum<?> to;
+    BookingEvent(long sequence, long time, AbstractBooking booking, double amount, Enum<?> from, Enum<?> to){
+        this.sequence = sequence;
+        this.time = time;
+        this.bookingNumber = booking.getBookingNumber();
+        this.flightNumber = booking.getFlight().getFlightNumber();
+        this.departureDay = FlightKey.dayOf(booking.getFlight().getDepartureTime());
+        this.previousDepartureDay = departureDay;
+        this.classType = booking.getClassType();
+        this.passengers = booking.getPassengers().length;
+        this.amount = amount;
+        this.from = from;
+        this.to = to;
+    }
+    // a flight change carries no booking; to is the flight's status
+    BookingEvent(long sequence, long time, AbstractFlight flight, long previousDepartureDay){
+        this.sequence = sequence;
+        this.time = time;
+        this.bookingNumber = 0;
+        this.flightNumber = flight.getFlightNumber();
+        this.departureDay = FlightKey.dayOf(flight.getDepartureTime());
+        this.previousDepartureDay = previousDepartureDay;
+        this.classType = null;
+        this.passengers = 0;
+        this.amount = 0;
+        this.from = null;
+        this.to = flight.getStatus();
+    }
+    public long getSequence(){
+        return sequence;
+    }
+    public long getTime(){
+        return time;
+    }
+    public long getBookingNumber(){
+        return bookingNumber;
+    }
+    public String getFlightNumber(){
+        return flightNumber;
+    }
+    public long getDepartureDay(){
+        return departureDay;
+    }
+    public long getPreviousDepartureDay(){
+        return previousDepartureDay;
+    }
+    public ClassType getClassType(){
+        return classType;
+    }
+    public int getPassengers(){
+        return passengers;
+    }
+    public double getAmount(){
+        return amount;
+    }
+    public boolean isPayment(){
+        return to instanceof PaymentStatus;
+    }
+    public boolean isFlightChange(){
+        return to instanceof FlightStatus;
+    }
+    public Enum<?> getFrom(){
+        return from;
+    }
+    public Enum<?> getTo(){
+        return to;
+    }
+    @Override
+    public String toString(){
+        if(isFlightChange()){
+            return "#" + sequence + " flight " + flightNumber + " day " + previousDepartureDay + " -> " + departureDay + " " + to;
+        }
+        return "#" + sequence + " " + (isPayment() ? "payment " : "booking ") + bookingNumber + " " + from + " -> " + to;
+    }
+}
+// Append-only stream of booking and payment status transitions and flight changes. An append takes a sequence number
+// with one atomic increment and publishes the event into a fixed-size chunk with an ordered store,
+// so writers never lock or wait for each other. Readers follow the stream by sequence; an event
+// whose writer has not published it yet reads as null, and everything after it waits for it.
+class BookingEventStore implements IBookingEventListener {
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int MAX_CHUNKS = 1 << 18; // about a billion events
+    private final AtomicReferenceArray<AtomicReferenceArray<BookingEvent>> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+    private final AtomicLong next = new AtomicLong();
+
+    @Override
+    public void bookingStatusChanged(AbstractBooking booking, BookingStatus from, BookingStatus to){
+        append(booking, booking.getTotalPrice(), from, to);
+    }
+    @Override
+    public void paymentStatusChanged(AbstractPaymentProcessor payment, PaymentStatus from, PaymentStatus to){
+        append(payment.getBooking(), payment.getAmount(), from, to);
+    }
+    // lets read models keyed by departure day follow a flight to its new date
+    @Override
+    public void flightChanged(AbstractFlight flight, long previousDepartureDay){
+        long sequence = reserve();
+        publish(sequence, new BookingEvent(sequence, System.currentTimeMillis(), flight, previousDepartureDay));
+    }
+    private void append(AbstractBooking booking, double amount, Enum<?> from, Enum<?> to){
+        long sequence = reserve();
+        publish(sequence, new BookingEvent(sequence, System.currentTimeMillis(), booking, amount, from, to));
+    }
+    private long reserve(){
+        long sequence = next.getAndIncrement();
+        if(sequence >= (long) MAX_CHUNKS * CHUNK_SIZE){
+            throw new IllegalStateException("Booking event store is full");
+        }
+        return sequence;
+    }
+    private void publish(long sequence, BookingEvent event){
+        chunk((int) (sequence >>> CHUNK_BITS)).lazySet((int) sequence & (CHUNK_SIZE - 1), event);
+    }
+    private AtomicReferenceArray<BookingEvent> chunk(int index){
+        AtomicReferenceArray<BookingEvent> chunk = chunks.get(index);
+        if(chunk == null){
+            chunks.compareAndSet(index, null, new AtomicReferenceArray<>(CHUNK_SIZE));
+            chunk = chunks.get(index);
+        }
+        return chunk;
+    }
+    // sequence numbers handed out so far; the newest may not be published yet
+    public long size(){
+        return next.get();
+    }
+    public BookingEvent get(long sequence){
+        if(sequence < 0 || sequence >= next.get()){
+            return null;
+        }
+        AtomicReferenceArray<BookingEvent> chunk = chunks.get((int) (sequence >>> CHUNK_BITS));
+        return chunk == null ? null : chunk.get((int) sequence & (CHUNK_SIZE - 1));
+    }
+    // Copies up to max published events from sequence from on into out, stopping at the first
+    // unpublished one; returns how many were copied.
+    public int read(long from, int max, List<BookingEvent> out){
+        int count = 0;
+        BookingEvent event;
+        while(count < max && (event = get(from + count)) != null){
+            out.add(event);
+            count++;
+        }
+        return count;
+    }
+}
+// Read models over a BookingEventStore, updated by one background thread that follows the stream:
+// seats sold per flight, revenue per sales day, refunds pending and each booking's history. Only
+// the projector writes them and queries only read concurrent maps and immutable arrays, so
+// reporting never takes a lock on, or waits for, the booking path; it sees the stream as of
+// getPosition(), a little behind the writers.
+class BookingProjections implements Closeable {
+    private static final int BATCH = 1024;
+    private final BookingEventStore store;
+    private final Thread projector;
+    private volatile boolean closed;
+    private volatile long position;
+    private final ConcurrentHashMap<FlightKey, AtomicLong> seatsSold = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, DoubleAdder> revenueByDay = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Double> refundsPending = new ConcurrentHashMap<>();
+    private final DoubleAdder refundsPendingAmount = new DoubleAdder();
+    private final ConcurrentHashMap<Long, BookingEvent[]> histories = new ConcurrentHashMap<>();
+    private final Map<Long, Double> paid = new HashMap<>(); // projector thread only
+    private final Map<Long, Boolean> cancelled = new HashMap<>(); // projector thread only
+
+    public BookingProjections ( BookingEventStore store ){
+        this(store, true);
+    }
+    // Without the thread the owner applies the stream itself through catchUp.
+    BookingProjections ( BookingEventStore store , boolean startProjector ){
+        this.store = store;
+        if(startProjector){
+            projector = new Thread(this::run, "booking-projections");
+            projector.setDaemon(true);
+            projector.start();
+        }
+        else{
+            projector = null;
+        }
+    }
+    private void run(){
+        while(!closed){
+            if(catchUp() == 0){
+                LockSupport.parkNanos(1000000L);
+            }
+        }
+    }
+    // Applies every event published so far; returns how many.
+    synchronized int catchUp(){
+        List<BookingEvent> batch = new ArrayList<>(BATCH);
+        int applied = 0;
+        while(store.read(position, BATCH, batch) > 0){
+            for(BookingEvent event : batch){
+                apply(event);
+            }
+            applied += batch.size();
+            position += batch.size();
+            batch.clear();
+        }
+        return applied;
+    }
+    private void apply(BookingEvent event){
+        if(event.isFlightChange()){
+            // sales stay with the flight, whichever day it moved to
+            if(event.getPreviousDepartureDay() != event.getDepartureDay()){
+                AtomicLong sold = seatsSold.remove(new FlightKey(event.getFlightNumber(), event.getPreviousDepartureDay()));
+                if(sold != null){
+                    seatsSold.computeIfAbsent(new FlightKey(event.getFlightNumber(), event.getDepartureDay()), key -> new AtomicLong()).addAndGet(sold.get());
+                }
+            }
+            return;
+        }
+        Long booking = event.getBookingNumber();
+        BookingEvent[] history = histories.get(booking);
+        BookingEvent[] grown = history == null ? new BookingEvent[1] : Arrays.copyOf(history, history.length + 1);
+        grown[grown.length - 1] = event;
+        histories.put(booking, grown);
+        if(event.isPayment()){
+            if(event.getTo() == PaymentStatus.COMPLETED){
+                revenue(event).add(event.getAmount());
+                paid.merge(booking, event.getAmount(), Double::sum);
+                if(cancelled.containsKey(booking)){
+                    pendRefund(booking, event.getAmount());
+                }
+            }
+            else if(event.getTo() == PaymentStatus.REFUNDED){
+                revenue(event).add(-event.getAmount());
+                paid.merge(booking, -event.getAmount(), Double::sum);
+                Double pending = refundsPending.get(booking);
+                if(pending != null){
+                    double left = pending - event.getAmount();
+                    refundsPendingAmount.add(-Math.min(pending, event.getAmount()));
+                    if(left > 0.005){
+                        refundsPending.put(booking, left);
+                    }
+                    else{
+                        refundsPending.remove(booking);
+                    }
+                }
+            }
+            return;
+        }
+        FlightKey flight = new FlightKey(event.getFlightNumber(), event.getDepartureDay());
+        if(event.getTo() == BookingStatus.CONFIRMED){
+            seatsSold.computeIfAbsent(flight, key -> new AtomicLong()).addAndGet(event.getPassengers());
+        }
+        else if(event.getFrom() == BookingStatus.CONFIRMED && event.getTo() != BookingStatus.NO_SHOW){
+            seatsSold.computeIfAbsent(flight, key -> new AtomicLong()).addAndGet(-event.getPassengers());
+        }
+        if(event.getTo() == BookingStatus.CANCELLED){
+            cancelled.put(booking, Boolean.TRUE);
+            Double amount = paid.get(booking);
+            if(amount != null && amount > 0.005){
+                pendRefund(booking, amount);
+            }
+        }
+    }
+    private void pendRefund(Long booking, double amount){
+        refundsPending.merge(booking, amount, Double::sum);
+        refundsPendingAmount.add(amount);
+    }
+    private DoubleAdder revenue(BookingEvent event){
+        return revenueByDay.computeIfAbsent(FlightKey.dayOf(event.getTime()), key -> new DoubleAdder());
+    }
+    // events of the store applied to the read models so far
+    public long getPosition(){
+        return position;
+    }
+    // Waits until every event appended before the call has been projected.
+    public boolean awaitCaughtUp(long timeoutMillis) throws InterruptedException {
+        long target = store.size();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while(position < target){
+            if(System.currentTimeMillis() >= deadline){
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+    // passengers holding confirmed seats on the flight departing on departureDay
+    public long getSeatsSold(String flightNumber, long departureDay){
+        AtomicLong sold = seatsSold.get(new FlightKey(flightNumber, departureDay));
+        return sold == null ? 0 : sold.get();
+    }
+    // payments captured less refunds paid out, by the day they happened (days since the epoch, UTC)
+    public double getRevenue(long day){
+        DoubleAdder revenue = revenueByDay.get(day);
+        return revenue == null ? 0 : revenue.sum();
+    }
+    public Map<Long, Double> getRevenueByDay(){
+        Map<Long, Double> days = new HashMap<>();
+        for(Map.Entry<Long, DoubleAdder> day : revenueByDay.entrySet()){
+            days.put(day.getKey(), day.getValue().sum());
+        }
+        return days;
+    }
+    // cancelled bookings whose payment has not been refunded yet, with the amount owed
+    public Map<Long, Double> getRefundsPending(){
+        return Collections.unmodifiableMap(refundsPending);
+    }
+    public double getRefundsPendingAmount(){
+        return refundsPendingAmount.sum();
+    }
+    public List<BookingEvent> getHistory(long bookingNumber){
+        BookingEvent[] history = histories.get(bookingNumber);
+        return history == null ? Collections.<BookingEvent>emptyList() : Collections.unmodifiableList(Arrays.asList(history));
+    }
+    @Override
+    public void close(){
+        closed = true;
+        if(projector != null){
+            LockSupport.unpark(projector);
+        }
+    }
+}
+// Running revenue and refund totals per route, ClassType and day, kept up to date by the listener
+// callbacks: confirmed bookings, captured payments, cancellations with the fee and refund worked out
+// by calculateCancellationFee and calculateRefundAmount when they happen, and refunds paid out.
+// Every event adds into four cells - route and class, route over all classes, all routes for the
+// class, and everything - so an update costs the same however much history has been seen, and a
+// query reads one cell per day of its window. Cells are slots of open-addressing tables of long
+// keys and double measures, spread over independently locked segments; nothing is boxed.
+class RevenueAnalytics implements IBookingEventListener {
+    private static final int SEGMENTS = 64;
+    private static final int ALL = 0; // route id and class slot standing for all of them
+    private static final int BOOKINGS = 0;
+    private static final int PASSENGERS = 1;
+    private static final int REVENUE = 2;
+    private static final int CANCELLATIONS = 3;
+    private static final int CANCELLATION_FEES = 4;
+    private static final int REFUNDS_DUE = 5;
+    private static final int REFUNDED = 6;
+    private static final int MEASURES = 7;
+
+    // Linear probing over a power-of-two table; a slot's measures sit next to each other in values.
+    private static final class Cells {
+        private static final long EMPTY = -1L; // route ids are never negative
+        private long[] keys;
+        private double[] values;
+        private int size;
+        Cells ( int capacity ){
+            keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            values = new double[capacity * MEASURES];
+        }
+        private int find ( long key , long hash ){
+            int mask = keys.length - 1;
+            int i = (int) (hash >>> 32) & mask;
+            while(keys[i] != key && keys[i] != EMPTY){
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+        void add ( long key , long hash , int first , int width , double a , double b , double c ){
+            int i = find(key, hash);
+            if(keys[i] == EMPTY){
+                if((size + 1) * 4 > keys.length * 3){
+                    grow();
+                    i = find(key, hash);
+                }
+                keys[i] = key;
+                size++;
+            }
+            int base = i * MEASURES + first;
+            values[base] += a;
+            if(width > 1){
+                values[base + 1] += b;
+            }
+            if(width > 2){
+                values[base + 2] += c;
+            }
+        }
+        void addTo ( long key , long hash , double[] sums ){
+            int i = find(key, hash);
+            if(keys[i] != EMPTY){
+                for(int m = 0 ; m < MEASURES ; m++){
+                    sums[m] += values[i * MEASURES + m];
+                }
+            }
+        }
+        private void grow (){
+            long[] oldKeys = keys;
+            double[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            values = new double[keys.length * MEASURES];
+            for(int j = 0 ; j < oldKeys.length ; j++){
+                if(oldKeys[j] != EMPTY){
+                    int i = find(oldKeys[j], hash(oldKeys[j]));
+                    keys[i] = oldKeys[j];
+                    System.arraycopy(oldValues, j * MEASURES, values, i * MEASURES, MEASURES);
+                }
+            }
+        }
+        int size (){
+            return size;
+        }
+    }
+    public static final class Totals {
+        private final double[] sums;
+        Totals ( double[] sums ){
+            this.sums = sums;
+        }
+        public long getBookings (){
+            return (long) sums[BOOKINGS];
+        }
+        public long getPassengers (){
+            return (long) sums[PASSENGERS];
+        }
+        // payments captured
+        public double getRevenue (){
+            return sums[REVENUE];
+        }
+        public long getCancellations (){
+            return (long) sums[CANCELLATIONS];
+        }
+        public double getCancellationFees (){
+            return sums[CANCELLATION_FEES];
+        }
+        // what calculateRefundAmount owed the cancelled bookings
+        public double getRefundsDue (){
+            return sums[REFUNDS_DUE];
+        }
+        // payments refunded
+        public double getRefunded (){
+            return sums[REFUNDED];
+        }
+        public double getNetRevenue (){
+            return sums[REVENUE] - sums[REFUNDED];
+        }
+    }
+    private final Cells[] segments = new Cells[SEGMENTS];
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> routeIds = new ConcurrentHashMap<>();
+    private final List<String> routes = new ArrayList<>(); // "origin-destination" by route id - 1
+    private final LongAdder events = new LongAdder();
+
+    public RevenueAnalytics (){
+        for(int i = 0 ; i < SEGMENTS ; i++){
+            segments[i] = new Cells(1024);
+        }
+    }
+    // route, class slot and UTC day packed into one key: 30 bits of route, 2 of class, 32 of day
+    private static long key ( int route , int classSlot , long day ){
+        return (long) route << 34 | (long) classSlot << 32 | (day & 0xffffffffL);
+    }
+    private static long hash ( long key ){
+        long h = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb93fe53ec9bbL;
+        return h ^ (h >>> 33);
+    }
+    private int routeId ( AbstractFlight flight ){
+        ConcurrentHashMap<String, Integer> destinations = routeIds.get(flight.getOrigin());
+        Integer id = destinations == null ? null : destinations.get(flight.getDestination());
+        if(id != null){
+            return id;
+        }
+        destinations = routeIds.computeIfAbsent(flight.getOrigin(), origin -> new ConcurrentHashMap<>());
+        return destinations.computeIfAbsent(flight.getDestination(), destination -> {
+            synchronized (routes){
+                routes.add(flight.getOrigin() + "-" + destination);
+                return routes.size();
+            }
+        });
+    }
+    private int routeId ( String origin , String destination ){
+        ConcurrentHashMap<String, Integer> destinations = routeIds.get(origin);
+        Integer id = destinations == null ? null : destinations.get(destination);
+        return id == null ? -1 : id;
+    }
+    private void record ( AbstractBooking booking , long time , int first , int width , double a , double b , double c ){
+        int route = routeId(booking.getFlight());
+        int classSlot = booking.getClassType().ordinal() + 1;
+        long day = FlightKey.dayOf(time);
+        add(key(route, classSlot, day), first, width, a, b, c);
+        add(key(route, ALL, day), first, width, a, b, c);
+        add(key(ALL, classSlot, day), first, width, a, b, c);
+        add(key(ALL, ALL, day), first, width, a, b, c);
+        events.increment();
+    }
+    private void add ( long key , int first , int width , double a , double b , double c ){
+        long hash = hash(key);
+        Cells cells = segments[(int) hash & (SEGMENTS - 1)];
+        synchronized (cells){
+            cells.add(key, hash, first, width, a, b, c);
+        }
+    }
+    @Override
+    public void bookingConfirmed ( AbstractBooking booking ){
+        record(booking, booking.getBookingTime(), BOOKINGS, 2, 1, booking.getPassengers().length, 0);
+    }
+    @Override
+    public void paymentCompleted ( AbstractPaymentProcessor payment ){
+        record(payment.getBooking(), payment.getPaymentTime(), REVENUE, 1, payment.getAmount(), 0, 0);
+    }
+    @Override
+    public void bookingCancelled ( AbstractBooking booking ){
+        bookingCancelled(booking, System.currentTimeMillis());
+    }
+    @Override
+    public void paymentRefunded ( AbstractPaymentProcessor payment ){
+        paymentRefunded(payment, System.currentTimeMillis());
+    }
+    // Cancellations and refunds are booked on the day given; used when replaying history.
+    void bookingCancelled ( AbstractBooking booking , long time ){
+        if(booking.getStatus() != BookingStatus.CANCELLED){
+            return; // expired holds are reported as cancellations too
+        }
+        double fee = booking instanceof ICancellable ? ((ICancellable) booking).calculateCancellationFee() : 0;
+        double due = booking instanceof IRefundable ? ((IRefundable) booking).calculateRefundAmount() : 0;
+        record(booking, time, CANCELLATIONS, 3, 1, fee, due);
+    }
+    void paymentRefunded ( AbstractPaymentProcessor payment , long time ){
+        record(payment.getBooking(), time, REFUNDED, 1, payment.getAmount(), 0, 0);
+    }
+    // Totals over the UTC days fromDay..toDay inclusive. A null origin and destination mean all
+    // routes, a null type all classes.
+    public Totals getTotals ( String origin , String destination , ClassType type , long fromDay , long toDay ){
+        double[] sums = new double[MEASURES];
+        int route = ALL;
+        if(origin != null || destination != null){
+            route = routeId(origin, destination);
+            if(route < 0){
+                return new Totals(sums);
+            }
+        }
+        int classSlot = type == null ? ALL : type.ordinal() + 1;
+        for(long day = fromDay ; day <= toDay ; day++){
+            long key = key(route, classSlot, day);
+            long hash = hash(key);
+            Cells cells = segments[(int) hash & (SEGMENTS - 1)];
+            synchronized (cells){
+                cells.addTo(key, hash, sums);
+            }
+        }
+        return new Totals(sums);
+    }
+    public Totals getTotals ( String origin , String destination , ClassType type , LocalDate from , LocalDate to ){
+        return getTotals(origin, destination, type, FlightKey.dayOf(from), FlightKey.dayOf(to));
+    }
+    // routes seen so far as "origin-destination"
+    public List<String> getRoutes (){
+        synchronized (routes){
+            return new ArrayList<>(routes);
+        }
+    }
+    public long getEvents (){
+        return events.sum();
+    }
+    // (route, class, day) cells held, rollups included
+    public int getCellCount (){
+        int count = 0;
+        for(Cells cells : segments){
+            synchronized (cells){
+                count += cells.size();
+            }
+        }
+        return count;
+    }
+}
+class FlightBenchmarks {
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURE_ITERATIONS = 5;
+    private static final java.lang.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    static volatile long sink;
+
+    // Usage: java FlightBenchmarks [scenario] [millis per iteration]
+    public static void main(String[] args) throws Exception {
+        String scenario = args.length > 0 ? args[0] : "all";
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        if(scenario.equals("all") || scenario.equals("suite")){
+            suite(millis);
+        }
+        if(scenario.equals("all") || scenario.equals("contention")){
+            seatContention(millis);
+        }
+        if(scenario.equals("all") || scenario.equals("allocation")){
+            seatAllocation(millis);
+        }
+        if(scenario.equals("all") || scenario.equals("inventory")){
+            inventoryBooking(millis, 100000);
+        }
+        if(scenario.equals("all") || scenario.equals("ids")){
+            idGeneration(millis);
+        }
+        if(scenario.equals("all") || scenario.equals("journal")){
+            journal(millis);
+        }
+        if(scenario.equals("all") || scenario.equals("projections")){
+            projections(millis);
+        }
+        if(scenario.equals("all") || scenario.equals("analytics")){
+            revenueAnalytics(Long.getLong("bench.analyticsBookings", 20000000L), 200, 730);
+        }
+        if(scenario.equals("all") || scenario.equals("loadpricing")){
+            loadPricing(millis);
+        }
+        if(scenario.equals("all") || scenario.equals("overbooking")){
+            overbooking(Integer.getInteger("bench.departures", 200));
+        }
+        if(scenario.equals("all") || scenario.equals("layouts")){
+            aircraftLayouts(Integer.getInteger("bench.layoutFlights", 20000));
+        }
+        if(scenario.equals("all") || scenario.equals("passengers")){
+            passengerStore(Integer.getInteger("bench.passengers", 10000000));
+        }
+        if(scenario.equals("all") || scenario.equals("disruption")){
+            disruption(Integer.getInteger("bench.disruptedFlights", 500));
+        }
+        if(scenario.equals("all") || scenario.equals("import")){
+            scheduleImport(Integer.getInteger("bench.importRows", 500000));
+        }
+        if(scenario.equals("all") || scenario.equals("snapshot")){
+            snapshot(Integer.getInteger("bench.flights", 1000000));
+        }
+        if(scenario.equals("all") || scenario.equals("search")){
+            search(Integer.getInteger("bench.searchFlights", 10000000), 200000);
+        }
+        if(scenario.equals("all") || scenario.equals("connections")){
+            connections(500, 50000, 20000);
+        }
+        if(scenario.equals("all") || scenario.equals("bulk")){
+            bulkBooking(10000, 20);
+        }
+        if(scenario.equals("all") || scenario.equals("payments")){
+            asyncPayments(20000, Long.getLong("bench.authMillis", 50));
+        }
+        if(scenario.equals("all") || scenario.equals("holds")){
+            seatHolds(Integer.getInteger("bench.holds", 1000000));
+        }
+        if(scenario.equals("all") || scenario.equals("fares")){
+            fareCache(2000, 2000000, 100);
+        }
+        if(scenario.equals("all") || scenario.equals("frontend")){
+            frontEnd(Integer.getInteger("bench.requests", 100000), Integer.getInteger("bench.inFlight", 10000),
+                    Long.getLong("bench.authMillis", 50));
+        }
+        if(Boolean.getBoolean("bench.metrics")){
+            System.out.println("=== metrics (latencies sampled every " + Metrics.DEFAULT.getSampleMicros() + " us) ===");
+            Metrics.DEFAULT.export(new TextMetricsExporter(System.out));
+        }
+    }
+    interface BenchWorker {
+        long run();
+    }
+    interface BenchCase {
+        // called once on every measuring thread, so per-thread state lives in the returned worker
+        BenchWorker newWorker();
+    }
+    // JMH-style measurement: warmup and measurement iterations on the same threads, a result sink
+    // so the JIT cannot drop the work, and bytes allocated per operation read from the thread's
+    // allocation counter (the figure JMH's gc profiler reports as gc.alloc.rate.norm).
+    static void measure(String name, final int threads, final long millis, final BenchCase benchCase) throws InterruptedException {
+        final int phases = WARMUP_ITERATIONS + MEASURE_ITERATIONS;
+        final long[][] ops = new long[phases][threads];
+        final long[][] bytes = new long[phases][threads];
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] workers = new Thread[threads];
+        for(int t = 0 ; t < threads ; t++){
+            final int id = t;
+            workers[t] = new Thread(() -> {
+                try{
+                    BenchWorker worker = benchCase.newWorker();
+                    long result = 0;
+                    for(int p = 0 ; p < phases ; p++){
+                        barrier.await();
+                        long deadline = System.nanoTime() + millis * 1000000L;
+                        long startBytes = allocatedBytes();
+                        long n = 0;
+                        do{
+                            for(int i = 0 ; i < 64 ; i++){
+                                result += worker.run();
+                            }
+                            n += 64;
+                        } while(System.nanoTime() < deadline);
+                        bytes[p][id] = allocatedBytes() - startBytes;
+                        ops[p][id] = n;
+                    }
+                    sink = result;
+                }
+                catch(Throwable e){
+                    failure[0] = e;
+                    barrier.reset();
+                }
+            });
+            workers[t].start();
+        }
+        for(Thread worker : workers){
+            worker.join();
+        }
+        if(failure[0] != null){
+            throw new IllegalStateException(name + " failed", failure[0]);
+        }
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        long totalOps = 0;
+        long totalBytes = 0;
+        for(int p = WARMUP_ITERATIONS ; p < phases ; p++){
+            long phaseOps = 0;
+            for(int t = 0 ; t < threads ; t++){
+                phaseOps += ops[p][t];
+                totalBytes += bytes[p][t];
+            }
+            totalOps += phaseOps;
+            double rate = phaseOps * 1000.0 / millis;
+            min = Math.min(min, rate);
+            max = Math.max(max, rate);
+        }
+        double mean = totalOps * 1000.0 / (millis * MEASURE_ITERATIONS);
+        System.out.printf("%-34s threads=%2d %,14.0f ops/s [%,.0f .. %,.0f] %9.1f ns/op %9.1f B/op%n",
+                name, threads, mean, min, max, threads * 1e6 * millis * MEASURE_ITERATIONS / totalOps,
+                (double) totalBytes / totalOps);
+    }
+    static long allocatedBytes(){
+        if(THREADS instanceof com.sun.management.ThreadMXBean){
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+    static Passenger[] passengers(int count){
+        Passenger[] party = new Passenger[count];
+        for(int i = 0 ; i < count ; i++){
+            party[i] = new Passenger("Bench" + i, "User", 0L, "B1234" + i, "Turkish", "bench" + i + "@example.com", "+900000000000");
+        }
+        return party;
+    }
+    static long futureDeparture(int days){
+        return System.currentTimeMillis() + days * 24L * 60 * 60 * 1000;
+    }
+    static InternationalFlight widebody(String flightNumber, int seatCount){
+        long departure = futureDeparture(30);
+        InternationalFlight flight = new InternationalFlight(flightNumber, "Istanbul", "New York", departure, departure + 11 * 3600000L, 5000.0);
+        Seat[] seats = new Seat[seatCount];
+        for(int i = 0 ; i < seatCount ; i++){
+            seats[i] = new Seat("W" + (i + 1), widebodyClass(i, seatCount));
+        }
+        flight.setSeats(seats);
+        return flight;
+    }
+    static ClassType widebodyClass(int index, int seatCount){
+        return index < seatCount / 25 ? ClassType.FIRST : index < seatCount / 5 ? ClassType.BUSINESS : ClassType.ECONOMY;
+    }
+    static void suite(long millis) throws InterruptedException {
+        System.out.println("=== benchmark suite (" + WARMUP_ITERATIONS + " warmup + " + MEASURE_ITERATIONS
+                + " measured iterations of " + millis + " ms) ===");
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] variants = { 1, Math.max(2, cores) };
+        long departure = futureDeparture(30);
+        final InternationalFlight shared = new InternationalFlight("BM100", "Istanbul", "Paris", departure, departure + 5 * 3600000L, 5000.0);
+        final SeasonalPricingStrategy pricing = new SeasonalPricingStrategy(0.18, 0.05);
+        final AbstractFlight[] seatFlights = {
+                new DomesticFlight("BM050", "Istanbul", "Ankara", departure, departure + 3600000L, 1000.0, 0.18),
+                new InternationalFlight("BM101", "Istanbul", "Paris", departure, departure + 5 * 3600000L, 5000.0),
+                widebody("BM1000", 1000)
+        };
+        for(AbstractFlight flight : seatFlights){
+            for(int i = 0 ; i < flight.getSeatMap().size() ; i += 3){
+                flight.getSeatMap().reserve(i);
+            }
+        }
+        Passenger[] cardHolder = passengers(1);
+        final CreditCardPayment payment = new CreditCardPayment(
+                new StandardBooking(shared, cardHolder, pricing, false),
+                "1234567890123456", "Bench User", "12/29", "123");
+        for(int threads : variants){
+            measure("createBooking (2 pax)", threads, millis, () -> {
+                Passenger[] party = passengers(2);
+                return () -> {
+                    StandardBooking booking = new StandardBooking(shared, party, pricing, true);
+                    boolean ok = booking.createBooking();
+                    shared.getSeatMap().release(booking.getAssignedSeats());
+                    return ok ? 1 : 0;
+                };
+            });
+            measure("assignSeats (2 pax)", threads, millis, () -> {
+                StandardBooking booking = new StandardBooking(shared, passengers(2), pricing, true);
+                Seat[] seats = booking.getAssignedSeats();
+                return () -> {
+                    boolean ok = booking.assignSeats();
+                    shared.getSeatMap().release(seats);
+                    Arrays.fill(seats, null);
+                    return ok ? 1 : 0;
+                };
+            });
+            for(final AbstractFlight flight : seatFlights){
+                int size = flight.getSeatMap().size();
+                measure("getAvailableSeats (" + size + " seats)", threads, millis,
+                        () -> () -> flight.getAvailableSeats().length);
+                measure("getAvailableSeatCount (" + size + " seats)", threads, millis,
+                        () -> () -> flight.getAvailableSeatCount());
+                measure("nextAvailableSeat walk (" + size + " seats)", threads, millis, () -> () -> {
+                    long free = 0;
+                    for(int seat = flight.nextAvailableSeat(0) ; seat >= 0 ; seat = flight.nextAvailableSeat(seat + 1)){
+                        free++;
+                    }
+                    return free;
+                });
+            }
+            measure("calculateFinalPrice (2 pax)", threads, millis,
+                    () -> () -> (long) pricing.calculateFinalPrice(shared, 2));
+            measure("validatePaymentDetails", threads, millis,
+                    () -> () -> payment.validatePaymentDetails() ? 1 : 0);
+        }
+    }
+    static int[] threadCounts(){
+        int cores = Runtime.getRuntime().availableProcessors();
+        int n = 0;
+        for(int t = 1 ; t <= cores * 2 ; t *= 2){
+            n++;
+        }
+        int[] counts = new int[n];
+        for(int i = 0, t = 1 ; i < n ; i++, t *= 2){
+            counts[i] = t;
+        }
+        return counts;
+    }
+    // Hammers one flight from many threads: every thread books a party of 1-4 seats, checks no
+    // other thread holds the same seat, then gives the seats back.
+    static void seatContention(long millis) throws InterruptedException {
+        System.out.println("=== seat contention (one InternationalFlight, parties of 1-4) ===");
+        for(int threads : threadCounts()){
+            final InternationalFlight flight = new InternationalFlight("BM001", "Istanbul", "Paris",
+                    System.currentTimeMillis() + 86400000L, System.currentTimeMillis() + 90000000L, 1000.0);
+            final SeatMap seatMap = flight.getSeatMap();
+            final AtomicIntegerArray holders = new AtomicIntegerArray(seatMap.size());
+            final LongAdder bookings = new LongAdder();
+            final LongAdder rejected = new LongAdder();
+            final LongAdder oversold = new LongAdder();
+            final long deadline = System.nanoTime() + millis * 1000000L;
+            final CountDownLatch done = new CountDownLatch(threads);
+            for(int t = 0 ; t < threads ; t++){
+                new Thread(() -> {
+                    Seat[][] parties = new Seat[5][];
+                    for(int n = 1 ; n < parties.length ; n++){
+                        parties[n] = new Seat[n];
+                    }
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long ok = 0;
+                    long failed = 0;
+                    while(System.nanoTime() < deadline){
+                        Seat[] party = parties[1 + random.nextInt(4)];
+                        if(!seatMap.reserve(party.length, party)){
+                            failed++;
+                            continue;
+                        }
+                        for(Seat seat : party){
+                            if(holders.incrementAndGet(seat.getIndex()) != 1){
+                                oversold.increment();
+                            }
+                        }
+                        for(Seat seat : party){
+                            holders.decrementAndGet(seat.getIndex());
+                        }
+                        seatMap.release(party);
+                        ok++;
+                    }
+                    bookings.add(ok);
+                    rejected.add(failed);
+                    done.countDown();
+                }).start();
+            }
+            done.await();
+            System.out.printf("threads=%2d  bookings/s=%,12.0f  rejected=%,d  oversold=%d  leaked=%d%n",
+                    threads, bookings.sum() * 1000.0 / millis, rejected.sum(), oversold.sum(),
+                    seatMap.size() - seatMap.availableCount());
+        }
+    }
+    // Many threads book and cancel single seats on random flights of one inventory. Different
+    // flights share no lock, so throughput should follow the thread count.
+    static void inventoryBooking(long millis, int flightCount) throws InterruptedException {
+        System.out.println("=== inventory booking (" + flightCount + " DomesticFlights, 1 pax) ===");
+        final FlightInventory inventory = new FlightInventory(flightCount);
+        final AbstractFlight[] flights = new AbstractFlight[flightCount];
+        long departure = System.currentTimeMillis() + 30L * 24 * 60 * 60 * 1000;
+        for(int i = 0 ; i < flightCount ; i++){
+            flights[i] = new DomesticFlight("BM" + i, "Istanbul", "Ankara", departure, departure + 3600000L, 1000.0, 0.18);
+            inventory.addFlight(flights[i]);
+        }
+        for(int threads : threadCounts()){
+            final LongAdder bookings = new LongAdder();
+            final long deadline = System.nanoTime() + millis * 1000000L;
+            final CountDownLatch done = new CountDownLatch(threads);
+            for(int t = 0 ; t < threads ; t++){
+                new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    Passenger[] party = { new Passenger("Bench", "User", 0L, "B12345", "Turkish", "bench@example.com", "+900000000000") };
+                    SeasonalPricingStrategy pricing = new SeasonalPricingStrategy(0.18, 0.0);
+                    long ok = 0;
+                    while(System.nanoTime() < deadline){
+                        StandardBooking booking = new StandardBooking(flights[random.nextInt(flights.length)], party, pricing, true);
+                        if(inventory.book(booking)){
+                            inventory.cancel(booking);
+                            ok++;
+                        }
+                    }
+                    bookings.add(ok);
+                    done.countDown();
+                }).start();
+            }
+            done.await();
+            System.out.printf("threads=%2d  bookings/s=%,12.0f%n", threads, bookings.sum() * 1000.0 / millis);
+        }
+    }
+    static void idGeneration(long millis) throws InterruptedException {
+        System.out.println("=== id generation (IdGenerator.DEFAULT) ===");
+        for(int threads : threadCounts()){
+            final LongAdder ids = new LongAdder();
+            final LongAdder outOfOrder = new LongAdder();
+            final long deadline = System.nanoTime() + millis * 1000000L;
+            final CountDownLatch done = new CountDownLatch(threads);
+            for(int t = 0 ; t < threads ; t++){
+                new Thread(() -> {
+                    long previous = 0;
+                    long count = 0;
+                    while(System.nanoTime() < deadline){
+                        for(int i = 0 ; i < 1024 ; i++){
+                            long id = IdGenerator.DEFAULT.nextId();
+                            if(id <= previous){
+                                outOfOrder.increment();
+                            }
+                            previous = id;
+                        }
+                        count += 1024;
+                    }
+                    ids.add(count);
+                    done.countDown();
+                }).start();
+            }
+            done.await();
+            System.out.printf("threads=%2d  ids/s=%,14.0f  non-monotonic=%d%n",
+                    threads, ids.sum() * 1000.0 / millis, outOfOrder.sum());
+        }
+    }
+    // Journals booking confirmations from many threads under each durability mode, then replays
+    // the file into a fresh inventory.
+    static void journal(long millis) throws Exception {
+        System.out.println("=== booking journal (append throughput, then replay) ===");
+        int threads = 64; // group commit needs many callers waiting at once to batch
+        for(JournalDurability durability : JournalDurability.values()){
+            Path file = Files.createTempFile("booking-journal", ".bin");
+            Files.delete(file);
+            final BookingJournal journal = BookingJournal.open(file, durability);
+            final FlightInventory inventory = new FlightInventory();
+            inventory.setListener(journal);
+            long departure = futureDeparture(30);
+            final InternationalFlight flight = new InternationalFlight("BJ100", "Istanbul", "Paris", departure, departure + 5 * 3600000L, 5000.0);
+            inventory.addFlight(flight);
+            final StandardBooking booking = new StandardBooking(flight, passengers(2), new SeasonalPricingStrategy(0.18, 0.05), true);
+            booking.assignSeats();
+            final LongAdder events = new LongAdder();
+            final long deadline = System.nanoTime() + millis * 1000000L;
+            final CountDownLatch done = new CountDownLatch(threads);
+            for(int t = 0 ; t < threads ; t++){
+                new Thread(() -> {
+                    long count = 0;
+                    while(System.nanoTime() < deadline){
+                        journal.bookingConfirmed(booking);
+                        count++;
+                    }
+                    events.add(count);
+                    done.countDown();
+                }).start();
+            }
+            done.await();
+            journal.close();
+            long start = System.nanoTime();
+            BookingJournal.ReplayResult replayed = BookingJournal.replay(file, new FlightInventory());
+            long replayMillis = (System.nanoTime() - start) / 1000000L;
+            System.out.printf("%-12s threads=%2d  events/s=%,10.0f  file=%,d bytes  replayed %,d records (%,d bookings) in %d ms%n",
+                    durability, threads, events.sum() * 1000.0 / millis, Files.size(file),
+                    replayed.getRecords(), replayed.getBookings(), replayMillis);
+            Files.delete(file);
+        }
+    }
+    // Writes a snapshot of flightCount flights (one booked flight object re-numbered per record, so
+    // the writer side does not need the whole schedule in memory), then measures cold start.
+    static void snapshot(int flightCount) throws Exception {
+        System.out.println("=== inventory snapshot (" + flightCount + " flights) ===");
+        Path file = Files.createTempFile("inventory", ".snap");
+        long departure = futureDeparture(30);
+        DomesticFlight flight = new DomesticFlight("TK0", "Istanbul", "Ankara", departure, departure + 3600000L, 1000.0, 0.18);
+        StandardBooking booking = new StandardBooking(flight, passengers(2), new SeasonalPricingStrategy(0.18, 0.05), true);
+        booking.assignSeats();
+        List<AbstractBooking> bookings = Collections.<AbstractBooking>singletonList(booking);
+        long start = System.nanoTime();
+        try(InventorySnapshot.Writer writer = new InventorySnapshot.Writer(file)){
+            for(int i = 0 ; i < flightCount ; i++){
+                flight.setFlightNumber("TK" + i);
+                writer.add(flight, bookings);
+            }
+            writer.finish(0);
+        }
+        System.out.printf("write    %,8d ms  %,d bytes%n", (System.nanoTime() - start) / 1000000L, Files.size(file));
+        start = System.nanoTime();
+        try(MappedSnapshot snapshot = MappedSnapshot.open(file)){
+            System.out.printf("open     %,8.1f ms  %,d flights%n", (System.nanoTime() - start) / 1e6, snapshot.getFlightCount());
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int lookups = 100000;
+            long day = FlightKey.dayOf(departure);
+            start = System.nanoTime();
+            int found = 0;
+            for(int i = 0 ; i < lookups ; i++){
+                AbstractFlight f = snapshot.find("TK" + random.nextInt(flightCount), day);
+                found += f == null ? 0 : 1;
+            }
+            System.out.printf("find     %,8.2f us/lookup  (%,d of %,d found, materialised lazily)%n",
+                    (System.nanoTime() - start) / 1e3 / lookups, found, lookups);
+            int sample = Math.min(flightCount, 100000);
+            FlightInventory inventory = new FlightInventory(sample);
+            start = System.nanoTime();
+            for(int i = 0 ; i < sample ; i++){
+                if(inventory.addFlight(snapshot.flight(i))){
+                    for(AbstractBooking b : snapshot.bookings(i)){
+                        inventory.restoreBooking(b);
+                    }
+                }
+            }
+            System.out.printf("restore  %,8.2f us/flight with bookings (%,d flights)%n",
+                    (System.nanoTime() - start) / 1e3 / sample, sample);
+        }
+        Files.delete(file);
+    }
+    static void printPercentiles(String label, long[] nanos, int count){
+        Arrays.sort(nanos, 0, count);
+        System.out.printf("%-10s p50=%,.1f us  p90=%,.1f us  p99=%,.1f us  p99.9=%,.1f us  max=%,.1f us%n", label,
+                nanos[(int) (count * 0.50)] / 1e3, nanos[(int) (count * 0.90)] / 1e3,
+                nanos[(int) (count * 0.99)] / 1e3, nanos[(int) (count * 0.999)] / 1e3, nanos[count - 1] / 1e3);
+    }
+    // Fills a FlightSearchIndex with entryCount scheduled departures over a year on 2,450 routes
+    // between 50 airports and reports query latency. The index only holds references, so a pool of
+    // 20k real flight objects (with varied seat availability) is shared by the index entries.
+    static void search(int entryCount, int queries){
+        System.out.println("=== route search (" + entryCount + " indexed departures) ===");
+        int airports = 50;
+        String[] codes = new String[airports];
+        for(int i = 0 ; i < airports ; i++){
+            codes[i] = "AP" + i;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long horizonStart = futureDeparture(1);
+        long year = 365L * 24 * 60 * 60 * 1000;
+        AbstractFlight[][] pool = new AbstractFlight[airports][airports];
+        FlightSearchIndex index = new FlightSearchIndex();
+        long start = System.nanoTime();
+        for(int i = 0 ; i < entryCount ; i++){
+            int o = random.nextInt(airports);
+            int d = random.nextInt(airports - 1);
+            d = d >= o ? d + 1 : d;
+            AbstractFlight flight = pool[o][d];
+            if(flight == null || random.nextInt(entryCount / 20000 + 1) == 0){
+                flight = new InternationalFlight("SX" + i, codes[o], codes[d], horizonStart, horizonStart + 3 * 3600000L, 3000.0);
+                for(int s = random.nextInt(flight.getSeatMap().size()) ; s >= 0 ; s--){
+                    flight.getSeatMap().reserve(s);
+                }
+                pool[o][d] = flight;
+            }
+            index.add(flight, horizonStart + (long) (random.nextDouble() * year));
+        }
+        System.out.printf("indexed %,d departures on %,d routes in %,d ms%n", entryCount, index.routeCount(),
+                (System.nanoTime() - start) / 1000000L);
+        long[] nanos = new long[queries];
+        List<AbstractFlight> out = new ArrayList<>();
+        long window = 3L * 24 * 60 * 60 * 1000;
+        long hits = 0;
+        for(int round = 0 ; round < 2 ; round++){
+            for(int q = 0 ; q < queries ; q++){
+                int o = random.nextInt(airports);
+                int d = random.nextInt(airports - 1);
+                d = d >= o ? d + 1 : d;
+                long from = horizonStart + (long) (random.nextDouble() * (year - window));
+                out.clear();
+                long t0 = System.nanoTime();
+                index.search(codes[o], codes[d], from, from + window, ClassType.BUSINESS, 2, 50, out);
+                nanos[q] = System.nanoTime() - t0;
+                hits += out.size();
+            }
+        }
+        System.out.printf("%,d queries (D..D+3, >= 2 BUSINESS seats), %.1f results on average%n", queries, hits / (2.0 * queries));
+        printPercentiles("latency", nanos, queries);
+    }
+    // Synthetic hub-and-spoke schedule: dailyFlights per day for two days between the given number
+    // of airports, the first 20 of which are hubs. Queries go from a random spoke to another spoke
+    // leaving in a 6 hour morning window.
+    static void connections(int airports, int dailyFlights, int queries){
+        System.out.println("=== connection search (" + airports + " airports, " + dailyFlights + " flights/day) ===");
+        int hubs = 20;
+        String[] codes = new String[airports];
+        for(int i = 0 ; i < airports ; i++){
+            codes[i] = (i < hubs ? "HUB" : "APT") + i;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long day = 24L * 60 * 60 * 1000;
+        long dayStart = FlightKey.dayOf(futureDeparture(10)) * day;
+        FlightSearchIndex index = new FlightSearchIndex();
+        long start = System.nanoTime();
+        for(int i = 0 ; i < dailyFlights * 2 ; i++){
+            int o;
+            int d;
+            int shape = random.nextInt(10);
+            if(shape < 7){
+                o = random.nextInt(hubs);
+                d = hubs + random.nextInt(airports - hubs);
+                if(random.nextBoolean()){
+                    int t = o;
+                    o = d;
+                    d = t;
+                }
+            }
+            else if(shape < 9){
+                o = random.nextInt(hubs);
+                d = random.nextInt(hubs);
+            }
+            else{
+                o = random.nextInt(airports);
+                d = random.nextInt(airports);
+            }
+            if(o == d){
+                continue;
+            }
+            long departure = dayStart + (i / dailyFlights) * day + (long) (random.nextDouble() * day);
+            long duration = (60 + random.nextInt(240)) * 60000L;
+            index.add(new DomesticFlight("CX" + i, codes[o], codes[d], departure, departure + duration, 500.0 + random.nextInt(1500), 0.18));
+        }
+        System.out.printf("schedule built in %,d ms%n", (System.nanoTime() - start) / 1000000L);
+        SeasonalPricingStrategy strategy = new SeasonalPricingStrategy(0.18, 0.0);
+        ConnectionSearch search = new ConnectionSearch(index, flight -> strategy);
+        long[] nanos = new long[queries];
+        long itineraries = 0;
+        long empty = 0;
+        for(int round = 0 ; round < 2 ; round++){
+            itineraries = 0;
+            empty = 0;
+            for(int q = 0 ; q < queries ; q++){
+                int o = hubs + random.nextInt(airports - hubs);
+                int d = hubs + random.nextInt(airports - hubs);
+                long from = dayStart + 6 * 3600000L;
+                long t0 = System.nanoTime();
+                List<Itinerary> result = search.search(codes[o], codes[d], from, from + 6 * 3600000L, 2);
+                nanos[q] = System.nanoTime() - t0;
+                itineraries += result.size();
+                empty += result.isEmpty() ? 1 : 0;
+            }
+        }
+        System.out.printf("%,d queries, %.1f itineraries on average, %,d without any%n", queries, itineraries / (double) queries, empty);
+        printPercentiles("latency", nanos, queries);
+    }
+    // requestCount group requests of 1-4 passengers spread over 100 widebodies (500 seats each),
+    // each with its own strategy as separate sales channels would have. Compares a createBooking
+    // loop with BulkBookingService.bookAll on the same requests; seats are returned between rounds.
+    static void bulkBooking(int requestCount, int rounds){
+        System.out.println("=== bulk booking (" + requestCount + " requests) ===");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        InternationalFlight[] flights = new InternationalFlight[100];
+        for(int i = 0 ; i < flights.length ; i++){
+            flights[i] = widebody("BB" + i, 500);
+        }
+        SeasonalPricingStrategy[] strategies = new SeasonalPricingStrategy[4];
+        for(int i = 0 ; i < strategies.length ; i++){
+            strategies[i] = new SeasonalPricingStrategy(0.18, 0.05 * i);
+        }
+        Passenger[][] parties = new Passenger[5][];
+        for(int n = 1 ; n < parties.length ; n++){
+            parties[n] = passengers(n);
+        }
+        List<BookingRequest> requests = new ArrayList<>(requestCount);
+        for(int i = 0 ; i < requestCount ; i++){
+            requests.add(new BookingRequest(flights[random.nextInt(flights.length)], parties[1 + random.nextInt(4)],
+                    strategies[random.nextInt(strategies.length)], random.nextBoolean()));
+        }
+        BulkBookingService service = new BulkBookingService();
+        long loopNanos = Long.MAX_VALUE;
+        long bulkNanos = Long.MAX_VALUE;
+        int loopOk = 0;
+        int bulkOk = 0;
+        for(int round = 0 ; round < rounds ; round++){
+            StandardBooking[] made = new StandardBooking[requestCount];
+            long t0 = System.nanoTime();
+            for(int i = 0 ; i < requestCount ; i++){
+                BookingRequest r = requests.get(i);
+                made[i] = new StandardBooking(r.getFlight(), r.getPassengers(), r.getPricingStrategy(), r.isInsuranceIncluded());
+                made[i].createBooking();
+            }
+            loopNanos = Math.min(loopNanos, System.nanoTime() - t0);
+            loopOk = releaseAll(made);
+            t0 = System.nanoTime();
+            made = service.bookAll(requests);
+            bulkNanos = Math.min(bulkNanos, System.nanoTime() - t0);
+            bulkOk = releaseAll(made);
+        }
+        System.out.printf("createBooking loop  %,10.0f us  (%,d confirmed)%n", loopNanos / 1e3, loopOk);
+        System.out.printf("bookAll             %,10.0f us  (%,d confirmed)  %.1fx%n", bulkNanos / 1e3, bulkOk, (double) loopNanos / bulkNanos);
+    }
+    private static int releaseAll(StandardBooking[] bookings){
+        int confirmed = 0;
+        for(StandardBooking booking : bookings){
+            if(booking.getStatus() == BookingStatus.CONFIRMED){
+                confirmed++;
+            }
+            booking.getFlight().getSeatMap().release(booking.getAssignedSeats());
+        }
+        return confirmed;
+    }
+    // Load generator for BookingFrontEnd: requestCount book-and-pay calls against 200 widebodies,
+    // with up to inFlight calls outstanding and every payment authorisation taking authMillis (as a
+    // card acquirer round trip would). Reports throughput and end-to-end latency percentiles.
+    static void frontEnd(int requestCount, int inFlight, long authMillis) throws InterruptedException {
+        System.out.println("=== request front end (" + requestCount + " book+pay calls, " + inFlight
+                + " in flight, " + authMillis + " ms authorisation) ===");
+        FlightInventory inventory = new FlightInventory();
+        InternationalFlight[] flights = new InternationalFlight[200];
+        int seatsPerFlight = Math.max(100, (requestCount * 2 / flights.length + 63) & ~63);
+        for(int i = 0 ; i < flights.length ; i++){
+            flights[i] = widebody("FE" + i, seatsPerFlight);
+            inventory.addFlight(flights[i]);
+        }
+        SeasonalPricingStrategy strategy = new SeasonalPricingStrategy(0.18, 0.0);
+        Passenger[] party = passengers(1);
+        final long authNanos = authMillis * 1000000L;
+        Function<AbstractBooking, AbstractPaymentProcessor> payment = booking ->
+                new CreditCardPayment(booking, "1234567812345678", "Bench User", "12/30", "123"){
+                    @Override
+                    public boolean processPayment (){
+                        LockSupport.parkNanos(authNanos);
+                        return super.processPayment();
+                    }
+                };
+        long[] latencies = new long[requestCount];
+        CountDownLatch done = new CountDownLatch(requestCount);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        BookingFrontEnd frontEnd = new BookingFrontEnd(inventory, inFlight, 10, TimeUnit.SECONDS);
+        System.out.println("threads: " + (frontEnd.isVirtualThreads() ? "virtual" : "platform (no virtual threads on this JVM)"));
+        long start = System.nanoTime();
+        for(int i = 0 ; i < requestCount ; i++){
+            final int id = i;
+            final long submitted = System.nanoTime();
+            StandardBooking booking = new StandardBooking(flights[random.nextInt(flights.length)], party, strategy, false);
+            frontEnd.bookAndPay(booking, payment).whenComplete((ok, error) -> {
+                latencies[id] = System.nanoTime() - submitted;
+                done.countDown();
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        frontEnd.close();
+        System.out.printf("throughput %,.0f calls/s  (%,d completed, %,d threw, %,d rejected in %,.2f s)%n",
+                requestCount / (elapsed / 1e9), frontEnd.getCompleted(), frontEnd.getFailed(), frontEnd.getRejected(), elapsed / 1e9);
+        printPercentiles("latency", latencies, requestCount);
+    }
+    // paymentCount payments through AsyncPaymentPipeline against a StubAcquirer answering each call
+    // after latencyMillis, at increasing numbers of payments in flight. Throughput should grow with
+    // the in-flight count while per-payment latency stays at two acquirer round trips.
+    static void asyncPayments(int paymentCount, long latencyMillis) throws InterruptedException {
+        System.out.println("=== async payments (" + paymentCount + " payments, " + latencyMillis + " ms acquirer latency) ===");
+        StubAcquirer acquirer = new StubAcquirer(latencyMillis, TimeUnit.MILLISECONDS, 0.0, 8, 1024);
+        AsyncPaymentPipeline pipeline = new AsyncPaymentPipeline(acquirer, 10 * latencyMillis + 1000, TimeUnit.MILLISECONDS);
+        StandardBooking booking = new StandardBooking(widebody("AP1", 100), passengers(1), new SeasonalPricingStrategy(0.18, 0.0), false);
+        for(int inFlight : new int[]{ 1, 16, 256, 4096 }){
+            int count = Math.min(paymentCount, inFlight * 50);
+            Semaphore window = new Semaphore(inFlight);
+            CountDownLatch done = new CountDownLatch(count);
+            long[] latencies = new long[count];
+            long start = System.nanoTime();
+            for(int i = 0 ; i < count ; i++){
+                final int id = i;
+                window.acquire();
+                final long submitted = System.nanoTime();
+                new CreditCardPayment(booking, "1234567812345678", "Bench User", "12/30", "123").processPaymentAsync(pipeline)
+                        .whenComplete((ok, e) -> {
+                            latencies[id] = System.nanoTime() - submitted;
+                            window.release();
+                            done.countDown();
+                        });
+            }
+            done.await();
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("in flight %,5d  %,10.0f payments/s  ", inFlight, count / (elapsed / 1e9));
+            printPercentiles("latency", latencies, count);
+        }
+        System.out.printf("completed %,d  declined %,d  timed out %,d%n", pipeline.getCompleted(), pipeline.getDeclined(), pipeline.getTimedOut());
+        pipeline.close();
+        acquirer.close();
+    }
+    // holdCount pending holds (one seat each, expiring evenly over the second half of a 15 minute
+    // TTL) on 1,024-seat flights, driven by a manual clock: cost of creating them, of ticks with
+    // millions pending but nothing due, and of expiring them all. A tenth are confirmed first.
+    static void seatHolds(int holdCount){
+        System.out.println("=== seat holds (" + holdCount + " pending) ===");
+        int seatsPerFlight = 1024;
+        InternationalFlight[] flights = new InternationalFlight[(holdCount + seatsPerFlight - 1) / seatsPerFlight];
+        for(int i = 0 ; i < flights.length ; i++){
+            flights[i] = widebody("SH" + i, seatsPerFlight);
+        }
+        SeasonalPricingStrategy strategy = new SeasonalPricingStrategy(0.18, 0.0);
+        Passenger[] party = passengers(1);
+        long ttl = 15 * 60 * 1000L;
+        SeatHoldManager manager = new SeatHoldManager(null, ttl, 10, false);
+        long now = System.currentTimeMillis();
+        SeatHold[] holds = new SeatHold[holdCount];
+        long start = System.nanoTime();
+        for(int i = 0 ; i < holdCount ; i++){
+            StandardBooking booking = new StandardBooking(flights[i / seatsPerFlight], party, strategy, false,
+                    widebodyClass(i % seatsPerFlight, seatsPerFlight));
+            holds[i] = manager.hold(booking, now + ttl / 2 + ttl / 2 * (i + 1) / holdCount);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("hold        %,10.0f ns/hold  (%,d pending)%n", (double) elapsed / holdCount, manager.getPending());
+        start = System.nanoTime();
+        for(int i = 0 ; i < holdCount ; i += 10){
+            manager.confirm(holds[i]);
+        }
+        elapsed = System.nanoTime() - start;
+        System.out.printf("confirm     %,10.0f ns/hold  (%,d pending)%n", elapsed / (holdCount / 10.0), manager.getPending());
+        int ticks = (int) (ttl / 2 / 10) - 1;
+        start = System.nanoTime();
+        int due = 0;
+        for(int t = 1 ; t <= ticks ; t++){
+            due += manager.expireUntil(now + t * 10L);
+        }
+        elapsed = System.nanoTime() - start;
+        System.out.printf("idle tick   %,10.0f ns/tick  (%,d expired)%n", (double) elapsed / ticks, due);
+        start = System.nanoTime();
+        due = manager.expireUntil(now + ttl + 10);
+        elapsed = System.nanoTime() - start;
+        System.out.printf("expire all  %,10.0f ns/hold  (%,d expired over %,d ticks)%n", (double) elapsed / Math.max(1, due), due, ttl / 2 / 10);
+        int free = 0;
+        for(InternationalFlight flight : flights){
+            free += flight.getAvailableSeatCount();
+        }
+        System.out.printf("created %,d  converted %,d  expired %,d  pending %,d  free seats %,d%n", manager.getCreated(),
+                manager.getConverted(), manager.getExpired(), manager.getPending(), free);
+    }
+    // Shopping traffic over flightCount 300-seat flights with one booking (or cancellation) for
+    // every lookToBook queries: the uncached query (price the flight, price the class, count the
+    // class's seats via getAvailableSeats) against FareAvailabilityCache sized for a quarter of the
+    // (flight, class) pairs, with hot flights drawn far more often than cold ones.
+    static void fareCache(int flightCount, int queries, int lookToBook){
+        System.out.println("=== fare availability cache (" + flightCount + " flights, " + queries + " queries, look-to-book "
+                + lookToBook + ":1) ===");
+        InternationalFlight[] flights = new InternationalFlight[flightCount];
+        for(int i = 0 ; i < flightCount ; i++){
+            flights[i] = widebody("FC" + i, 300);
+        }
+        SeasonalPricingStrategy strategy = new SeasonalPricingStrategy(0.18, 0.05);
+        ClassType[] types = ClassType.values();
+        int[] flightOf = new int[queries];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for(int q = 0 ; q < queries ; q++){
+            // a skewed (roughly Zipf-like) choice: a few flights take most of the traffic
+            flightOf[q] = (int) (flightCount * Math.pow(random.nextDouble(), 3));
+        }
+        Passenger[] party = passengers(1);
+        long sum = 0;
+        for(int round = 0 ; round < 2 ; round++){
+            long start = System.nanoTime();
+            for(int q = 0 ; q < queries ; q++){
+                AbstractFlight flight = flights[flightOf[q]];
+                ClassType type = types[q % types.length];
+                sum += (long) strategy.calculateFinalPrice(flight, 1);
+                sum += (long) strategy.getPriceForClass(flight, type);
+                for(int seat = flight.nextAvailableSeat(type, 0) ; seat >= 0 ; seat = flight.nextAvailableSeat(type, seat + 1)){
+                    sum++;
+                }
+                if(q % lookToBook == 0){
+                    shop(flight, party, strategy);
+                }
+            }
+            long uncached = System.nanoTime() - start;
+            FareAvailabilityCache cache = new FareAvailabilityCache(strategy, flightCount * types.length / 4);
+            start = System.nanoTime();
+            for(int q = 0 ; q < queries ; q++){
+                AbstractFlight flight = flights[flightOf[q]];
+                FareAvailabilityCache.FareQuote quote = cache.quote(flight, types[q % types.length]);
+                sum += (long) quote.getPricePerPassenger() + (long) quote.getClassFare() + quote.getSeatsLeft();
+                if(q % lookToBook == 0){
+                    shop(flight, party, strategy);
+                }
+            }
+            long cached = System.nanoTime() - start;
+            if(round == 1){
+                System.out.printf("uncached  %,8.0f ns/query%n", (double) uncached / queries);
+                System.out.printf("cached    %,8.0f ns/query  %.1fx  hit rate %.1f%%  stale %.1f%%  evictions %,d%n", (double) cached / queries,
+                        (double) uncached / cached, cache.getHitRate() * 100, cache.getStaleRate() * 100, cache.getEvictions());
+            }
+        }
+        sink = sum;
+    }
+    // Books one seat, or frees a random one if the flight is more than half sold.
+    private static void shop(AbstractFlight flight, Passenger[] party, AbstractPricingStrategy strategy){
+        SeatMap seatMap = flight.getSeatMap();
+        if(seatMap.availableCount() < seatMap.size() / 2){
+            seatMap.release(ThreadLocalRandom.current().nextInt(seatMap.size()));
+        }
+        else{
+            new StandardBooking(flight, party, strategy, false).createBooking();
+        }
+    }
+    // Class-aware allocation on a 500-seat widebody (20 first, 80 business, 400 economy). First
+    // churn: every thread books parties of 1-4 in a random class (5/15/80%), checks the seats and
+    // gives them back. Then a fill: the threads book until the plane is full. Reports throughput,
+    // how many parties sat together in one row, and seats in the wrong class or held twice.
+    static void seatAllocation(long millis) throws InterruptedException {
+        System.out.println("=== class-aware seat allocation (500-seat widebody, parties of 1-4) ===");
+        for(int threads : threadCounts()){
+            for(final boolean fill : new boolean[]{ false, true }){
+                final SeatMap seatMap = widebody("BM500", 500).getSeatMap();
+                final AtomicIntegerArray holders = new AtomicIntegerArray(seatMap.size());
+                final LongAdder bookings = new LongAdder();
+                final LongAdder together = new LongAdder();
+                final LongAdder wrong = new LongAdder();
+                final LongAdder rejected = new LongAdder();
+                final long deadline = System.nanoTime() + millis * 1000000L;
+                final CountDownLatch done = new CountDownLatch(threads);
+                long start = System.nanoTime();
+                for(int t = 0 ; t < threads ; t++){
+                    new Thread(() -> {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        long ok = 0;
+                        long adjacent = 0;
+                        long misplaced = 0;
+                        long failed = 0;
+                        int failedInARow = 0;
+                        while(fill ? failedInARow < 64 : System.nanoTime() < deadline){
+                            int roll = random.nextInt(100);
+                            ClassType type = roll < 5 ? ClassType.FIRST : roll < 20 ? ClassType.BUSINESS : ClassType.ECONOMY;
+                            Seat[] party = new Seat[1 + random.nextInt(4)];
+                            if(!seatMap.reserve(type, party.length, party)){
+                                failed++;
+                                failedInARow++;
+                                continue;
+                            }
+                            failedInARow = 0;
+                            boolean sameRow = true;
+                            for(int i = 0 ; i < party.length ; i++){
+                                if(party[i].getClassType() != type){
+                                    misplaced++;
+                                }
+                                if(holders.incrementAndGet(party[i].getIndex()) != 1){
+                                    misplaced++;
+                                }
+                                if(i > 0 && (seatMap.rowOf(party[i].getIndex()) != seatMap.rowOf(party[0].getIndex())
+                                        || party[i].getIndex() != party[i - 1].getIndex() + 1)){
+                                    sameRow = false;
+                                }
+                            }
+                            adjacent += sameRow ? 1 : 0;
+                            ok++;
+                            if(!fill){
+                                for(Seat seat : party){
+                                    holders.decrementAndGet(seat.getIndex());
+                                }
+                                seatMap.release(party);
+                            }
+                        }
+                        bookings.add(ok);
+                        together.add(adjacent);
+                        wrong.add(misplaced);
+                        rejected.add(failed);
+                        done.countDown();
+                    }).start();
+                }
+                done.await();
+                long elapsed = System.nanoTime() - start;
+                System.out.printf("threads=%2d  %-5s bookings/s=%,11.0f  together=%5.1f%%  wrong-or-double=%d  %s%n",
+                        threads, fill ? "fill" : "churn", bookings.sum() / (elapsed / 1e9), 100.0 * together.sum() / Math.max(1, bookings.sum()),
+                        wrong.sum(), fill ? "seats left=" + seatMap.availableCount() : "leaked=" + (seatMap.size() - seatMap.availableCount()));
+            }
+        }
+    }
+    // Retained heap per flight for each registered layout: flights sharing the layout versus the
+    // same flights holding their own Seat objects (every flight worked that way before layouts).
+    static void aircraftLayouts(int flightCount) throws InterruptedException {
+        System.out.println("=== aircraft layouts (" + flightCount + " flights per layout, retained heap) ===");
+        long departure = futureDeparture(30);
+        List<AircraftLayout> layouts = new ArrayList<>(AircraftLayout.registered());
+        layouts.sort((a, b) -> Integer.compare(a.size(), b.size()));
+        for(AircraftLayout layout : layouts){
+            AbstractFlight[] flights = new AbstractFlight[flightCount];
+            long before = usedHeap();
+            for(int i = 0 ; i < flightCount ; i++){
+                flights[i] = new InternationalFlight("LY" + i, "Istanbul", "Paris", departure, departure + 5 * 3600000L, 5000.0, layout);
+            }
+            long shared = (usedHeap() - before) / flightCount;
+            Arrays.fill(flights, null);
+            before = usedHeap();
+            for(int i = 0 ; i < flightCount ; i++){
+                flights[i] = new InternationalFlight("LY" + i, "Istanbul", "Paris", departure, departure + 5 * 3600000L, 5000.0, layout);
+                Seat[] seats = new Seat[layout.size()];
+                for(int s = 0 ; s < seats.length ; s++){
+                    seats[s] = new Seat(new String(layout.getSeatNumber(s).toCharArray()), layout.getClassType(s));
+                }
+                flights[i].setSeats(seats);
+            }
+            long own = (usedHeap() - before) / flightCount;
+            Arrays.fill(flights, null);
+            System.out.printf("%-14s seats=%4d  shared=%,7d B/flight  own seats=%,8d B/flight  (-%.0f%%)%n",
+                    layout.getName(), layout.size(), shared, own, 100.0 - 100.0 * shared / own);
+        }
+    }
+    static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0 ; i < 4 ; i++){
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    // One B777 route over many departures: every class is sold until it refuses bookings, then a
+    // random share of parties does not show (10% economy, 6% business, 3% first). Without
+    // overbooking those seats fly empty; with it the forecast learns the rates and sells them.
+    static void overbooking(int departures){
+        System.out.println("=== overbooking (B777, " + departures + " departures, no-shows 10/6/3% by class) ===");
+        double[] noShowRates = { 0.10, 0.06, 0.03 };
+        AircraftLayout layout = AircraftLayout.forName("B777");
+        long departure = futureDeparture(30);
+        double[][] settings = { { 0.0, 0.0 }, { 0.15, 1.0 }, { 0.15, 2.0 } }; // max overbooking rate, risk factor
+        for(double[] setting : settings){
+            NoShowForecast forecast = new NoShowForecast(0.2, 0.0);
+            final Random random = new Random(42);
+            long sold = 0;
+            long empty = 0;
+            long denied = 0;
+            long upgraded = 0;
+            long sellNanos = 0;
+            long departNanos = 0;
+            for(int d = 0 ; d < departures ; d++){
+                InternationalFlight flight = new InternationalFlight("OB1", "Istanbul", "Tokyo", departure, departure + 11 * 3600000L, 5000.0, layout);
+                OverbookingManager manager = new OverbookingManager(flight, forecast, setting[0], setting[1]);
+                flight.setOverbooking(manager);
+                List<AbstractBooking> bookings = new ArrayList<>();
+                long start = System.nanoTime();
+                for(ClassType type : ClassType.values()){
+                    for(int refused = 0 ; refused < 8 ; ){
+                        StandardBooking booking = new StandardBooking(flight, passengers(1 + random.nextInt(4)), new SeasonalPricingStrategy(0.18, 0.0), false);
+                        booking.setClassType(type);
+                        if(booking.createBooking()){
+                            bookings.add(booking);
+                            sold += booking.getPassengers().length;
+                            refused = 0;
+                        }
+                        else{
+                            refused++;
+                        }
+                    }
+                }
+                sellNanos += System.nanoTime() - start;
+                start = System.nanoTime();
+                OverbookingManager.Reaccommodation result = manager.reaccommodate(bookings,
+                        booking -> random.nextDouble() < noShowRates[booking.getClassType().ordinal()]);
+                departNanos += System.nanoTime() - start;
+                empty += flight.getAvailableSeatCount();
+                denied += result.getDenied();
+                upgraded += result.getUpgraded();
+            }
+            System.out.printf("max overbooking %3.0f%% risk %.0f  load=%5.1f%%  empty seats/departure=%5.1f  denied per 10k sold=%5.1f  upgrades/departure=%4.1f"
+                            + "  economy forecast=%4.1f%%  %,6.0f ns/booking  %,5.1f us/reaccommodation%n",
+                    setting[0] * 100, setting[1], 100.0 - 100.0 * empty / ((long) departures * layout.size()), (double) empty / departures,
+                    denied * 10000.0 / sold, (double) upgraded / departures, forecast.getRate("OB1", ClassType.ECONOMY) * 100,
+                    (double) sellNanos / sold, departNanos / 1e3 / departures);
+        }
+    }
+    // The economy fare of a B777 as the cabin fills, then pricing under seat churn: one thread books
+    // and cancels parties right at a bucket boundary, so the fare table keeps being swapped, while
+    // another prices the flight. SeasonalPricingStrategy on the same churn is the baseline.
+    static void loadPricing(long millis) throws InterruptedException {
+        System.out.println("=== load-factor pricing (B777, economy) ===");
+        long departure = futureDeparture(30);
+        AircraftLayout layout = AircraftLayout.forName("B777");
+        InternationalFlight ladder = new InternationalFlight("LF1", "Istanbul", "Tokyo", departure, departure + 11 * 3600000L, 5000.0, layout);
+        LoadFactorPricingStrategy strategy = new LoadFactorPricingStrategy(0.18, 0.0);
+        StringBuilder fares = new StringBuilder();
+        int economy = layout.size(ClassType.ECONOMY);
+        Seat[] seat = new Seat[1];
+        for(int percent : new int[]{ 0, 25, 50, 70, 85, 95, 99 }){
+            while(economy - ladder.getAvailableSeatCount(ClassType.ECONOMY) < percent * economy / 100.0){
+                ladder.getSeatMap().reserve(ClassType.ECONOMY, 1, seat);
+            }
+            fares.append(String.format(" %d%%=%,.0f", percent, strategy.calculateFinalPrice(ladder, ClassType.ECONOMY, 1)));
+        }
+        System.out.println("fare by load:" + fares + "  (" + strategy.getSwaps() + " table swaps)");
+        AbstractPricingStrategy[] strategies = { new SeasonalPricingStrategy(0.18, 0.0), new LoadFactorPricingStrategy(0.18, 0.0) };
+        for(final AbstractPricingStrategy pricing : strategies){
+            final InternationalFlight flight = new InternationalFlight("LF2", "Istanbul", "Tokyo", departure, departure + 11 * 3600000L, 5000.0, layout);
+            Seat[] filler = new Seat[(int) Math.ceil(0.7 * economy) - 1];
+            flight.getSeatMap().reserve(ClassType.ECONOMY, filler.length, filler);
+            final LongAdder sales = new LongAdder();
+            final LongAdder quotes = new LongAdder();
+            final long deadline = System.nanoTime() + millis * 1000000L;
+            final CountDownLatch done = new CountDownLatch(2);
+            new Thread(() -> {
+                Seat[] party = new Seat[2];
+                long count = 0;
+                while(System.nanoTime() < deadline){
+                    if(flight.getSeatMap().reserve(ClassType.ECONOMY, 2, party)){
+                        flight.getSeatMap().release(party);
+                        count++;
+                    }
+                }
+                sales.add(count);
+                done.countDown();
+            }).start();
+            new Thread(() -> {
+                long count = 0;
+                double sum = 0;
+                while(System.nanoTime() < deadline){
+                    sum += pricing.calculateFinalPrice(flight, ClassType.ECONOMY, 2);
+                    count++;
+                }
+                quotes.add(count + (sum < 0 ? 1 : 0));
+                done.countDown();
+            }).start();
+            done.await();
+            System.out.printf("%-26s prices/s=%,11.0f  seat sales/s=%,10.0f  table swaps=%,d%n", pricing.getClass().getSimpleName(),
+                    quotes.sum() * 1000.0 / millis, sales.sum() * 1000.0 / millis,
+                    pricing instanceof LoadFactorPricingStrategy ? ((LoadFactorPricingStrategy) pricing).getSwaps() : 0);
+        }
+    }
+    // Writers book, pay and cancel on 64 flights, refunding every other cancellation, while one
+    // reader queries the projections in a loop. Run with and without the event store attached, then
+    // the projections are checked against what the writers did once they have caught up.
+    static void projections(long millis) throws InterruptedException {
+        System.out.println("=== event store and projections (book, pay, cancel, refund every other) ===");
+        long departure = futureDeparture(30);
+        final long departureDay = FlightKey.dayOf(departure);
+        for(int threads : threadCounts()){
+            for(final boolean recorded : new boolean[]{ false, true }){
+                final InternationalFlight[] flights = new InternationalFlight[64];
+                for(int i = 0 ; i < flights.length ; i++){
+                    flights[i] = new InternationalFlight("EV" + i, "Istanbul", "Paris", departure, departure + 5 * 3600000L, 5000.0);
+                }
+                final BookingEventStore store = new BookingEventStore();
+                final BookingProjections projections = new BookingProjections(store);
+                final SeasonalPricingStrategy pricing = new SeasonalPricingStrategy(0.18, 0.05);
+                final LongAdder bookings = new LongAdder();
+                final LongAdder unrefunded = new LongAdder();
+                final LongAdder queries = new LongAdder();
+                final AtomicLong maxLag = new AtomicLong();
+                final long deadline = System.nanoTime() + millis * 1000000L;
+                final CountDownLatch done = new CountDownLatch(threads);
+                Thread reader = new Thread(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long count = 0;
+                    double sum = 0;
+                    while(done.getCount() > 0){
+                        sum += projections.getSeatsSold("EV" + random.nextInt(flights.length), departureDay) + projections.getRefundsPendingAmount();
+                        maxLag.accumulateAndGet(store.size() - projections.getPosition(), Math::max);
+                        count++;
+                    }
+                    queries.add(count + (sum < 0 ? 1 : 0));
+                });
+                reader.start();
+                long start = System.nanoTime();
+                for(int t = 0 ; t < threads ; t++){
+                    new Thread(() -> {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        Passenger[] party = passengers(2);
+                        long count = 0;
+                        long owed = 0;
+                        while(System.nanoTime() < deadline){
+                            StandardBooking booking = new StandardBooking(flights[random.nextInt(flights.length)], party, pricing, true);
+                            if(recorded){
+                                booking.setListener(store);
+                            }
+                            if(!booking.createBooking()){
+                                continue;
+                            }
+                            CreditCardPayment payment = new CreditCardPayment(booking, "1234567890123456", "Bench User", "12/29", "123");
+                            payment.processPayment();
+                            booking.cancel();
+                            if((count & 1) == 0){
+                                payment.refundPayment();
+                            }
+                            else{
+                                owed++;
+                            }
+                            count++;
+                        }
+                        bookings.add(count);
+                        unrefunded.add(owed);
+                        done.countDown();
+                    }).start();
+                }
+                done.await();
+                double seconds = (System.nanoTime() - start) / 1e9;
+                reader.join();
+                boolean caughtUp = projections.awaitCaughtUp(10000);
+                projections.close();
+                long sold = 0;
+                for(InternationalFlight flight : flights){
+                    sold += projections.getSeatsSold(flight.getFlightNumber(), departureDay);
+                }
+                System.out.printf("threads=%2d  store=%-3s  bookings/s=%,9.0f  events=%,10d  queries/s=%,11.0f  max lag=%,8d events",
+                        threads, recorded ? "on" : "off", bookings.sum() / seconds, store.size(), queries.sum() / seconds, maxLag.get());
+                if(recorded){
+                    System.out.printf("  caught up=%s  refunds pending=%,d (expected %,d)  seats sold=%d (expected 0)",
+                            caughtUp, projections.getRefundsPending().size(), unrefunded.sum(), sold);
+                }
+                System.out.println();
+            }
+        }
+    }
+    // Replays booking history into RevenueAnalytics: each booking is confirmed and paid on a random
+    // day of the last `days`, one in ten is cancelled and refunded. Reports ingest rate, checks the
+    // grand totals against what was fed, times dashboard queries, and compares with what a query
+    // costs by scanning a million StandardBookings.
+    static void revenueAnalytics(long bookings, int routeCount, int days) throws InterruptedException {
+        System.out.println("=== revenue analytics (" + String.format("%,d", bookings) + " bookings, " + routeCount + " routes, " + days + " days) ===");
+        final long departure = futureDeparture(30);
+        final DomesticFlight[] flights = new DomesticFlight[routeCount];
+        final String[] origins = new String[routeCount];
+        final String[] destinations = new String[routeCount];
+        for(int r = 0 ; r < routeCount ; r++){
+            origins[r] = "O" + (r % 20);
+            destinations[r] = "D" + r;
+            flights[r] = new DomesticFlight("RA" + r, origins[r], destinations[r], departure, departure + 7200000L, 1000.0, 0.18);
+        }
+        final long today = FlightKey.dayOf(System.currentTimeMillis());
+        final long firstDay = today - days + 1;
+        final ClassType[] types = ClassType.values();
+        final SeasonalPricingStrategy pricing = new SeasonalPricingStrategy(0.18, 0.05);
+        final RevenueAnalytics analytics = new RevenueAnalytics();
+        int threads = Runtime.getRuntime().availableProcessors();
+        final long perThread = bookings / threads;
+        final DoubleAdder revenueFed = new DoubleAdder();
+        final DoubleAdder refundedFed = new DoubleAdder();
+        final LongAdder cancelledFed = new LongAdder();
+        final CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for(int t = 0 ; t < threads ; t++){
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                Passenger[] party = passengers(2);
+                // one reusable booking and payment per route and class; only their times and amounts change
+                StandardBooking[] pool = new StandardBooking[routeCount * types.length];
+                CreditCardPayment[] payments = new CreditCardPayment[pool.length];
+                for(int i = 0 ; i < pool.length ; i++){
+                    pool[i] = new StandardBooking(flights[i / types.length], party, pricing, true, 0, i, 0);
+                    pool[i].setClassType(types[i % types.length]);
+                    pool[i].restoreStatus(BookingStatus.CANCELLED);
+                    payments[i] = new CreditCardPayment(pool[i], "1234567890123456", "Bench User", "12/29", "123");
+                }
+                double revenue = 0;
+                double refunded = 0;
+                long cancelled = 0;
+                for(long n = 0 ; n < perThread ; n++){
+                    int i = random.nextInt(pool.length);
+                    long time = (firstDay + random.nextInt(days)) * 86400000L + random.nextInt(86400000);
+                    double amount = 500 + random.nextInt(5000);
+                    pool[i].setBookingTime(time);
+                    payments[i].setPaymentTime(time);
+                    payments[i].setAmount(amount);
+                    analytics.bookingConfirmed(pool[i]);
+                    analytics.paymentCompleted(payments[i]);
+                    revenue += amount;
+                    if(random.nextInt(10) == 0){
+                        analytics.bookingCancelled(pool[i], time);
+                        analytics.paymentRefunded(payments[i], time);
+                        refunded += amount;
+                        cancelled++;
+                    }
+                }
+                revenueFed.add(revenue);
+                refundedFed.add(refunded);
+                cancelledFed.add(cancelled);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        RevenueAnalytics.Totals all = analytics.getTotals(null, null, null, firstDay, today);
+        System.out.printf("ingest: %,d events in %.1f s = %,.0f events/s (%,d threads), %,d cells%n",
+                analytics.getEvents(), seconds, analytics.getEvents() / seconds, threads, analytics.getCellCount());
+        System.out.printf("totals: bookings %,d (fed %,d), cancellations %,d (fed %,d), revenue %,.0f (fed %,.0f), refunded %,.0f (fed %,.0f), net %,.0f%n",
+                all.getBookings(), perThread * threads, all.getCancellations(), cancelledFed.sum(),
+                all.getRevenue(), revenueFed.sum(), all.getRefunded(), refundedFed.sum(), all.getNetRevenue());
+
+        String[] names = { "route+class, 30 days", "route, 365 days", "all routes by class, 365 days", "everything, " + days + " days" };
+        int queries = 100000;
+        for(int q = 0 ; q < names.length ; q++){
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            double sum = 0;
+            long begin = System.nanoTime();
+            for(int n = 0 ; n < queries ; n++){
+                int r = random.nextInt(routeCount);
+                long to = today - random.nextInt(30);
+                RevenueAnalytics.Totals totals;
+                if(q == 0){
+                    totals = analytics.getTotals(origins[r], destinations[r], types[random.nextInt(types.length)], to - 29, to);
+                }
+                else if(q == 1){
+                    totals = analytics.getTotals(origins[r], destinations[r], null, to - 364, to);
+                }
+                else if(q == 2){
+                    totals = analytics.getTotals(null, null, types[random.nextInt(types.length)], to - 364, to);
+                }
+                else{
+                    totals = analytics.getTotals(null, null, null, firstDay, today);
+                }
+                sum += totals.getNetRevenue();
+            }
+            double micros = (System.nanoTime() - begin) / 1e3 / queries;
+            sink += (long) sum;
+            System.out.printf("query %-32s %8.2f us%n", names[q], micros);
+        }
+
+        // the alternative: walk every booking
+        int scanned = 1000000;
+        Passenger[] party = passengers(2);
+        List<StandardBooking> history = new ArrayList<>(scanned);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for(int n = 0 ; n < scanned ; n++){
+            StandardBooking booking = new StandardBooking(flights[random.nextInt(routeCount)], party, pricing, true,
+                    500 + random.nextInt(5000), n, (firstDay + random.nextInt(days)) * 86400000L);
+            booking.setClassType(types[random.nextInt(types.length)]);
+            history.add(booking);
+        }
+        long best = Long.MAX_VALUE;
+        for(int round = 0 ; round < 5 ; round++){
+            long begin = System.nanoTime();
+            double sum = 0;
+            long from = (today - 29) * 86400000L;
+            for(StandardBooking booking : history){
+                AbstractFlight flight = booking.getFlight();
+                if(booking.getBookingTime() >= from && booking.getClassType() == ClassType.ECONOMY
+                        && flight.getOrigin().equals(origins[0]) && flight.getDestination().equals(destinations[0])){
+                    sum += booking.getTotalPrice();
+                }
+            }
+            sink += (long) sum;
+            best = Math.min(best, System.nanoTime() - begin);
+        }
+        System.out.printf("scan of %,d StandardBookings for route+class, 30 days: %,.2f ms%n", scanned, best / 1e6);
+    }
+    // Writes a season of rowCount flights (2,500 flight numbers a day between 30 airports) as CSV and
+    // imports it with ScheduleImporter, then with a BufferedReader/String.split/parseDouble loader
+    // for comparison, then applies a delta feed of retimes, fare changes and cancellations and
+    // re-imports the unchanged season.
+    static void scheduleImport(int rowCount) throws Exception {
+        System.out.println("=== schedule import (" + String.format("%,d", rowCount) + " rows) ===");
+        int numbers = 2500;
+        int days = (rowCount + numbers - 1) / numbers;
+        long firstDay = FlightKey.dayOf(futureDeparture(30));
+        Path season = Files.createTempFile("schedule", ".csv");
+        Path delta = Files.createTempFile("schedule-delta", ".csv");
+        DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm").withZone(ZoneOffset.UTC);
+        Random random = new Random(42);
+        int retimes = 0;
+        int fares = 0;
+        int cancels = 0;
+        try(BufferedWriter out = Files.newBufferedWriter(season); BufferedWriter changes = Files.newBufferedWriter(delta)){
+            out.write("flightNumber,type,origin,destination,departure,arrival,basePrice,taxRate,layout\n");
+            for(int row = 0 ; row < rowCount ; row++){
+                int number = row % numbers;
+                long departure = (firstDay + row / numbers) * 86400000L + (number % 70) * 1200000L;
+                boolean domestic = number % 3 != 0;
+                String fields = "TK" + number + (domestic ? ",D," : ",I,") + "AP" + (number % 30) + ",AP" + ((number / 30) % 30);
+                String price = (500 + number % 400) + "." + (number % 100);
+                String tax = domestic ? "0.18" : "";
+                String layout = number % 4 == 0 ? "A320" : "";
+                out.write(fields + "," + format.format(Instant.ofEpochMilli(departure)) + "," + format.format(Instant.ofEpochMilli(departure + 5400000L))
+                        + "," + price + "," + tax + "," + layout + "\n");
+                int change = random.nextInt(1000);
+                if(change < 20 && (departure % 86400000L) < 80000000L){
+                    departure += 900000L;
+                    changes.write(fields + "," + format.format(Instant.ofEpochMilli(departure)) + "," + format.format(Instant.ofEpochMilli(departure + 5400000L))
+                            + "," + price + "," + tax + "," + layout + "\n");
+                    retimes++;
+                }
+                else if(change < 25){
+                    changes.write(fields + "," + format.format(Instant.ofEpochMilli(departure)) + "," + format.format(Instant.ofEpochMilli(departure + 5400000L))
+                            + "," + (1000 + number % 400) + "," + tax + "," + layout + "\n");
+                    fares++;
+                }
+                else if(change < 30){
+                    changes.write("TK" + number + ",X,,," + format.format(Instant.ofEpochMilli(departure)) + ",,,,\n");
+                    cancels++;
+                }
+            }
+        }
+        System.out.printf("season file %,d bytes over %d days, delta %,d rows (%,d retimes, %,d fare changes, %,d cancellations)%n",
+                Files.size(season), days, retimes + fares + cancels, retimes, fares, cancels);
+
+        // what loading the feed takes without the importer: a String per field
+        FlightInventory plain = new FlightInventory(rowCount);
+        long start = System.nanoTime();
+        long rows = splitLoad(season, plain);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("split    %,d rows in %.2f s = %,.0f rows/s (1 thread, BufferedReader + String.split), %,d flights%n",
+                rows, seconds, rows / seconds, plain.size());
+        plain = null;
+        System.gc();
+
+        FlightInventory inventory = new FlightInventory(rowCount);
+        ScheduleImporter importer = new ScheduleImporter(inventory);
+        ScheduleImporter.Result result = importer.importFile(season);
+        System.out.printf("import   %s (%,d threads), %,d flights%n", result, ForkJoinPool.getCommonPoolParallelism(), inventory.size());
+        result = importer.importFile(delta);
+        System.out.printf("delta    %s%n", result);
+        for(String error : result.getErrors()){
+            System.out.println("         " + error);
+        }
+        // cancelled flights are rejected: the season feed still has them operating
+        result = importer.importFile(season);
+        System.out.printf("reimport %s%n", result);
+        start = System.nanoTime();
+        rows = splitLoad(season, null);
+        seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("split    %,d rows in %.2f s = %,.0f rows/s (parsing only, no flights built)%n", rows, seconds, rows / seconds);
+        Files.delete(season);
+        Files.delete(delta);
+    }
+    // reads the feed the obvious way; without an inventory it only parses
+    static long splitLoad(Path file, FlightInventory inventory) throws IOException {
+        long rows = 0;
+        try(BufferedReader in = Files.newBufferedReader(file)){
+            in.readLine();
+            String line;
+            while((line = in.readLine()) != null){
+                String[] f = line.split(",", -1);
+                long departure = LocalDateTime.parse(f[4]).toInstant(ZoneOffset.UTC).toEpochMilli();
+                long arrival = LocalDateTime.parse(f[5]).toInstant(ZoneOffset.UTC).toEpochMilli();
+                double basePrice = Double.parseDouble(f[6]);
+                double taxRate = f[7].isEmpty() ? 0 : Double.parseDouble(f[7]);
+                AircraftLayout layout = f[8].isEmpty() ? null : AircraftLayout.forName(f[8]);
+                if(inventory != null){
+                    inventory.addFlight(f[1].equals("D")
+                            ? new DomesticFlight(f[0], f[2], f[3], departure, arrival, basePrice, taxRate, layout)
+                            : new InternationalFlight(f[0], f[2], f[3], departure, arrival, basePrice, layout));
+                }
+                else{
+                    sink += departure + arrival + (long) (basePrice + taxRate) + (layout == null ? 0 : 1);
+                }
+                rows++;
+            }
+        }
+        return rows;
+    }
+    // Sells flightCount B777 departures to about 95% in all classes, then retimes them all by two
+    // hours and swaps them to a layout with fewer business seats, with 2% of the bookings asking
+    // for a particular seat; then retimes them again on the same aircraft with new seat requests.
+    // Checks afterwards that every confirmed booking holds distinct seats of the flight's current
+    // seat map and that the map has no other seat taken.
+    static void disruption(int flightCount){
+        System.out.println("=== schedule change re-accommodation (" + flightCount + " full B777 flights) ===");
+        AircraftLayout smaller = AircraftLayout.parse("B77W = FIRST 2x4, BUSINESS 6x7, ECONOMY 36x10");
+        AircraftLayout.register(smaller);
+        AircraftLayout b777 = AircraftLayout.forName("B777");
+        long departure = futureDeparture(30);
+        FlightInventory inventory = new FlightInventory(flightCount);
+        SeasonalPricingStrategy pricing = new SeasonalPricingStrategy(0.18, 0.05);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<InternationalFlight> flights = new ArrayList<>();
+        Passenger[][] parties = { passengers(1), passengers(2), passengers(3) };
+        ClassType[] types = ClassType.values();
+        long sold = 0;
+        for(int i = 0 ; i < flightCount ; i++){
+            InternationalFlight flight = new InternationalFlight("DX" + i, "Istanbul", "New York", departure, departure + 11 * 3600000L, 5000.0, b777);
+            inventory.addFlight(flight);
+            flights.add(flight);
+            for(ClassType type : types){
+                int target = b777.size(type) * 95 / 100;
+                int booked = 0;
+                while(booked < target){
+                    Passenger[] party = parties[random.nextInt(Math.min(3, target - booked))];
+                    if(inventory.book(new StandardBooking(flight, party, pricing, true, type))){
+                        booked += party.length;
+                    }
+                }
+                sold += booked;
+            }
+        }
+        System.out.printf("sold %,d seats on %,d flights (%,d seats each)%n", sold, flightCount, b777.size());
+        ScheduleChangeService service = new ScheduleChangeService(inventory);
+        for(int round = 0 ; round < 2 ; round++){
+            List<ScheduleChange> changes = new ArrayList<>();
+            for(InternationalFlight flight : flights){
+                ScheduleChange change = new ScheduleChange(flight, flight.getDepartureTime() + 7200000L, flight.getArrivalTime() + 7200000L,
+                        round == 0 ? smaller : null);
+                AircraftLayout layout = round == 0 ? smaller : flight.getLayout();
+                for(AbstractBooking booking : inventory.getBookings(flight)){
+                    if(random.nextInt(50) == 0){
+                        String[] seats = new String[booking.getPassengers().length];
+                        int first = randomSeatOf(layout, booking.getClassType(), seats.length, random);
+                        for(int s = 0 ; s < seats.length ; s++){
+                            seats[s] = layout.getSeatNumber(first + s);
+                        }
+                        change.addSeatRequest(new ChangeRequest(booking.getBookingId(), change.getNewDepartureTime(), change.getNewArrivalTime(), seats));
+                    }
+                }
+                changes.add(change);
+            }
+            ScheduleChangeService.Result result = service.apply(changes);
+            System.out.printf("%s %s%n", round == 0 ? "swap+retime" : "retime     ", result);
+            System.out.printf("            consistent: %s%n", seatsConsistent(inventory, flights));
+        }
+    }
+    // first index of count consecutive seats of the class
+    static int randomSeatOf(AircraftLayout layout, ClassType type, int count, ThreadLocalRandom random){
+        while(true){
+            int first = random.nextInt(layout.size() - count + 1);
+            if(layout.getClassType(first) == type && layout.getClassType(first + count - 1) == type){
+                return first;
+            }
+        }
+    }
+    static boolean seatsConsistent(FlightInventory inventory, List<? extends AbstractFlight> flights){
+        for(AbstractFlight flight : flights){
+            SeatMap seatMap = flight.getSeatMap();
+            boolean[] held = new boolean[seatMap.size()];
+            int count = 0;
+            for(AbstractBooking booking : inventory.getBookings(flight)){
+                if(booking.getStatus() != BookingStatus.CONFIRMED || booking.isOverbooked()){
+                    continue;
+                }
+                for(Seat seat : booking.getAssignedSeats()){
+                    if(seat == null || seat.getSeatMapOrNull() != seatMap || held[seat.getIndex()] || seatMap.isFree(seat.getIndex())){
+                        return false;
+                    }
+                    held[seat.getIndex()] = true;
+                    count++;
+                }
+            }
+            if(count != seatMap.size() - seatMap.availableCount()){
+                return false;
+            }
+        }
+        return true;
+    }
+    private static final String[] FIRST_NAMES = { "Ayse", "Mehmet", "Elif", "Can", "Zeynep", "Emre", "Maria", "John", "Yuki", "Ahmed", "Sofia", "Luca" };
+    private static final String[] LAST_NAMES = { "Yilmaz", "Kaya", "Demir", "Sahin", "Garcia", "Smith", "Tanaka", "Hassan", "Rossi", "Novak", "Muller" };
+    private static final String[] NATIONALITIES = { "TR", "DE", "US", "GB", "FR", "IT", "JP", "EG", "ES", "NL", "RU", "CN" };
+    // Retained heap per passenger: passengers keeping their own fields (fresh Strings per field, as a
+    // journal replay or an import builds them) against the same passengers in a PassengerStore, with
+    // and without flyweight views kept; then append and read throughput of the store.
+    static void passengerStore(int count) throws InterruptedException {
+        System.out.println("=== passengers (" + count + " passengers, retained heap) ===");
+        int objectCount = Math.min(count, 2000000);
+        Passenger[] objects = new Passenger[objectCount];
+        long before = usedHeap();
+        for(int i = 0 ; i < objectCount ; i++){
+            objects[i] = new Passenger(new String(FIRST_NAMES[i % FIRST_NAMES.length]), new String(LAST_NAMES[i % LAST_NAMES.length]),
+                    birthDateOf(i), passportOf(i), new String(NATIONALITIES[i % NATIONALITIES.length]), emailOf(i), phoneOf(i));
+        }
+        double objectBytes = (double) (usedHeap() - before) / objectCount;
+        Arrays.fill(objects, null);
+        objects = null;
+        System.out.printf("own fields   %,9d passengers  %6.1f B/passenger%n", objectCount, objectBytes);
+
+        before = usedHeap();
+        PassengerStore store = new PassengerStore();
+        long start = System.nanoTime();
+        for(int i = 0 ; i < count ; i++){
+            store.add(i + 1, new String(FIRST_NAMES[i % FIRST_NAMES.length]), new String(LAST_NAMES[i % LAST_NAMES.length]),
+                    birthDateOf(i), passportOf(i), new String(NATIONALITIES[i % NATIONALITIES.length]), emailOf(i), phoneOf(i));
+        }
+        double addRate = count / ((System.nanoTime() - start) / 1e9);
+        double storeBytes = (double) (usedHeap() - before) / count;
+        System.out.printf("store        %,9d passengers  %6.1f B/passenger  (%.1fx smaller)  arena=%,d B  adds/s=%,.0f%n",
+                count, storeBytes, objectBytes / storeBytes, store.getArenaBytes(), addRate);
+        Passenger[] views = new Passenger[count];
+        long viewsBefore = usedHeap();
+        for(int i = 0 ; i < count ; i++){
+            views[i] = store.get(i);
+        }
+        double viewBytes = (double) (usedHeap() - viewsBefore) / count;
+        System.out.printf("store+views  %,9d passengers  %6.1f B/passenger  (%.1fx smaller)%n",
+                count, storeBytes + viewBytes, objectBytes / (storeBytes + viewBytes));
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int reads = Math.min(count, 5000000);
+        long checksum = 0;
+        start = System.nanoTime();
+        for(int i = 0 ; i < reads ; i++){
+            Passenger passenger = views[random.nextInt(count)];
+            checksum += passenger.getLastName().length() + passenger.getNationality().length() + passenger.getBirthDate();
+        }
+        double readRate = reads / ((System.nanoTime() - start) / 1e9);
+        start = System.nanoTime();
+        for(int i = 0 ; i < reads ; i++){
+            checksum += views[random.nextInt(count)].getIdNumber();
+        }
+        double idRate = reads / ((System.nanoTime() - start) / 1e9);
+        Passenger last = views[count - 1];
+        boolean intact = last.getIdNumber() == count && last.getContactEmail().equals(emailOf(count - 1))
+                && last.getBirthDate() == birthDateOf(count - 1) && last.getNationality().equals(NATIONALITIES[(count - 1) % NATIONALITIES.length]);
+        System.out.printf("random reads/s: name+nationality+birth=%,.0f  id=%,.0f  intact=%s  (%d)%n", readRate, idRate, intact, checksum & 1);
+    }
+    static long birthDateOf(int i){
+        return -631152000000L + (i % 20000) * 86400000L * 2;
+    }
+    static String passportOf(int i){
+        return "U" + (10000000 + i % 90000000);
+    }
+    static String emailOf(int i){
+        return FIRST_NAMES[i % FIRST_NAMES.length].toLowerCase() + "." + i + "@example.com";
+    }
+    static String phoneOf(int i){
+        return "+90 5" + (100000000 + i % 900000000);
+    }
+}